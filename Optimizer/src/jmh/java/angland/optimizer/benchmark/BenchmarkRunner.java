@@ -0,0 +1,39 @@
+package angland.optimizer.benchmark;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks selected on the command line, which accepts the usual JMH options, with the
+ * GC profiler attached so that allocation rates are reported alongside throughput.
+ * 
+ * @author John Angland
+ * 
+ */
+public class BenchmarkRunner {
+
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException,
+      IOException {
+    CommandLineOptions commandLine = new CommandLineOptions(args);
+    if (commandLine.shouldHelp()) {
+      commandLine.showHelp();
+      return;
+    }
+    Runner runner =
+        new Runner(new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class).build());
+    if (commandLine.shouldList()) {
+      runner.list();
+    } else if (commandLine.shouldListWithParams()) {
+      runner.listWithParams(commandLine);
+    } else {
+      runner.run();
+    }
+  }
+
+}
@@ -0,0 +1,90 @@
+package angland.optimizer.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import angland.optimizer.nn.LstmCellTemplate;
+import angland.optimizer.nn.PeepholeLstmCellTemplate;
+import angland.optimizer.nn.RnnCell;
+import angland.optimizer.nn.RnnCellTemplate;
+import angland.optimizer.nn.RnnStateTuple;
+import angland.optimizer.nn.RnnStateValues;
+import angland.optimizer.var.IndexedKey;
+import angland.optimizer.var.matrix.Matrix;
+
+/**
+ * Applies a single recurrent cell to a variable input state and sweeps the gradient of the sum of
+ * its output, or applies it to plain values with no derivatives.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CellBenchmark {
+
+  @Param({"20", "60"})
+  public int size;
+
+  private RnnCell<String> lstm;
+  private RnnCell<String> peephole;
+  private Map<IndexedKey<String>, Double> context;
+  private RnnStateValues values;
+
+  @Setup
+  public void setup() {
+    RnnCellTemplate lstmTemplate = new LstmCellTemplate("lstm", size, .005, false);
+    RnnCellTemplate peepholeTemplate = new PeepholeLstmCellTemplate("peep", size, .005, false);
+    context = new HashMap<>();
+    lstmTemplate.getKeys().forEach(k -> context.put(k, Math.random() * 2 - 1));
+    peepholeTemplate.getKeys().forEach(k -> context.put(k, Math.random() * 2 - 1));
+    IndexedKey.getAllMatrixKeys("hidden", size, 1).forEach(
+        k -> context.put(k, Math.random() * 2 - 1));
+    IndexedKey.getAllMatrixKeys("exposed", size, 1).forEach(
+        k -> context.put(k, Math.random() * 2 - 1));
+    lstm = lstmTemplate.create(context);
+    peephole = peepholeTemplate.create(context);
+    values = RnnStateValues.of(new RnnStateTuple<>(Matrix.var("hidden", size, 1, context), Matrix
+        .var("exposed", size, 1, context)));
+  }
+
+  private void apply(RnnCell<String> cell, Blackhole bh) {
+    RnnStateTuple<String> input =
+        new RnnStateTuple<>(Matrix.var("hidden", size, 1, context), Matrix.var("exposed", size,
+            1, context));
+    RnnStateTuple<String> output = cell.apply(input);
+    output.getExposedState().elementSumStream()
+        .actOnDerivatives(1, (key, value) -> bh.consume(value));
+  }
+
+  @Benchmark
+  public void lstmApply(Blackhole bh) {
+    apply(lstm, bh);
+  }
+
+  @Benchmark
+  public void peepholeLstmApply(Blackhole bh) {
+    apply(peephole, bh);
+  }
+
+  @Benchmark
+  public RnnStateValues lstmApplyValues() {
+    return lstm.applyValues(values);
+  }
+
+}
@@ -0,0 +1,73 @@
+package angland.optimizer.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import angland.optimizer.utils.ObjectToDoubleMap;
+import angland.optimizer.var.DerivativeMap;
+import angland.optimizer.var.IndexedKey;
+
+/**
+ * Merges every key three times into a fresh map, as when summing the gradients of a matrix
+ * product's terms.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapBenchmark {
+
+  @Param({"100", "10000"})
+  public int keyCount;
+
+  private List<IndexedKey<String>> keys;
+
+  @Setup
+  public void setup() {
+    keys = new ArrayList<>(keyCount);
+    for (int i = 0; i < keyCount; ++i) {
+      keys.add(IndexedKey.matrixKey("w" + (i % 4), i / 100, i % 100));
+    }
+    Collections.shuffle(keys, new Random(0));
+  }
+
+  @Benchmark
+  public DerivativeMap<String> derivativeMapMerge() {
+    DerivativeMap<String> map = new DerivativeMap<>(10);
+    for (int repeat = 0; repeat < 3; ++repeat) {
+      for (IndexedKey<String> key : keys) {
+        map.merge(key, 1.0);
+      }
+    }
+    return map;
+  }
+
+  @Benchmark
+  public ObjectToDoubleMap<IndexedKey<String>> objectToDoubleMapAdjust() {
+    ObjectToDoubleMap<IndexedKey<String>> map = new ObjectToDoubleMap<>(10);
+    for (int repeat = 0; repeat < 3; ++repeat) {
+      for (IndexedKey<String> key : keys) {
+        map.adjust(key, 1.0);
+      }
+    }
+    return map;
+  }
+
+}
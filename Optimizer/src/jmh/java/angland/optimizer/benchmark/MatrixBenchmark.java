@@ -0,0 +1,83 @@
+package angland.optimizer.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import angland.optimizer.var.IndexedKey;
+import angland.optimizer.var.matrix.DenseMatrix;
+import angland.optimizer.var.matrix.Matrix;
+
+/**
+ * Multiplies a size by size matrix of variables by a size by 1 vector of variables and sweeps the
+ * gradient of the sum of the result, through the cached, streaming and dense products. Also times
+ * the value-only product of a transposed embedding and a state vector, as in inference.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatrixBenchmark {
+
+  @Param({"10", "40", "160"})
+  public int size;
+
+  private Map<IndexedKey<String>, Double> context;
+  private Matrix<String> embedding;
+  private Matrix<String> state;
+
+  @Setup
+  public void setup() {
+    context = new HashMap<>();
+    IndexedKey.getAllMatrixKeys("w", size, size).forEach(k -> context.put(k, Math.random()));
+    IndexedKey.getAllMatrixKeys("x", size, 1).forEach(k -> context.put(k, Math.random()));
+    Map<IndexedKey<String>, Double> embeddingContext = new HashMap<>();
+    IndexedKey.getAllMatrixKeys("e", size, 10000).forEach(
+        k -> embeddingContext.put(k, Math.random()));
+    embedding = DenseMatrix.var("e", size, 10000, embeddingContext).toConstant();
+    state = Matrix.var("x", size, 1, context).toConstant();
+  }
+
+  @Benchmark
+  public void times(Blackhole bh) {
+    Matrix<String> w = Matrix.var("w", size, size, context);
+    Matrix<String> x = Matrix.var("x", size, 1, context);
+    w.times(x).elementSumStream().actOnDerivatives(1, (key, value) -> bh.consume(value));
+  }
+
+  @Benchmark
+  public void streamingTimes(Blackhole bh) {
+    Matrix<String> w = Matrix.var("w", size, size, context);
+    Matrix<String> x = Matrix.var("x", size, 1, context);
+    w.streamingTimes(x).elementSumStream()
+        .actOnDerivatives(1, (key, value) -> bh.consume(value));
+  }
+
+  @Benchmark
+  public void denseTimes(Blackhole bh) {
+    DenseMatrix<String> w = DenseMatrix.var("w", size, size, context);
+    DenseMatrix<String> x = DenseMatrix.var("x", size, 1, context);
+    w.times(x).elementSumStream().actOnDerivatives(1, (key, value) -> bh.consume(value));
+  }
+
+  @Benchmark
+  public Matrix<String> transposedEmbeddingTimesState() {
+    return embedding.transpose().times(state);
+  }
+
+}
@@ -0,0 +1,61 @@
+package angland.optimizer.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import angland.optimizer.var.scalar.Scalar;
+
+/**
+ * Builds a chain of arithmetic over a handful of variables and takes its gradient, either caching
+ * each link of the chain or leaving it streaming.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScalarBenchmark {
+
+  @Param({"10", "100", "1000"})
+  public int depth;
+
+  @Param({"true", "false"})
+  public boolean cache;
+
+  private Scalar<String> a;
+  private Scalar<String> b;
+  private Scalar<String> c;
+
+  @Setup
+  public void setup() {
+    a = Scalar.var("a", 0.3);
+    b = Scalar.var("b", -0.7);
+    c = Scalar.var("c", 1.1);
+  }
+
+  @Benchmark
+  public void chainGradient(Blackhole bh) {
+    Scalar<String> result = a;
+    for (int i = 0; i < depth; ++i) {
+      result = result.times(b).plus(c).tanh();
+      if (cache) {
+        result = result.cache();
+      }
+    }
+    result.actOnDerivatives(1, (key, value) -> bh.consume(value));
+  }
+
+}
@@ -0,0 +1,68 @@
+package angland.optimizer.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import angland.optimizer.ngram.NGramPredictor;
+import angland.optimizer.nn.LstmCellTemplate;
+import angland.optimizer.saver.StringContext;
+import angland.optimizer.var.IndexedKey;
+
+/**
+ * Saves and loads the context of an LSTM n-gram predictor.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StringContextBenchmark {
+
+  @Param({"2000"})
+  public int vocabulary;
+
+  private Map<IndexedKey<String>, Double> context;
+  private File file;
+
+  @Setup
+  public void setup() throws IOException {
+    context =
+        NGramPredictor.randomizedContext(vocabulary, new LstmCellTemplate("cell", 100, .005,
+            false));
+    file = File.createTempFile("context", ".txt");
+    StringContext.saveContext(context, file);
+  }
+
+  @TearDown
+  public void tearDown() {
+    file.delete();
+    new File(file.getAbsolutePath() + ".tmp").delete();
+  }
+
+  @Benchmark
+  public void save() {
+    StringContext.saveContext(context, file);
+  }
+
+  @Benchmark
+  public Map<IndexedKey<String>, Double> load() {
+    return StringContext.loadContext(file);
+  }
+
+}
@@ -0,0 +1,79 @@
+package angland.optimizer.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import angland.optimizer.Optimizer;
+import angland.optimizer.Range;
+import angland.optimizer.ngram.NGramPredictor;
+import angland.optimizer.nn.LstmCellTemplate;
+import angland.optimizer.nn.RnnCellTemplate;
+import angland.optimizer.var.ParameterStore;
+import angland.optimizer.var.scalar.Scalar;
+
+/**
+ * Computes the loss of an LSTM n-gram predictor on a fixed sequence, and a full training step: the
+ * loss, its gradient and an in-place update of the parameters.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrainingBenchmark {
+
+  @Param({"40"})
+  public int size;
+
+  @Param({"500"})
+  public int vocabulary;
+
+  @Param({"20"})
+  public int samples;
+
+  private RnnCellTemplate template;
+  private ParameterStore<String> store;
+  private List<Integer> sequence;
+
+  @Setup
+  public void setup() {
+    template = new LstmCellTemplate("cell", size, .005, false);
+    store = NGramPredictor.randomizedStore(vocabulary, template);
+    store.setRange(new Range(-1, 1));
+    Random random = new Random(0);
+    sequence = new ArrayList<>();
+    for (int i = 0; i < 12; ++i) {
+      sequence.add(random.nextInt(vocabulary));
+    }
+  }
+
+  @Benchmark
+  public double getLoss() {
+    NGramPredictor predictor = new NGramPredictor(vocabulary, template, store, false);
+    return predictor.getLoss(sequence, samples).value();
+  }
+
+  @Benchmark
+  public double trainingStep() {
+    NGramPredictor predictor = new NGramPredictor(vocabulary, template, store, false);
+    Scalar<String> loss = predictor.getLoss(sequence, samples);
+    Optimizer.step(loss, store, .0001);
+    return loss.value();
+  }
+
+}
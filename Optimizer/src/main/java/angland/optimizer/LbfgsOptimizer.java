@@ -0,0 +1,390 @@
+package angland.optimizer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import angland.optimizer.var.IndexedKey;
+import angland.optimizer.var.scalar.Scalar;
+
+/**
+ * Minimizes an objective with the limited-memory BFGS method, taking the same getResult and
+ * getObjective functions as {@link Optimizer#stepToMinimum}.
+ *
+ * The variables are the keys of the initial context. The last historySize steps and gradient
+ * changes are kept in primitive ring buffers, from which the two-loop recursion builds each search
+ * direction. Steps are chosen by a line search satisfying the strong Wolfe conditions.
+ *
+ * Ranges are handled in the manner of L-BFGS-B, though without its generalized Cauchy point: the
+ * starting point is projected into the ranges, a variable held at a bound by a gradient pointing out
+ * of it is fixed for the iteration, and the line search stops at the first bound the direction
+ * meets.
+ *
+ * @author John Angland
+ *
+ */
+public class LbfgsOptimizer {
+
+  private static final double C1 = 1e-4;
+  private static final double C2 = 0.9;
+  private static final int MAX_LINE_SEARCH = 30;
+
+  private final int historySize;
+  private final int maxIterations;
+  private final double gradientTolerance;
+  private int evaluations;
+
+  public LbfgsOptimizer() {
+    this(10, 1000, 1e-8);
+  }
+
+  /**
+   * @param historySize - the number of correction pairs to keep
+   * @param maxIterations - the most directions to search along
+   * @param gradientTolerance - stop once no free variable has a derivative larger than this
+   */
+  public LbfgsOptimizer(int historySize, int maxIterations, double gradientTolerance) {
+    if (historySize < 1) {
+      throw new IllegalArgumentException("History size must be at least 1.");
+    }
+    this.historySize = historySize;
+    this.maxIterations = maxIterations;
+    this.gradientTolerance = gradientTolerance;
+  }
+
+  /**
+   * Returns the number of objective evaluations used by the most recent minimization.
+   *
+   * @return
+   */
+  public int getEvaluations() {
+    return evaluations;
+  }
+
+  public <Result, VarKey> Solution<Result, VarKey> minimize(
+      Function<Map<IndexedKey<VarKey>, Double>, Result> getResult,
+      Function<Result, Scalar<VarKey>> getObjective, Map<IndexedKey<VarKey>, Range> variableRanges,
+      Map<IndexedKey<VarKey>, Double> initialContext) {
+    Problem<Result, VarKey> problem =
+        new Problem<>(getResult, getObjective, variableRanges, initialContext);
+    evaluations = 0;
+    int n = problem.keys.size();
+    double[][] s = new double[historySize][n];
+    double[][] y = new double[historySize][n];
+    double[] rho = new double[historySize];
+    double[] alpha = new double[historySize];
+    int head = 0;
+    int count = 0;
+
+    Point<Result, VarKey> current = evaluate(problem, problem.project(problem.initial));
+    double[] direction = new double[n];
+    for (int iteration = 0; iteration < maxIterations; ++iteration) {
+      boolean[] fixed = problem.fixed(current);
+      double[] g = current.gradient;
+      double largest = 0;
+      for (int i = 0; i < n; ++i) {
+        if (!fixed[i]) {
+          largest = Math.max(largest, Math.abs(g[i]));
+        }
+      }
+      if (largest <= gradientTolerance) {
+        break;
+      }
+
+      // Two-loop recursion over the free variables.
+      for (int i = 0; i < n; ++i) {
+        direction[i] = fixed[i] ? 0 : -g[i];
+      }
+      for (int k = 0; k < count; ++k) {
+        int j = (head - 1 - k + historySize) % historySize;
+        alpha[j] = rho[j] * dot(s[j], direction, fixed);
+        axpy(-alpha[j], y[j], direction, fixed);
+      }
+      if (count > 0) {
+        int newest = (head - 1 + historySize) % historySize;
+        double gamma = dot(s[newest], y[newest], fixed) / dot(y[newest], y[newest], fixed);
+        if (gamma > 0 && !Double.isInfinite(gamma)) {
+          for (int i = 0; i < n; ++i) {
+            direction[i] *= gamma;
+          }
+        }
+      }
+      for (int k = count - 1; k >= 0; --k) {
+        int j = (head - 1 - k + historySize) % historySize;
+        double beta = rho[j] * dot(y[j], direction, fixed);
+        axpy(alpha[j] - beta, s[j], direction, fixed);
+      }
+      problem.dropBlocked(current.x, direction);
+      double slope = dot(g, direction, fixed);
+      if (!(slope < 0)) {
+        // The history no longer describes the free variables; fall back to steepest descent.
+        count = 0;
+        for (int i = 0; i < n; ++i) {
+          direction[i] = fixed[i] ? 0 : -g[i];
+        }
+        slope = dot(g, direction, fixed);
+      }
+
+      double maxStep = problem.maxStep(current.x, direction);
+      double initialStep = count == 0 ? 1 / Math.sqrt(-slope) : 1;
+      Point<Result, VarKey> next =
+          lineSearch(problem, current, direction, slope, Math.min(initialStep, maxStep), maxStep);
+      if (next == null) {
+        break;
+      }
+
+      double sy = 0;
+      double yy = 0;
+      for (int i = 0; i < n; ++i) {
+        s[head][i] = next.x[i] - current.x[i];
+        y[head][i] = next.gradient[i] - current.gradient[i];
+        sy += s[head][i] * y[head][i];
+        yy += y[head][i] * y[head][i];
+      }
+      // Pairs without positive curvature, possible when a bound cut the step short, are skipped.
+      if (sy > 1e-10 * yy) {
+        rho[head] = 1 / sy;
+        head = (head + 1) % historySize;
+        count = Math.min(count + 1, historySize);
+      }
+      boolean converged =
+          current.value - next.value <= 1e-15 * Math.max(1, Math.abs(current.value));
+      current = next;
+      if (converged) {
+        break;
+      }
+    }
+    return current.solution;
+  }
+
+  /**
+   * Finds a step along direction satisfying the strong Wolfe conditions, following Nocedal and
+   * Wright's algorithms 3.5 and 3.6. A step reaching maxStep is accepted on sufficient decrease
+   * alone, since a bound prevents going further. Returns null if no step lowers the objective.
+   */
+  private <Result, VarKey> Point<Result, VarKey> lineSearch(Problem<Result, VarKey> problem,
+      Point<Result, VarKey> start, double[] direction, double slope, double step, double maxStep) {
+    Point<Result, VarKey> previous = start;
+    double previousStep = 0;
+    for (int i = 0; i < MAX_LINE_SEARCH; ++i) {
+      Point<Result, VarKey> point = evaluate(problem, problem.along(start.x, direction, step));
+      double pointSlope = dot(point.gradient, direction, null);
+      if (point.value > start.value + C1 * step * slope
+          || (i > 0 && point.value >= previous.value)) {
+        return zoom(problem, start, direction, slope, previous, previousStep, point, step);
+      }
+      if (Math.abs(pointSlope) <= -C2 * slope || step >= maxStep) {
+        return point;
+      }
+      if (pointSlope >= 0) {
+        return zoom(problem, start, direction, slope, point, step, previous, previousStep);
+      }
+      previous = point;
+      previousStep = step;
+      step = Math.min(2 * step, maxStep);
+    }
+    return previous == start ? null : previous;
+  }
+
+  private <Result, VarKey> Point<Result, VarKey> zoom(Problem<Result, VarKey> problem,
+      Point<Result, VarKey> start, double[] direction, double slope, Point<Result, VarKey> lo,
+      double loStep, Point<Result, VarKey> hi, double hiStep) {
+    for (int i = 0; i < MAX_LINE_SEARCH; ++i) {
+      double loSlope = dot(lo.gradient, direction, null);
+      double hiSlope = dot(hi.gradient, direction, null);
+      double step = cubicMinimum(loStep, lo.value, loSlope, hiStep, hi.value, hiSlope);
+      double margin = 0.1 * Math.abs(hiStep - loStep);
+      if (Double.isNaN(step) || step < Math.min(loStep, hiStep) + margin
+          || step > Math.max(loStep, hiStep) - margin) {
+        step = (loStep + hiStep) / 2;
+      }
+      Point<Result, VarKey> point = evaluate(problem, problem.along(start.x, direction, step));
+      if (point.value > start.value + C1 * step * slope || point.value >= lo.value) {
+        hi = point;
+        hiStep = step;
+      } else {
+        double pointSlope = dot(point.gradient, direction, null);
+        if (Math.abs(pointSlope) <= -C2 * slope) {
+          return point;
+        }
+        if (pointSlope * (hiStep - loStep) >= 0) {
+          hi = lo;
+          hiStep = loStep;
+        }
+        lo = point;
+        loStep = step;
+      }
+    }
+    return lo == start ? null : lo;
+  }
+
+  /**
+   * Returns the minimizer of the cubic matching the values and slopes at a and b, or NaN if it has
+   * none.
+   */
+  private static double cubicMinimum(double a, double fa, double da, double b, double fb,
+      double db) {
+    double d1 = da + db - 3 * (fa - fb) / (a - b);
+    double radicand = d1 * d1 - da * db;
+    if (radicand < 0) {
+      return Double.NaN;
+    }
+    double d2 = Math.signum(b - a) * Math.sqrt(radicand);
+    return b - (b - a) * (db + d2 - d1) / (db - da + 2 * d2);
+  }
+
+  private <Result, VarKey> Point<Result, VarKey> evaluate(Problem<Result, VarKey> problem,
+      double[] x) {
+    ++evaluations;
+    return problem.evaluate(x);
+  }
+
+  private static double dot(double[] a, double[] b, boolean[] fixed) {
+    double sum = 0;
+    for (int i = 0; i < a.length; ++i) {
+      if (fixed == null || !fixed[i]) {
+        sum += a[i] * b[i];
+      }
+    }
+    return sum;
+  }
+
+  private static void axpy(double a, double[] x, double[] y, boolean[] fixed) {
+    for (int i = 0; i < x.length; ++i) {
+      if (!fixed[i]) {
+        y[i] += a * x[i];
+      }
+    }
+  }
+
+  private static class Point<Result, VarKey> {
+    private final double[] x;
+    private final Solution<Result, VarKey> solution;
+    private final double value;
+    private final double[] gradient;
+
+    Point(double[] x, Solution<Result, VarKey> solution, double[] gradient) {
+      this.x = x;
+      this.solution = solution;
+      this.value = solution.getObjective().value();
+      this.gradient = gradient;
+    }
+  }
+
+  /**
+   * The mapping between contexts and flat arrays of variables, and the ranges of the variables.
+   */
+  private static class Problem<Result, VarKey> {
+    private final Function<Map<IndexedKey<VarKey>, Double>, Result> getResult;
+    private final Function<Result, Scalar<VarKey>> getObjective;
+    private final List<IndexedKey<VarKey>> keys;
+    private final Map<IndexedKey<VarKey>, Integer> indices;
+    private final double[] initial;
+    private final double[] min;
+    private final double[] max;
+
+    Problem(Function<Map<IndexedKey<VarKey>, Double>, Result> getResult,
+        Function<Result, Scalar<VarKey>> getObjective,
+        Map<IndexedKey<VarKey>, Range> variableRanges,
+        Map<IndexedKey<VarKey>, Double> initialContext) {
+      this.getResult = getResult;
+      this.getObjective = getObjective;
+      this.keys = new ArrayList<>(initialContext.keySet());
+      this.indices = new HashMap<>(keys.size() * 2);
+      int n = keys.size();
+      this.initial = new double[n];
+      this.min = new double[n];
+      this.max = new double[n];
+      for (int i = 0; i < n; ++i) {
+        IndexedKey<VarKey> key = keys.get(i);
+        indices.put(key, i);
+        Double value = initialContext.get(key);
+        if (value == null) {
+          throw new RuntimeException("Null value for entry of key " + key);
+        }
+        initial[i] = value;
+        Range range = variableRanges.get(key);
+        min[i] = range == null ? Double.NEGATIVE_INFINITY : range.getMin();
+        max[i] = range == null ? Double.POSITIVE_INFINITY : range.getMax();
+      }
+    }
+
+    Point<Result, VarKey> evaluate(double[] x) {
+      Map<IndexedKey<VarKey>, Double> context = new HashMap<>(keys.size() * 2);
+      for (int i = 0; i < x.length; ++i) {
+        context.put(keys.get(i), x[i]);
+      }
+      Solution<Result, VarKey> solution = new Solution<>(context, getResult, getObjective);
+      double[] gradient = new double[x.length];
+      solution.getObjective().getGradient().forEach((key, derivative) -> {
+        Integer index = indices.get(key);
+        if (index != null) {
+          gradient[index] = derivative;
+        }
+      });
+      if (Double.isNaN(solution.getObjective().value())) {
+        throw new RuntimeException("Objective evaluated to NaN.");
+      }
+      return new Point<>(x, solution, gradient);
+    }
+
+    double[] project(double[] x) {
+      double[] result = new double[x.length];
+      for (int i = 0; i < x.length; ++i) {
+        result[i] = Math.max(min[i], Math.min(max[i], x[i]));
+      }
+      return result;
+    }
+
+    double[] along(double[] x, double[] direction, double step) {
+      double[] result = new double[x.length];
+      for (int i = 0; i < x.length; ++i) {
+        result[i] = x[i] + step * direction[i];
+      }
+      // Only rounding can leave the ranges, since steps stop at the first bound.
+      return project(result);
+    }
+
+    /**
+     * Marks the variables held at a bound by a gradient pointing out of the range.
+     */
+    boolean[] fixed(Point<Result, VarKey> point) {
+      boolean[] fixed = new boolean[point.x.length];
+      for (int i = 0; i < fixed.length; ++i) {
+        fixed[i] =
+            (point.x[i] <= min[i] && point.gradient[i] > 0)
+                || (point.x[i] >= max[i] && point.gradient[i] < 0);
+      }
+      return fixed;
+    }
+
+    /**
+     * Zeroes the components of direction that would leave the ranges immediately.
+     */
+    void dropBlocked(double[] x, double[] direction) {
+      for (int i = 0; i < x.length; ++i) {
+        if ((x[i] <= min[i] && direction[i] < 0) || (x[i] >= max[i] && direction[i] > 0)) {
+          direction[i] = 0;
+        }
+      }
+    }
+
+    /**
+     * Returns the largest step along direction that stays within the ranges.
+     */
+    double maxStep(double[] x, double[] direction) {
+      double step = Double.POSITIVE_INFINITY;
+      for (int i = 0; i < x.length; ++i) {
+        if (direction[i] < 0) {
+          step = Math.min(step, (min[i] - x[i]) / direction[i]);
+        } else if (direction[i] > 0) {
+          step = Math.min(step, (max[i] - x[i]) / direction[i]);
+        }
+      }
+      return step;
+    }
+  }
+
+}
@@ -0,0 +1,218 @@
+package angland.optimizer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import angland.optimizer.var.IndexedKey;
+import angland.optimizer.var.scalar.Scalar;
+import angland.optimizer.vec.MathUtils;
+
+/**
+ * A line search that evaluates a ladder of step sizes (step, step/2, step/4, ...) concurrently on a
+ * ForkJoinPool, instead of trying one step size at a time.
+ *
+ * Candidates are examined from the largest step down. The first acceptable one is taken and
+ * candidates that have not yet started are cancelled, so the result does not depend on which of
+ * the smaller steps happened to finish first, and matches the serial search. A candidate is acceptable if it strictly lowers the objective and meets the
+ * Armijo sufficient decrease condition f(x') <= f(x) + c1 * g . (x' - x), where g is the gradient at
+ * x. If no rung is acceptable, the next iteration starts below the smallest rung tried.
+ *
+ * If a curvature constant c2 is given, the weak Wolfe condition g' . (x' - x) >= c2 * g . (x' - x)
+ * is also checked, which requires the gradient at every candidate. A chosen step that fails it is
+ * too short, and the next ladder starts at twice that step, up to the initial step.
+ *
+ * getResult and getObjective are called from the pool's threads, so they must be thread safe.
+ *
+ * @author John Angland
+ *
+ */
+public class LineSearch {
+
+  private final ForkJoinPool pool;
+  private final int ladderSize;
+  private final double c1;
+  private final double c2;
+  private final List<Integer> evaluationsPerIteration = new ArrayList<>();
+
+  private LineSearch(ForkJoinPool pool, int ladderSize, double c1, double c2) {
+    if (ladderSize < 1) {
+      throw new IllegalArgumentException("Ladder size must be at least 1.");
+    }
+    if (c1 < 0 || c1 >= 1 || (!Double.isNaN(c2) && (c2 <= c1 || c2 >= 1))) {
+      throw new IllegalArgumentException("Must have 0 <= c1 < c2 < 1.");
+    }
+    this.pool = pool;
+    this.ladderSize = ladderSize;
+    this.c1 = c1;
+    this.c2 = c2;
+  }
+
+  /**
+   * Accepts any candidate that strictly lowers the objective, as the serial search does.
+   */
+  public static LineSearch decrease(ForkJoinPool pool, int ladderSize) {
+    return new LineSearch(pool, ladderSize, 0, Double.NaN);
+  }
+
+  public static LineSearch armijo(ForkJoinPool pool, int ladderSize, double c1) {
+    return new LineSearch(pool, ladderSize, c1, Double.NaN);
+  }
+
+  public static LineSearch wolfe(ForkJoinPool pool, int ladderSize, double c1, double c2) {
+    return new LineSearch(pool, ladderSize, c1, c2);
+  }
+
+  /**
+   * Returns the number of objective evaluations each iteration of the most recent search used.
+   *
+   * @return
+   */
+  public synchronized List<Integer> getEvaluationsPerIteration() {
+    return Collections.unmodifiableList(new ArrayList<>(evaluationsPerIteration));
+  }
+
+  /**
+   * The parallel form of {@link Optimizer#stepToMinimum}. Each candidate is the context minus the
+   * gradient times the step, clipped to the variable ranges.
+   */
+  public <Result, VarKey> Solution<Result, VarKey> stepToMinimum(
+      Function<Map<IndexedKey<VarKey>, Double>, Result> getResult,
+      Function<Result, Scalar<VarKey>> getObjective, Map<IndexedKey<VarKey>, Range> variableRanges,
+      Map<IndexedKey<VarKey>, Double> initialContext, double step, double minStep) {
+    return search(getResult, getObjective, variableRanges, initialContext, step, minStep, false);
+  }
+
+  /**
+   * The parallel form of {@link Optimizer#normalizedStepToMinimum}. Each candidate is the context
+   * moved the step's distance against the gradient.
+   */
+  public <Result, VarKey> Solution<Result, VarKey> normalizedStepToMinimum(
+      Function<Map<IndexedKey<VarKey>, Double>, Result> getResult,
+      Function<Result, Scalar<VarKey>> getObjective,
+      Map<IndexedKey<VarKey>, Double> initialContext, double step, double minStep) {
+    return search(getResult, getObjective, Collections.emptyMap(), initialContext, step, minStep,
+        true);
+  }
+
+  private <Result, VarKey> Solution<Result, VarKey> search(
+      Function<Map<IndexedKey<VarKey>, Double>, Result> getResult,
+      Function<Result, Scalar<VarKey>> getObjective, Map<IndexedKey<VarKey>, Range> variableRanges,
+      Map<IndexedKey<VarKey>, Double> initialContext, double step, double minStep,
+      boolean normalized) {
+    synchronized (this) {
+      evaluationsPerIteration.clear();
+    }
+    double maxStep = step;
+    Solution<Result, VarKey> best = new Solution<>(initialContext, getResult, getObjective);
+    while (step > minStep) {
+      Map<IndexedKey<VarKey>, Double> gradient = best.getObjective().getGradient();
+      double norm = MathUtils.l2Norm(gradient);
+      if (norm == 0) {
+        break;
+      }
+      double value = best.getObjective().value();
+      Map<IndexedKey<VarKey>, Double> context = best.getContext();
+      AtomicInteger evaluations = new AtomicInteger();
+      List<ForkJoinTask<Candidate<Result, VarKey>>> ladder = new ArrayList<>(ladderSize);
+      double rung = step;
+      for (int i = 0; i < ladderSize && rung > minStep; ++i, rung /= 2) {
+        double multiplier = normalized ? rung / norm : rung;
+        double candidateStep = rung;
+        ladder.add(pool.submit(() -> {
+          evaluations.incrementAndGet();
+          Map<IndexedKey<VarKey>, Double> moved =
+              move(context, gradient, multiplier, variableRanges);
+          return new Candidate<>(candidateStep, new Solution<>(moved, getResult, getObjective),
+              context, gradient, !Double.isNaN(c2));
+        }));
+      }
+      Candidate<Result, VarKey> chosen = null;
+      for (ForkJoinTask<Candidate<Result, VarKey>> task : ladder) {
+        if (chosen != null) {
+          task.cancel(false);
+          continue;
+        }
+        Candidate<Result, VarKey> candidate = task.join();
+        if (isSufficientDecrease(candidate, value)) {
+          chosen = candidate;
+        }
+      }
+      synchronized (this) {
+        evaluationsPerIteration.add(evaluations.get());
+      }
+      if (chosen == null) {
+        step = rung;
+      } else {
+        best = chosen.solution;
+        boolean tooShort =
+            !Double.isNaN(c2) && chosen.newSlope < c2 * chosen.slope && chosen.step < maxStep;
+        step = tooShort ? Math.min(2 * chosen.step, maxStep) : chosen.step;
+      }
+    }
+    return best;
+  }
+
+  private boolean isSufficientDecrease(Candidate<?, ?> candidate, double value) {
+    return candidate.value() < value && candidate.value() <= value + c1 * candidate.slope;
+  }
+
+  private static <VarKey> Map<IndexedKey<VarKey>, Double> move(
+      Map<IndexedKey<VarKey>, Double> context, Map<IndexedKey<VarKey>, Double> gradient,
+      double multiplier, Map<IndexedKey<VarKey>, Range> variableRanges) {
+    Map<IndexedKey<VarKey>, Double> result = new HashMap<>(context);
+    gradient.forEach((key, derivative) -> {
+      double stepped = result.getOrDefault(key, 0.0) - derivative * multiplier;
+      if (Double.isNaN(stepped)) {
+        throw new RuntimeException("Stepped to a NaN value.");
+      }
+      Range range = variableRanges.get(key);
+      if (range != null) {
+        stepped = Math.max(range.getMin(), Math.min(range.getMax(), stepped));
+      }
+      result.put(key, stepped);
+    });
+    return result;
+  }
+
+  private static <VarKey> double dot(Map<IndexedKey<VarKey>, Double> gradient,
+      Map<IndexedKey<VarKey>, Double> from, Map<IndexedKey<VarKey>, Double> to) {
+    double sum = 0;
+    for (Map.Entry<IndexedKey<VarKey>, Double> entry : gradient.entrySet()) {
+      sum +=
+          entry.getValue()
+              * (to.getOrDefault(entry.getKey(), 0.0) - from.getOrDefault(entry.getKey(), 0.0));
+    }
+    return sum;
+  }
+
+  private static class Candidate<Result, VarKey> {
+    private final double step;
+    private final Solution<Result, VarKey> solution;
+    // The directional derivatives along the move, at its start and, for Wolfe, at its end.
+    private final double slope;
+    private final double newSlope;
+
+    Candidate(double step, Solution<Result, VarKey> solution,
+        Map<IndexedKey<VarKey>, Double> context, Map<IndexedKey<VarKey>, Double> gradient,
+        boolean curvature) {
+      this.step = step;
+      this.solution = solution;
+      this.slope = dot(gradient, context, solution.getContext());
+      this.newSlope =
+          curvature ? dot(solution.getObjective().getGradient(), context, solution.getContext())
+              : Double.NaN;
+    }
+
+    double value() {
+      return solution.getObjective().value();
+    }
+  }
+
+}
@@ -7,7 +7,9 @@ import java.util.function.Function;
 import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
 
+import angland.optimizer.update.UpdateRule;
 import angland.optimizer.var.IndexedKey;
+import angland.optimizer.var.ParameterStore;
 import angland.optimizer.var.scalar.Scalar;
 import angland.optimizer.var.scalar.StreamingSum;
 import angland.optimizer.vec.MathUtils;
@@ -52,6 +54,146 @@ public class Optimizer {
     return result;
   }
 
+  /**
+   * Subtracts the gradient times gradientMultiplier from the store's values in place, clipping each
+   * slot to its range. The store's gradient buffer must be zero on entry, and is zero again on
+   * return.
+   * 
+   * @return the store
+   */
+  public static <VarType> ParameterStore<VarType> step(Scalar<VarType> calculation,
+      ParameterStore<VarType> store, double gradientMultiplier) {
+    if (gradientMultiplier <= 0) {
+      throw new RuntimeException("MaxStepDistance must be greater than 0.");
+    }
+    return step(calculation, store, UpdateRule.sgd(gradientMultiplier));
+  }
+
+  /**
+   * Accumulates the gradient of the calculation into the store and applies the update rule to the
+   * store's values in place, clipping each slot to its range. The store's gradient buffer must be
+   * zero on entry, and is zero again on return.
+   * 
+   * @return the store
+   */
+  public static <VarType> ParameterStore<VarType> step(Scalar<VarType> calculation,
+      ParameterStore<VarType> store, UpdateRule rule) {
+    store.accumulateGradient(calculation, 1);
+    return applyGradient(store, rule);
+  }
+
+  /**
+   * Applies the update rule to the gradient already accumulated in the store, clipping each slot to
+   * its range and zeroing the gradient. Slots that are sparse by column are updated only at their
+   * touched columns.
+   * 
+   * @return the store
+   */
+  public static <VarType> ParameterStore<VarType> applyGradient(ParameterStore<VarType> store,
+      UpdateRule rule) {
+    double[] values = store.getValues();
+    double[] gradient = store.getGradient();
+    rule.beginStep(store.size());
+    for (ParameterStore.Slot<VarType> slot : store.getSlots()) {
+      if (slot.isSparseColumns()) {
+        applySparseGradient(values, gradient, slot, rule);
+        continue;
+      }
+      int end = slot.getOffset() + slot.getLength();
+      rule.update(values, gradient, slot.getOffset(), end);
+      Range range = slot.getRange();
+      double min = range == null ? Double.NEGATIVE_INFINITY : range.getMin();
+      double max = range == null ? Double.POSITIVE_INFINITY : range.getMax();
+      for (int i = slot.getOffset(); i < end; ++i) {
+        clip(values, gradient, i, min, max);
+      }
+    }
+    return store;
+  }
+
+  /**
+   * Updates only the touched columns of a sparse slot, so the cost scales with the number of
+   * touched columns rather than with the slot's width.
+   */
+  private static <VarType> void applySparseGradient(double[] values, double[] gradient,
+      ParameterStore.Slot<VarType> slot, UpdateRule rule) {
+    int[] columns = slot.getTouchedColumns();
+    int[] offsets = new int[columns.length * slot.getHeight()];
+    int count = 0;
+    for (int column : columns) {
+      for (int row = 0; row < slot.getHeight(); ++row) {
+        offsets[count++] = slot.getOffset() + row * slot.getWidth() + column;
+      }
+    }
+    Range range = slot.getRange();
+    double min = range == null ? Double.NEGATIVE_INFINITY : range.getMin();
+    double max = range == null ? Double.POSITIVE_INFINITY : range.getMax();
+    rule.update(values, gradient, offsets, count, min, max);
+    for (int i = 0; i < count; ++i) {
+      clip(values, gradient, offsets[i], min, max);
+    }
+    slot.clearTouchedColumns();
+  }
+
+  private static void clip(double[] values, double[] gradient, int i, double min, double max) {
+    double stepped = values[i];
+    gradient[i] = 0;
+    if (Double.isNaN(stepped)) {
+      throw new RuntimeException("Stepped to a NaN value.");
+    }
+    if (stepped < min) {
+      values[i] = min;
+    } else if (stepped > max) {
+      values[i] = max;
+    }
+  }
+
+  /**
+   * Subtracts learningRate times the gradient of the calculation from the store's values in place,
+   * touching only the values the calculation depends on and clipping each to its slot's range. The
+   * store's gradient buffer is not used.
+   * 
+   * Writes are not synchronized, so this may be called by many threads at once on the same store,
+   * as in Hogwild-style asynchronous SGD. Concurrent updates to the same value may occasionally be
+   * lost, which such training tolerates when updates are sparse.
+   * 
+   * @return the store
+   */
+  public static <VarType> ParameterStore<VarType> stepAsync(Scalar<VarType> calculation,
+      ParameterStore<VarType> store, double learningRate) {
+    if (learningRate <= 0) {
+      throw new IllegalArgumentException("Learning rate must be greater than 0.");
+    }
+    if (store.size() == 0) {
+      return store;
+    }
+    double[] values = store.getValues();
+    // Derivatives of a matrix arrive in offset order, so the last slot is usually the right one.
+    @SuppressWarnings("unchecked")
+    ParameterStore.Slot<VarType>[] lastSlot = new ParameterStore.Slot[] {store.getSlotAt(0)};
+    store.sweep(calculation, learningRate, (offset, derivative) -> {
+      ParameterStore.Slot<VarType> slot = lastSlot[0];
+      if (offset < slot.getOffset() || offset >= slot.getOffset() + slot.getLength()) {
+        slot = store.getSlotAt(offset);
+        lastSlot[0] = slot;
+      }
+      double stepped = values[offset] - derivative;
+      if (Double.isNaN(stepped)) {
+        throw new RuntimeException("Stepped to a NaN value.");
+      }
+      Range range = slot.getRange();
+      if (range != null) {
+        if (stepped < range.getMin()) {
+          stepped = range.getMin();
+        } else if (stepped > range.getMax()) {
+          stepped = range.getMax();
+        }
+      }
+      values[offset] = stepped;
+    });
+    return store;
+  }
+
   public static <Result, VarType> Map<IndexedKey<VarType>, Double> stepNormalized(
       Scalar<VarType> calculation, Map<IndexedKey<VarType>, Double> context, double stepDistance) {
     Map<IndexedKey<VarType>, Double> result =
@@ -131,6 +273,20 @@ public class Optimizer {
       List<Function<Map<IndexedKey<VarKey>, Double>, Scalar<VarKey>>> zeroMinimumConstraints,
       UnaryOperator<Scalar<VarKey>> penaltyTransform, Map<IndexedKey<VarKey>, Double> initialContext,
       double step, double minStep, double exceedanceTolerance) {
+    return optimizeWithConstraints(getResult, getObjective, zeroMinimumConstraints,
+        penaltyTransform, initialContext, step, minStep, exceedanceTolerance, null);
+  }
+
+  /**
+   * As above, but each penalized problem is minimized with the given line search. If lineSearch is
+   * null, step sizes are tried one at a time.
+   */
+  public static <Result, VarKey> Solution<Result, VarKey> optimizeWithConstraints(
+      Function<Map<IndexedKey<VarKey>, Double>, Result> getResult,
+      Function<Result, Scalar<VarKey>> getObjective,
+      List<Function<Map<IndexedKey<VarKey>, Double>, Scalar<VarKey>>> zeroMinimumConstraints,
+      UnaryOperator<Scalar<VarKey>> penaltyTransform, Map<IndexedKey<VarKey>, Double> initialContext,
+      double step, double minStep, double exceedanceTolerance, LineSearch lineSearch) {
     Scalar<VarKey> penaltyMultiplier = Scalar.constant(1.0);
     Scalar<VarKey> zero = Scalar.constant(0);
     Scalar<VarKey> minusOne = Scalar.constant(-1);
@@ -156,8 +312,10 @@ public class Optimizer {
           };
 
       penaltySolution =
-          normalizedStepToMinimum(getConstrainedSolution, getPenalizedObjective, currentContext,
-              step, minStep);
+          lineSearch == null ? normalizedStepToMinimum(getConstrainedSolution,
+              getPenalizedObjective, currentContext, step, minStep) : lineSearch
+              .normalizedStepToMinimum(getConstrainedSolution, getPenalizedObjective,
+                  currentContext, step, minStep);
       unweightedPenalty = penaltySolution.getResult().unweightedShortfallSum;
       currentContext = penaltySolution.getContext();
       penaltyMultiplier = penaltyMultiplier.times(Scalar.constant(10));
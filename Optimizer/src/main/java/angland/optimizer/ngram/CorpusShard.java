@@ -0,0 +1,146 @@
+package angland.optimizer.ngram;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A read-only, memory-mapped file of token sequences, written by {@link CorpusShardWriter}.
+ * 
+ * A shard is a little-endian header (magic, version, sequence count, token count and the byte
+ * offset of the index), followed by every sequence's token ids as one run of ints, followed by an
+ * index of sequenceCount + 1 longs giving the position of each sequence in the run. Tokens are
+ * read straight from the mapping, so a corpus may be much larger than the heap.
+ * 
+ * @author John Angland
+ *
+ */
+public class CorpusShard {
+
+  public static final String EXTENSION = ".shard";
+
+  static final int MAGIC = 0x4A4F5331;
+  static final int VERSION = 1;
+  static final int HEADER_BYTES = 32;
+
+  private final File file;
+  private final int sequenceCount;
+  private final IntBuffer tokens;
+  private final LongBuffer index;
+
+  private CorpusShard(File file, int sequenceCount, IntBuffer tokens, LongBuffer index) {
+    this.file = file;
+    this.sequenceCount = sequenceCount;
+    this.tokens = tokens;
+    this.index = index;
+  }
+
+  public static CorpusShard open(File file) {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      mapped.order(ByteOrder.LITTLE_ENDIAN);
+      if (mapped.getInt() != MAGIC) {
+        throw new RuntimeException(file + " is not a corpus shard.");
+      }
+      int version = mapped.getInt();
+      if (version != VERSION) {
+        throw new RuntimeException("Unsupported shard version " + version + " in " + file);
+      }
+      int sequenceCount = mapped.getInt();
+      mapped.getInt();
+      long tokenCount = mapped.getLong();
+      long indexOffset = mapped.getLong();
+      if (indexOffset != HEADER_BYTES + tokenCount * 4
+          || channel.size() != indexOffset + (sequenceCount + 1L) * 8) {
+        throw new RuntimeException("Corrupt shard " + file);
+      }
+      mapped.position(HEADER_BYTES);
+      mapped.limit((int) indexOffset);
+      IntBuffer tokens = mapped.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+      mapped.limit(mapped.capacity());
+      mapped.position((int) indexOffset);
+      LongBuffer index = mapped.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+      return new CorpusShard(file, sequenceCount, tokens, index);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Returns the number of sequences in the shard.
+   * 
+   * @return
+   */
+  public int size() {
+    return sequenceCount;
+  }
+
+  public long getTokenCount() {
+    return tokens.capacity();
+  }
+
+  public int length(int sequence) {
+    return (int) (index.get(sequence + 1) - index.get(sequence));
+  }
+
+  /**
+   * Returns the token at the given position of the given sequence, without boxing.
+   * 
+   * @param sequence
+   * @param position
+   * @return
+   */
+  public int get(int sequence, int position) {
+    return tokens.get((int) index.get(sequence) + position);
+  }
+
+  /**
+   * Returns a view of the sequence that reads its tokens from the mapping on each access.
+   * 
+   * @param sequence
+   * @return
+   */
+  public List<Integer> getSequence(int sequence) {
+    if (sequence < 0 || sequence >= sequenceCount) {
+      throw new IndexOutOfBoundsException("Sequence " + sequence + " of " + sequenceCount);
+    }
+    return new SequenceView((int) index.get(sequence), length(sequence));
+  }
+
+  private class SequenceView extends AbstractList<Integer> implements RandomAccess {
+
+    private final int start;
+    private final int length;
+
+    private SequenceView(int start, int length) {
+      this.start = start;
+      this.length = length;
+    }
+
+    @Override
+    public Integer get(int position) {
+      if (position < 0 || position >= length) {
+        throw new IndexOutOfBoundsException("Position " + position + " of " + length);
+      }
+      return tokens.get(start + position);
+    }
+
+    @Override
+    public int size() {
+      return length;
+    }
+  }
+
+}
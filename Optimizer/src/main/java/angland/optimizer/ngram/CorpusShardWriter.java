@@ -0,0 +1,169 @@
+package angland.optimizer.ngram;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Streams token sequences into {@link CorpusShard} files in a directory, starting a new shard once
+ * the current one holds maxTokensPerShard tokens. Tokens are written as they are added, so only
+ * the index of the current shard is held in memory. Each shard is written to a temporary file and
+ * renamed once complete.
+ * 
+ * @author John Angland
+ *
+ */
+public class CorpusShardWriter implements Closeable {
+
+  /**
+   * 2^28 tokens, a 1 GB shard.
+   */
+  public static final long DEFAULT_TOKENS_PER_SHARD = 1L << 28;
+
+  private static final int WRITE_CHUNK = 1 << 16;
+
+  private final File directory;
+  private final String prefix;
+  private final long maxTokensPerShard;
+  private final List<File> shards = new ArrayList<>();
+  private final ByteBuffer chunk = ByteBuffer.allocateDirect(WRITE_CHUNK * 4).order(
+      ByteOrder.LITTLE_ENDIAN);
+
+  private FileChannel channel;
+  private File tmp;
+  private long[] index = new long[1024];
+  private int sequenceCount;
+  private long tokenCount;
+
+  public CorpusShardWriter(File directory, String prefix) {
+    this(directory, prefix, DEFAULT_TOKENS_PER_SHARD);
+  }
+
+  public CorpusShardWriter(File directory, String prefix, long maxTokensPerShard) {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new RuntimeException("Could not create " + directory);
+    }
+    this.directory = directory;
+    this.prefix = prefix;
+    this.maxTokensPerShard = maxTokensPerShard;
+  }
+
+  public void add(List<Integer> sequence) {
+    int[] tokens = new int[sequence.size()];
+    for (int i = 0; i < tokens.length; ++i) {
+      tokens[i] = sequence.get(i);
+    }
+    add(tokens, tokens.length);
+  }
+
+  /**
+   * Appends the first length tokens of the array as one sequence.
+   * 
+   * @param tokens
+   * @param length
+   */
+  public void add(int[] tokens, int length) {
+    try {
+      if (channel != null && tokenCount + length > maxTokensPerShard && sequenceCount > 0) {
+        finishShard();
+      }
+      if (channel == null) {
+        startShard();
+      }
+      for (int i = 0; i < length; ++i) {
+        if (!chunk.hasRemaining()) {
+          flushChunk();
+        }
+        chunk.putInt(tokens[i]);
+      }
+      tokenCount += length;
+      if (sequenceCount + 2 > index.length) {
+        index = Arrays.copyOf(index, index.length * 2);
+      }
+      index[++sequenceCount] = tokenCount;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Returns the shards completed so far, in order.
+   * 
+   * @return
+   */
+  public List<File> getShards() {
+    return Collections.unmodifiableList(shards);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (channel != null) {
+      finishShard();
+    }
+  }
+
+  private void startShard() throws IOException {
+    tmp = new File(directory, shardName(shards.size()) + ".tmp");
+    channel =
+        FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+    channel.position(CorpusShard.HEADER_BYTES);
+    chunk.clear();
+    sequenceCount = 0;
+    tokenCount = 0;
+  }
+
+  private void finishShard() throws IOException {
+    flushChunk();
+    long indexOffset = CorpusShard.HEADER_BYTES + tokenCount * 4;
+    ByteBuffer indexBuffer =
+        ByteBuffer.allocate((sequenceCount + 1) * 8).order(ByteOrder.LITTLE_ENDIAN);
+    indexBuffer.asLongBuffer().put(index, 0, sequenceCount + 1);
+    writeFully(indexBuffer, indexOffset);
+    ByteBuffer header =
+        ByteBuffer.allocate(CorpusShard.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(CorpusShard.MAGIC);
+    header.putInt(CorpusShard.VERSION);
+    header.putInt(sequenceCount);
+    header.putInt(0);
+    header.putLong(tokenCount);
+    header.putLong(indexOffset);
+    header.flip();
+    writeFully(header, 0);
+    channel.force(true);
+    channel.close();
+    channel = null;
+    File shard = new File(directory, shardName(shards.size()));
+    Files.move(tmp.toPath(), shard.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    shards.add(shard);
+  }
+
+  private void flushChunk() throws IOException {
+    chunk.flip();
+    while (chunk.hasRemaining()) {
+      channel.write(chunk);
+    }
+    chunk.clear();
+  }
+
+  private void writeFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+
+  private String shardName(int shard) {
+    return String.format("%s-%05d%s", prefix, shard, CorpusShard.EXTENSION);
+  }
+
+}
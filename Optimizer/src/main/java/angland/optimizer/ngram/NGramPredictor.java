@@ -1,20 +1,30 @@
 package angland.optimizer.ngram;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.function.Consumer;
+import java.util.concurrent.Future;
 import java.util.stream.Stream;
 
+import angland.optimizer.nn.BatchedLstmCell;
 import angland.optimizer.nn.RnnCell;
 import angland.optimizer.nn.RnnCellTemplate;
 import angland.optimizer.nn.RnnStateTuple;
+import angland.optimizer.nn.RnnStateValues;
+import angland.optimizer.sample.Sampler;
+import angland.optimizer.var.GradientAccumulator;
 import angland.optimizer.var.IndexedKey;
-import angland.optimizer.var.matrix.ArrayMatrixValue;
+import angland.optimizer.var.ParameterStore;
+import angland.optimizer.var.matrix.DenseMatrix;
 import angland.optimizer.var.matrix.Matrix;
 import angland.optimizer.var.scalar.MappedDerivativeScalar;
 import angland.optimizer.var.scalar.Scalar;
@@ -25,7 +35,14 @@ public class NGramPredictor {
   private final Map<IndexedKey<String>, Double> context;
   private final Matrix<String> embedding;
   private final Matrix<String> responseBias;
-  private final RnnCell<String> cell;
+  private RnnCell<String> cell;
+  private final RnnCellTemplate cellTemplate;
+  private final boolean constant;
+  private final Sampler sampler;
+  // The batched cell used by getMiniBatchLoss, created on first use.
+  private RnnCell<String> batchedCell;
+  private volatile double[] embeddingValues;
+  private volatile double[] responseBiasValues;
 
 
   public static Map<IndexedKey<String>, Double> randomizedContext(int vocabulary,
@@ -35,6 +52,22 @@ public class NGramPredictor {
     return map;
   }
 
+  public static ParameterStore<String> randomizedStore(int vocabulary,
+      RnnCellTemplate cellTemplate) {
+    return ParameterStore.fromKeys(getKeys(vocabulary, cellTemplate), k -> Math.random() * 2 - 1);
+  }
+
+  /**
+   * Marks the embedding and response bias slots of the store as sparse by column, so that each
+   * update touches only the columns of the tokens in its batch and their sampled negatives.
+   * 
+   * @param store
+   */
+  public static void setSparseColumns(ParameterStore<String> store) {
+    store.getSlot("embedding").setSparseColumns(true);
+    store.getSlot("responseBias").setSparseColumns(true);
+  }
+
   public static Stream<IndexedKey<String>> getKeys(int vocabulary, RnnCellTemplate cellTemplate) {
     return Stream.concat(
         IndexedKey.getAllMatrixKeys("embedding", cellTemplate.getSize(), vocabulary).stream(),
@@ -44,53 +77,317 @@ public class NGramPredictor {
 
   public NGramPredictor(int vocabulary, RnnCellTemplate cellTemplate,
       Map<IndexedKey<String>, Double> context, boolean constant) {
-    this.embedding =
-        Matrix.varOrConst("embedding", cellTemplate.getSize(), vocabulary, context, constant);
-    this.responseBias = Matrix.varOrConst("responseBias", 1, vocabulary, context, constant);
+    this(vocabulary, cellTemplate, context, constant, Sampler.uniform(vocabulary));
+  }
+
+  /**
+   * Creates a predictor whose sampled losses draw their negative tokens from the given sampler.
+   */
+  public NGramPredictor(int vocabulary, RnnCellTemplate cellTemplate,
+      Map<IndexedKey<String>, Double> context, boolean constant, Sampler sampler) {
+    if (sampler.size() != vocabulary) {
+      throw new IllegalArgumentException("Sampler size " + sampler.size()
+          + " does not match vocabulary " + vocabulary);
+    }
+    this.sampler = sampler;
+    if (context instanceof ParameterStore && !constant) {
+      // Views, so that a batch allocates only for the columns it reads.
+      ParameterStore<String> store = (ParameterStore<String>) context;
+      this.embedding = Matrix.view("embedding", cellTemplate.getSize(), vocabulary, store);
+      this.responseBias = Matrix.view("responseBias", 1, vocabulary, store);
+    } else {
+      this.embedding =
+          Matrix.varOrConst("embedding", cellTemplate.getSize(), vocabulary, context, constant);
+      this.responseBias = Matrix.varOrConst("responseBias", 1, vocabulary, context, constant);
+    }
     this.cell = cellTemplate.create(context);
     this.context = context;
+    this.cellTemplate = cellTemplate;
+    this.constant = constant;
   }
 
   public Map<IndexedKey<String>, Double> getContext() {
     return context;
   }
 
+  /**
+   * Brings a variable predictor over a ParameterStore up to date after the store's values have
+   * been updated in place, so that one predictor can serve a whole training run. The embedding and
+   * response bias are views of the store and need nothing. A cell built from dense layers copies
+   * its parameters from the store in place (see RnnCell.reload), so nothing is allocated; other
+   * cells, and the batched cell, are recreated from the store. Cached values are dropped. Must not
+   * be called while a loss is being computed.
+   */
+  public synchronized void refresh() {
+    if (!(context instanceof ParameterStore) || constant) {
+      throw new IllegalStateException("Only variable predictors over a ParameterStore refresh.");
+    }
+    ParameterStore<String> store = (ParameterStore<String>) context;
+    if (!cell.reload(store)) {
+      this.cell = cellTemplate.create(store);
+    }
+    embeddingValues = null;
+    responseBiasValues = null;
+    if (batchedCell != null) {
+      batchedCell = cellTemplate.createBatched(store);
+    }
+  }
+
 
   public List<Integer> predictNext(List<Integer> inputInts, int predictTokens, int unkIdx) {
-    Matrix<String> hiddenState = Matrix.repeat(Scalar.constant(0), cell.getSize(), 1);
-    Matrix<String> lastOutput = Matrix.repeat(Scalar.constant(0), cell.getSize(), 1);
+    RnnStateValues state = initialState();
     for (int i : inputInts) {
-      Matrix<String> selectedCol = embedding.getColumn(Scalar.constant(i));
-
-      RnnStateTuple<String> inputState = new RnnStateTuple<String>(hiddenState, selectedCol);
-      RnnStateTuple<String> outputState = cell.apply(inputState).toConstant();
-      hiddenState = outputState.getHiddenState();
-      lastOutput = outputState.getExposedState();
+      state = advance(state, i);
     }
-    ArrayMatrixValue.Builder<String> unkRemoverBuilder =
-        new ArrayMatrixValue.Builder<>(embedding.getWidth(), 1);
-    for (int i = 0; i < embedding.getWidth(); ++i) {
-      unkRemoverBuilder.set(i, 0, i == unkIdx ? Scalar.constant(0) : Scalar.constant(1));
+    return predictFrom(state, predictTokens, unkIdx);
+  }
+
+  /**
+   * Returns the state before any token has been read.
+   * 
+   * @return
+   */
+  public RnnStateValues initialState() {
+    return RnnStateValues.zeros(cell.getSize());
+  }
+
+  /**
+   * Reads one token, returning the state that follows it. Evaluated on plain values, with no
+   * derivatives.
+   * 
+   * @param state
+   * @param token
+   * @return
+   */
+  public RnnStateValues advance(RnnStateValues state, int token) {
+    double[] embeddingValues = getEmbeddingValues();
+    int vocabulary = embedding.getWidth();
+    double[] selectedCol = new double[cell.getSize()];
+    for (int i = 0; i < selectedCol.length; ++i) {
+      selectedCol[i] = embeddingValues[i * vocabulary + token];
     }
-    ArrayMatrixValue<String> unkRemover = unkRemoverBuilder.build();
+    return cell.applyValues(new RnnStateValues(state.getHiddenState(), selectedCol));
+  }
+
+  /**
+   * Predicts the token following the given state, and then predictTokens further tokens by feeding
+   * the cell's output back into it. Evaluated on plain values, with no derivatives.
+   * 
+   * @param state
+   * @param predictTokens
+   * @param unkIdx - a token that is never preferred over a positive activation, or -1
+   * @return
+   */
+  public List<Integer> predictFrom(RnnStateValues state, int predictTokens, int unkIdx) {
     List<Integer> outputs = new ArrayList<>();
-    Consumer<Matrix<String>> addOutput =
-        state -> {
-          Matrix<String> tokenActivation =
-              embedding.transpose().times(state).pointwiseMultiply(unkRemover);
-          outputs.add((int) tokenActivation.softmax().maxIdx().value());
-        };
-    addOutput.accept(lastOutput);
-    RnnStateTuple<String> lastState = new RnnStateTuple<>(hiddenState, lastOutput);
+    outputs.add(mostLikely(state.getExposedState(), unkIdx));
+    RnnStateValues lastState = state;
     for (int i = 0; i < predictTokens; ++i) {
-      RnnStateTuple<String> nextState = cell.apply(lastState);
-      lastState = nextState.toConstant();
-      addOutput.accept(lastState.getExposedState());
+      lastState = cell.applyValues(lastState);
+      outputs.add(mostLikely(lastState.getExposedState(), unkIdx));
     }
-
     return outputs;
   }
 
+  /**
+   * Returns the token whose embedding has the largest product with the output. The unknown token's
+   * activation is fixed at zero.
+   */
+  private int mostLikely(double[] output, int unkIdx) {
+    double[] activation = activations(output);
+    if (unkIdx >= 0) {
+      activation[unkIdx] = 0;
+    }
+    int maxIdx = 0;
+    for (int j = 1; j < activation.length; ++j) {
+      if (activation[j] > activation[maxIdx]) {
+        maxIdx = j;
+      }
+    }
+    return maxIdx;
+  }
+
+  /**
+   * Returns the product of every token's embedding with the output.
+   */
+  private double[] activations(double[] output) {
+    double[] embeddingValues = getEmbeddingValues();
+    int vocabulary = embedding.getWidth();
+    double[] activation = new double[vocabulary];
+    for (int i = 0; i < output.length; ++i) {
+      int offset = i * vocabulary;
+      for (int j = 0; j < vocabulary; ++j) {
+        activation[j] += embeddingValues[offset + j] * output[i];
+      }
+    }
+    return activation;
+  }
+
+  /**
+   * Returns the k most probable tokens to follow the given state, most probable first. The
+   * probabilities are the softmax of the embedding products plus the response bias over the whole
+   * vocabulary, the distribution getLoss trains, and the top k are found with a heap of size k
+   * rather than by sorting.
+   * 
+   * @param state
+   * @param k
+   * @param unkIdx - a token that is never returned, or -1
+   * @return
+   */
+  public List<TokenProbability> topK(RnnStateValues state, int k, int unkIdx) {
+    if (k < 1) {
+      throw new IllegalArgumentException("k must be at least 1.");
+    }
+    double[] logits = logits(state.getExposedState());
+    double logNormalizer = logNormalizer(logits, unkIdx);
+    List<TokenProbability> result = new ArrayList<>();
+    for (int token : topIndices(logits, k, unkIdx)) {
+      result.add(new TokenProbability(token, Math.exp(logits[token] - logNormalizer)));
+    }
+    return result;
+  }
+
+  /**
+   * Finds the length-token continuations of the given state with the highest total log
+   * probability, keeping beamWidth hypotheses at each step. Every hypothesis feeds the embedding of
+   * its last token back into the cell, as in training. Only the top beamWidth tokens of each
+   * hypothesis are candidates, and the next state is computed only for hypotheses that survive, so
+   * hypotheses with a common prefix share its states.
+   * 
+   * @param state
+   * @param length
+   * @param beamWidth
+   * @param unkIdx - a token that is never predicted, or -1
+   * @return up to beamWidth sequences, most probable first
+   */
+  public List<ScoredSequence> beamSearch(RnnStateValues state, int length, int beamWidth,
+      int unkIdx) {
+    if (beamWidth < 1) {
+      throw new IllegalArgumentException("Beam width must be at least 1.");
+    }
+    List<Hypothesis> beam = new ArrayList<>();
+    beam.add(new Hypothesis(null, -1, 0, state));
+    for (int step = 0; step < length; ++step) {
+      PriorityQueue<Hypothesis> candidates =
+          new PriorityQueue<>(Comparator.comparingDouble(h -> h.logProbability));
+      for (Hypothesis parent : beam) {
+        double[] logits = logits(parent.state.getExposedState());
+        double logNormalizer = logNormalizer(logits, unkIdx);
+        for (int token : topIndices(logits, beamWidth, unkIdx)) {
+          double logProbability = parent.logProbability + logits[token] - logNormalizer;
+          if (candidates.size() < beamWidth) {
+            candidates.add(new Hypothesis(parent, token, logProbability, null));
+          } else if (logProbability > candidates.peek().logProbability) {
+            candidates.poll();
+            candidates.add(new Hypothesis(parent, token, logProbability, null));
+          }
+        }
+      }
+      beam = new ArrayList<>();
+      for (Hypothesis candidate : candidates) {
+        beam.add(step == length - 1 ? candidate : new Hypothesis(candidate.parent, candidate.token,
+            candidate.logProbability, advance(candidate.parent.state, candidate.token)));
+      }
+    }
+    beam.sort(Comparator.comparingDouble((Hypothesis h) -> h.logProbability).reversed());
+    List<ScoredSequence> result = new ArrayList<>();
+    for (Hypothesis hypothesis : beam) {
+      result.add(new ScoredSequence(hypothesis.getTokens(), hypothesis.logProbability));
+    }
+    return result;
+  }
+
+  /**
+   * A node in the tree of beam search hypotheses. Each holds only its last token and links to the
+   * hypothesis it extends.
+   */
+  private static class Hypothesis {
+    private final Hypothesis parent;
+    private final int token;
+    private final double logProbability;
+    private final RnnStateValues state;
+
+    private Hypothesis(Hypothesis parent, int token, double logProbability, RnnStateValues state) {
+      this.parent = parent;
+      this.token = token;
+      this.logProbability = logProbability;
+      this.state = state;
+    }
+
+    private List<Integer> getTokens() {
+      List<Integer> tokens = new ArrayList<>();
+      for (Hypothesis h = this; h.parent != null; h = h.parent) {
+        tokens.add(h.token);
+      }
+      Collections.reverse(tokens);
+      return tokens;
+    }
+  }
+
+  private double[] logits(double[] output) {
+    double[] logits = activations(output);
+    double[] biasValues = getResponseBiasValues();
+    for (int j = 0; j < logits.length; ++j) {
+      logits[j] += biasValues[j];
+    }
+    return logits;
+  }
+
+  /**
+   * Returns the log of the softmax denominator over every token but unkIdx.
+   */
+  private static double logNormalizer(double[] logits, int unkIdx) {
+    double max = Double.NEGATIVE_INFINITY;
+    for (int j = 0; j < logits.length; ++j) {
+      if (j != unkIdx && logits[j] > max) {
+        max = logits[j];
+      }
+    }
+    double sum = 0;
+    for (int j = 0; j < logits.length; ++j) {
+      if (j != unkIdx) {
+        sum += Math.exp(logits[j] - max);
+      }
+    }
+    return max + Math.log(sum);
+  }
+
+  /**
+   * Returns the indices of the k largest logits, largest first, using a min-heap of size k.
+   */
+  private static List<Integer> topIndices(double[] logits, int k, int unkIdx) {
+    PriorityQueue<Integer> heap =
+        new PriorityQueue<>(k + 1, Comparator.comparingDouble(j -> logits[j]));
+    for (int j = 0; j < logits.length; ++j) {
+      if (j == unkIdx) {
+        continue;
+      }
+      if (heap.size() < k) {
+        heap.add(j);
+      } else if (logits[j] > logits[heap.peek()]) {
+        heap.poll();
+        heap.add(j);
+      }
+    }
+    List<Integer> result = new ArrayList<>(heap);
+    result.sort(Comparator.comparingDouble((Integer j) -> logits[j]).reversed());
+    return result;
+  }
+
+  private double[] getResponseBiasValues() {
+    if (responseBiasValues == null) {
+      responseBiasValues = DenseMatrix.of(responseBias.toConstant()).getValues();
+    }
+    return responseBiasValues;
+  }
+
+  private double[] getEmbeddingValues() {
+    if (embeddingValues == null) {
+      embeddingValues = DenseMatrix.of(embedding.toConstant()).getValues();
+    }
+    return embeddingValues;
+  }
+
   public Scalar<String> getLoss(List<Integer> inputInts, int samples) {
     if (inputInts.size() < 2) {
       throw new IllegalArgumentException("Can only compute loss on at least two elements.");
@@ -98,43 +395,146 @@ public class NGramPredictor {
     List<Scalar<String>> lossComponents = new ArrayList<>();
     Matrix<String> hiddenState = Matrix.repeat(Scalar.constant(0), cell.getSize(), 1);
     for (int i = 0; i < inputInts.size() - 1; ++i) {
-      int input = inputInts.get(i);
-      int output = inputInts.get(i + 1);
-      Matrix<String> selectedCol = embedding.getColumn(Scalar.constant(input));
-      RnnStateTuple<String> inputState = new RnnStateTuple<>(hiddenState, selectedCol);
-      RnnStateTuple<String> outputState = cell.apply(inputState);
+      RnnStateTuple<String> outputState = step(hiddenState, inputInts.get(i));
       hiddenState = outputState.getHiddenState();
-      List<Integer> selectedIndices = Matrix.selectAndSample(embedding.getWidth(), samples, output);
-      Matrix<String> sampledEmbedding = embedding.getColumns(selectedIndices).transpose();
-      Matrix<String> sampledBias = responseBias.getColumns(selectedIndices);
-      Matrix<String> softmaxInput =
-          sampledEmbedding.streamingTimes(outputState.getExposedState().transform(Scalar::cache))
-              .plus(sampledBias.transpose());
-      Scalar<String> max = softmaxInput.get(0, 0);
-      for (int j = 1; j < softmaxInput.getHeight(); ++j) {
-        if (softmaxInput.get(j, 0).value() > max.value()) {
-          max = softmaxInput.get(j, 0);
-        }
-      }
-      Scalar<String> maxConstant = max.toConstant();
-      softmaxInput = softmaxInput.transform(x -> x.minus(maxConstant).exp());
-      Scalar<String> softmaxNum = softmaxInput.get(0, 0);
-      Scalar<String> softmaxDenom = softmaxInput.elementSumStream().cache();
-      Scalar<String> epsilon = Scalar.constant(.0001);
-      Scalar<String> softmaxOfCorrectIdx =
-          softmaxNum.divide(softmaxDenom).plus(epsilon).ln().cache();
-      lossComponents.add(softmaxOfCorrectIdx);
+      lossComponents.add(logProbability(outputState, inputInts.get(i + 1), samples));
     }
     return new StreamingSum<>(lossComponents).cache().times(Scalar.constant(-1))
         .divide(Scalar.constant(inputInts.size() - 1));
   }
 
+  /**
+   * Draws a set of negatives for getLoss(inputInts, negatives) to share, samples + 1 distinct
+   * tokens from this predictor's sampler.
+   * 
+   * @param samples
+   * @return
+   */
+  public int[] sampleNegatives(int samples) {
+    return sampler.sample(samples + 1, -1);
+  }
+
+  /**
+   * As getLoss, but every token is scored against the same negatives rather than a fresh sample.
+   * Each token uses the first negatives.length - 1 of them that differ from it, so every softmax
+   * has the same size. The negatives' embedding columns are gathered once for the whole sequence,
+   * and each step scores all of them with a single product.
+   * 
+   * @param inputInts
+   * @param negatives - from sampleNegatives
+   * @return
+   */
+  public Scalar<String> getLoss(List<Integer> inputInts, int[] negatives) {
+    return getLoss(inputInts, negatives, gatherCandidates(negatives).transpose());
+  }
+
+  /**
+   * As getLoss(inputInts, negatives), with the negatives' candidate rows already gathered, so a
+   * batch can share them.
+   */
+  private Scalar<String> getLoss(List<Integer> inputInts, int[] negatives,
+      DenseMatrix<String> negativeCandidates) {
+    if (inputInts.size() < 2) {
+      throw new IllegalArgumentException("Can only compute loss on at least two elements.");
+    }
+    List<Scalar<String>> lossComponents = new ArrayList<>();
+    Matrix<String> hiddenState = Matrix.repeat(Scalar.constant(0), cell.getSize(), 1);
+    for (int i = 0; i < inputInts.size() - 1; ++i) {
+      RnnStateTuple<String> outputState = step(hiddenState, inputInts.get(i));
+      hiddenState = outputState.getHiddenState();
+      int[] output = {inputInts.get(i + 1)};
+      DenseMatrix<String> candidates =
+          gatherCandidates(output).transpose().vCat(negativeCandidates);
+      lossComponents.add(logProbabilities(candidates,
+          DenseMatrix.of(outputState.getExposedState()),
+          new int[][] {sharedRows(0, output[0], negatives, 1)}).get(0));
+    }
+    return new StreamingSum<>(lossComponents).cache().times(Scalar.constant(-1))
+        .divide(Scalar.constant(inputInts.size() - 1));
+  }
+
+  /**
+   * Returns the candidate rows of a token scored against shared negatives: its own row, then the
+   * rows of the first negatives.length - 1 negatives that differ from it, which start at offset.
+   */
+  private static int[] sharedRows(int row, int output, int[] negatives, int offset) {
+    int[] rows = new int[negatives.length];
+    rows[0] = row;
+    for (int k = 0, next = 1; next < rows.length; ++k) {
+      if (negatives[k] != output) {
+        rows[next++] = offset + k;
+      }
+    }
+    return rows;
+  }
+
+  /**
+   * Adds multiplier times the gradient of getLoss to the accumulator, using truncated
+   * backpropagation through time. The sequence is processed in windows of the given number of
+   * tokens. The hidden state is carried into the next window as a constant, and each window's share
+   * of the loss is flushed into the accumulator before the next is built, so only one window's
+   * expressions are alive at a time.
+   * 
+   * The loss is the same as getLoss's, but gradients do not flow across window boundaries.
+   * 
+   * @param inputInts
+   * @param samples
+   * @param window - the number of predicted tokens per window
+   * @param multiplier
+   * @param accumulator - accumulator over the store this predictor was created from
+   * @return the loss
+   */
+  public double accumulateTruncatedGradient(List<Integer> inputInts, int samples, int window,
+      double multiplier, GradientAccumulator<String> accumulator) {
+    if (inputInts.size() < 2) {
+      throw new IllegalArgumentException("Can only compute loss on at least two elements.");
+    }
+    if (window < 1) {
+      throw new IllegalArgumentException("Window must be at least one token.");
+    }
+    Scalar<String> divisor = Scalar.constant(inputInts.size() - 1);
+    Matrix<String> hiddenState = Matrix.repeat(Scalar.constant(0), cell.getSize(), 1);
+    double loss = 0;
+    for (int start = 0; start < inputInts.size() - 1; start += window) {
+      int end = Math.min(start + window, inputInts.size() - 1);
+      List<Scalar<String>> lossComponents = new ArrayList<>();
+      for (int i = start; i < end; ++i) {
+        RnnStateTuple<String> outputState = step(hiddenState, inputInts.get(i));
+        hiddenState = outputState.getHiddenState();
+        lossComponents.add(logProbability(outputState, inputInts.get(i + 1), samples));
+      }
+      Scalar<String> windowLoss =
+          new StreamingSum<>(lossComponents).times(Scalar.constant(-1)).divide(divisor);
+      accumulator.accumulate(windowLoss, multiplier);
+      loss += windowLoss.value();
+      hiddenState = hiddenState.toConstant();
+    }
+    return loss;
+  }
+
+  private RnnStateTuple<String> step(Matrix<String> hiddenState, int input) {
+    Matrix<String> selectedCol = embedding.getColumn(Scalar.constant(input));
+    return cell.apply(new RnnStateTuple<>(hiddenState, selectedCol));
+  }
+
+  /**
+   * Returns the log of the sampled softmax probability of output given the cell's output state.
+   */
+  private Scalar<String> logProbability(RnnStateTuple<String> outputState, int output,
+      int samples) {
+    int[] selected =
+        Matrix.selectAndSample(sampler, samples, output).stream().mapToInt(i -> i).toArray();
+    int[] rows = new int[selected.length];
+    for (int i = 0; i < rows.length; ++i) {
+      rows[i] = i;
+    }
+    return logProbabilities(gatherCandidates(selected).transpose(),
+        DenseMatrix.of(outputState.getExposedState()), new int[][] {rows}).get(0);
+  }
+
   public Scalar<String> getBatchLoss(Collection<List<Integer>> inputs, ExecutorService es,
       int samples) {
-    List<Callable<Scalar<String>>> losses = new ArrayList<>();
-    inputs.forEach(input -> losses.add(() -> getLoss(input, samples)));
     try {
-
       MappedDerivativeScalar.Builder<String> resultBuilder =
           new MappedDerivativeScalar.Builder<>(cell.getSize() + embedding.getWidth()
               * embedding.getHeight());
@@ -153,4 +553,270 @@ public class NGramPredictor {
     }
 
   }
+
+  /**
+   * Computes the mean loss of the inputs on the executor. Each worker adds the gradient of its
+   * sequences, divided by the number of inputs, to its own buffer in the accumulator, and the
+   * buffers are then reduced into the accumulator's store concurrently, so no gradient is merged
+   * on the calling thread.
+   * 
+   * @param inputs
+   * @param es
+   * @param samples
+   * @param accumulator - accumulator over the store this predictor was created from
+   * @return the mean loss
+   */
+  public double accumulateBatchGradient(Collection<List<Integer>> inputs, ExecutorService es,
+      int samples, GradientAccumulator<String> accumulator) {
+    double multiplier = 1.0 / inputs.size();
+    List<Callable<Double>> tasks = new ArrayList<>();
+    inputs.forEach(x -> tasks.add(() -> {
+      Scalar<String> loss = getLoss(x, samples);
+      accumulator.accumulate(loss, multiplier);
+      return loss.value() * multiplier;
+    }));
+    return sumAndReduce(tasks, es, accumulator);
+  }
+
+  /**
+   * As accumulateBatchGradient, but one set of negatives is drawn for the whole batch and shared
+   * by every sequence, as in getLoss(inputInts, negatives). The negatives' embedding columns are
+   * gathered once for the batch.
+   * 
+   * @param inputs
+   * @param es
+   * @param samples
+   * @param accumulator - accumulator over the store this predictor was created from
+   * @return the mean loss
+   */
+  public double accumulateSharedNegativeBatchGradient(Collection<List<Integer>> inputs,
+      ExecutorService es, int samples, GradientAccumulator<String> accumulator) {
+    double multiplier = 1.0 / inputs.size();
+    int[] negatives = sampleNegatives(samples);
+    DenseMatrix<String> negativeCandidates = gatherCandidates(negatives).transpose();
+    List<Callable<Double>> tasks = new ArrayList<>();
+    inputs.forEach(x -> tasks.add(() -> {
+      Scalar<String> loss = getLoss(x, negatives, negativeCandidates);
+      accumulator.accumulate(loss, multiplier);
+      return loss.value() * multiplier;
+    }));
+    return sumAndReduce(tasks, es, accumulator);
+  }
+
+  /**
+   * As accumulateBatchGradient, but each sequence's gradient is computed with
+   * accumulateTruncatedGradient over windows of the given number of tokens.
+   * 
+   * @param inputs
+   * @param es
+   * @param samples
+   * @param window
+   * @param accumulator - accumulator over the store this predictor was created from
+   * @return the mean loss
+   */
+  public double accumulateTruncatedBatchGradient(Collection<List<Integer>> inputs,
+      ExecutorService es, int samples, int window, GradientAccumulator<String> accumulator) {
+    double multiplier = 1.0 / inputs.size();
+    List<Callable<Double>> tasks = new ArrayList<>();
+    inputs.forEach(x -> tasks.add(() -> accumulateTruncatedGradient(x, samples, window,
+        multiplier, accumulator) * multiplier));
+    return sumAndReduce(tasks, es, accumulator);
+  }
+
+  /**
+   * Runs the tasks, each of which accumulates a gradient and returns its weighted loss, then
+   * reduces the accumulator and returns the sum of the losses.
+   */
+  private static double sumAndReduce(List<Callable<Double>> tasks, ExecutorService es,
+      GradientAccumulator<String> accumulator) {
+    double total = 0;
+    try {
+      for (Future<Double> loss : es.invokeAll(tasks)) {
+        total += loss.get();
+      }
+    } catch (InterruptedException | ExecutionException e) {
+      throw new RuntimeException(e);
+    }
+    accumulator.reduce(es);
+    return total;
+  }
+
+  /**
+   * As accumulateBatchGradient, but the inputs are split into groups of up to miniBatchSize
+   * sequences, and each worker computes the loss of a whole group with getMiniBatchLoss, whose
+   * sequences share one set of negatives. A miniBatchSize of 1 uses getLoss, as the overload
+   * without it does.
+   * 
+   * @param inputs
+   * @param es
+   * @param samples
+   * @param miniBatchSize
+   * @param accumulator - accumulator over the store this predictor was created from
+   * @return the mean loss
+   */
+  public double accumulateBatchGradient(Collection<List<Integer>> inputs, ExecutorService es,
+      int samples, int miniBatchSize, GradientAccumulator<String> accumulator) {
+    if (miniBatchSize <= 1) {
+      return accumulateBatchGradient(inputs, es, samples, accumulator);
+    }
+    List<Callable<Double>> tasks = new ArrayList<>();
+    for (List<List<Integer>> group : split(inputs, miniBatchSize)) {
+      double multiplier = (double) group.size() / inputs.size();
+      tasks.add(() -> {
+        Scalar<String> loss = getMiniBatchLoss(group, samples);
+        accumulator.accumulate(loss, multiplier);
+        return loss.value() * multiplier;
+      });
+    }
+    return sumAndReduce(tasks, es, accumulator);
+  }
+
+  private static List<List<List<Integer>>> split(Collection<List<Integer>> inputs, int groupSize) {
+    List<List<List<Integer>>> groups = new ArrayList<>();
+    List<List<Integer>> group = new ArrayList<>();
+    for (List<Integer> input : inputs) {
+      group.add(input);
+      if (group.size() == groupSize) {
+        groups.add(group);
+        group = new ArrayList<>();
+      }
+    }
+    if (!group.isEmpty()) {
+      groups.add(group);
+    }
+    return groups;
+  }
+
+  private synchronized RnnCell<String> getBatchedCell() {
+    if (batchedCell == null) {
+      batchedCell = cellTemplate.createBatched(context);
+      if (batchedCell == null) {
+        throw new RuntimeException("Cell template has no batched form.");
+      }
+    }
+    return batchedCell;
+  }
+
+  /**
+   * Computes the mean of getLoss over the inputs, advancing all of them through the cell together.
+   * At each step the sequences that are still running form the columns of one batched cell
+   * application, so the cell's gate weights are applied with a single matrix product per step.
+   * One set of negatives is drawn for the whole group, as in getLoss(inputInts, negatives), and
+   * their embedding columns are gathered once. Each step then scores the running sequences'
+   * outputs and the shared negatives against every running column with one more product. The
+   * gradient touches only the embedding columns of the group's tokens and negatives.
+   * 
+   * The loss is the mean of getLoss(inputInts, negatives) over the inputs, but the gradient is
+   * not clipped (see BatchedLstmCell).
+   * 
+   * @param inputs
+   * @param samples
+   * @return
+   */
+  public Scalar<String> getMiniBatchLoss(List<List<Integer>> inputs, int samples) {
+    RnnCell<String> batched = getBatchedCell();
+    List<List<Integer>> sorted = new ArrayList<>(inputs);
+    for (List<Integer> input : sorted) {
+      if (input.size() < 2) {
+        throw new IllegalArgumentException("Can only compute loss on at least two elements.");
+      }
+    }
+    // Longest first, so the sequences still running at any step are a prefix of the batch.
+    sorted.sort((a, b) -> Integer.compare(b.size(), a.size()));
+    int size = batched.getSize();
+    List<List<Scalar<String>>> lossComponents = new ArrayList<>();
+    sorted.forEach(x -> lossComponents.add(new ArrayList<>()));
+    int[] negatives = sampleNegatives(samples);
+    DenseMatrix<String> negativeCandidates = gatherCandidates(negatives).transpose();
+    DenseMatrix<String> hiddenState =
+        DenseMatrix.of(BatchedLstmCell.zeroState(size, sorted.size()));
+    for (int step = 0;; ++step) {
+      int running = 0;
+      while (running < sorted.size() && sorted.get(running).size() > step + 1) {
+        ++running;
+      }
+      if (running == 0) {
+        break;
+      }
+      if (running < hiddenState.getWidth()) {
+        hiddenState = hiddenState.selectColumns(firstColumns(running));
+      }
+      int[] inputTokens = new int[running];
+      for (int j = 0; j < running; ++j) {
+        inputTokens[j] = sorted.get(j).get(step);
+      }
+      RnnStateTuple<String> outputState =
+          batched.apply(new RnnStateTuple<>(hiddenState, DenseMatrix.columns("embedding", size,
+              embedding.getWidth(), inputTokens, context, constant)));
+      hiddenState = DenseMatrix.of(outputState.getHiddenState());
+      // Row j of the candidates is column j's output, and the negatives follow the outputs.
+      int[] outputTokens = new int[running];
+      int[][] rows = new int[running][];
+      for (int j = 0; j < running; ++j) {
+        outputTokens[j] = sorted.get(j).get(step + 1);
+        rows[j] = sharedRows(j, outputTokens[j], negatives, running);
+      }
+      DenseMatrix<String> candidates =
+          gatherCandidates(outputTokens).transpose().vCat(negativeCandidates);
+      List<Scalar<String>> logProbabilities =
+          logProbabilities(candidates, DenseMatrix.of(outputState.getExposedState()), rows);
+      for (int j = 0; j < running; ++j) {
+        lossComponents.get(j).add(logProbabilities.get(j));
+      }
+    }
+    List<Scalar<String>> sequenceLosses = new ArrayList<>();
+    for (int j = 0; j < sorted.size(); ++j) {
+      sequenceLosses.add(new StreamingSum<>(lossComponents.get(j)).times(Scalar.constant(-1))
+          .divide(Scalar.constant(sorted.get(j).size() - 1)));
+    }
+    return new StreamingSum<>(sequenceLosses).divide(Scalar.constant(sorted.size()));
+  }
+
+  /**
+   * Gathers the embedding columns of the given tokens, each stacked above its response bias.
+   */
+  private DenseMatrix<String> gatherCandidates(int[] tokens) {
+    return DenseMatrix.columns("embedding", embedding.getHeight(), embedding.getWidth(), tokens,
+        context, constant).vCat(
+        DenseMatrix.columns("responseBias", 1, responseBias.getWidth(), tokens, context,
+            constant));
+  }
+
+  /**
+   * Returns, for each column j of exposed, the log of the softmax probability of candidate
+   * rows[j][0] among the candidates rows[j]. Each row of candidates is a candidate's embedding
+   * followed by its response bias, so a single product scores every candidate against every
+   * column; candidates outside rows[j] are masked out of column j's softmax.
+   */
+  private static List<Scalar<String>> logProbabilities(DenseMatrix<String> candidates,
+      DenseMatrix<String> exposed, int[][] rows) {
+    int columns = exposed.getWidth();
+    double[] ones = new double[columns];
+    Arrays.fill(ones, 1);
+    DenseMatrix<String> logits =
+        candidates.times(exposed.vCat(DenseMatrix.constant(1, columns, ones)));
+    double[] mask = new double[candidates.getHeight() * columns];
+    Arrays.fill(mask, Double.NEGATIVE_INFINITY);
+    for (int j = 0; j < columns; ++j) {
+      for (int row : rows[j]) {
+        mask[row * columns + j] = 0;
+      }
+    }
+    DenseMatrix<String> softmax =
+        logits.plus(DenseMatrix.constant(candidates.getHeight(), columns, mask)).softmax();
+    Scalar<String> epsilon = Scalar.constant(.0001);
+    List<Scalar<String>> result = new ArrayList<>(columns);
+    for (int j = 0; j < columns; ++j) {
+      result.add(softmax.get(rows[j][0], j).plus(epsilon).ln());
+    }
+    return result;
+  }
+
+  private static int[] firstColumns(int count) {
+    int[] columns = new int[count];
+    for (int i = 0; i < count; ++i) {
+      columns[i] = i;
+    }
+    return columns;
+  }
 }
@@ -3,17 +3,24 @@ package angland.optimizer.ngram;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
 
 import angland.optimizer.Optimizer;
 import angland.optimizer.Range;
 import angland.optimizer.nn.RnnCellTemplate;
+import angland.optimizer.saver.Checkpointer;
 import angland.optimizer.saver.StringContext;
-import angland.optimizer.var.IndexedKey;
+import angland.optimizer.update.UpdateRule;
+import angland.optimizer.var.GradientAccumulator;
 import angland.optimizer.var.KeyedDerivative;
+import angland.optimizer.var.ParameterStore;
 import angland.optimizer.var.scalar.Scalar;
 
 public class NGramTrainer {
@@ -21,48 +28,185 @@ public class NGramTrainer {
   public static void train(ExecutorService es, List<List<Integer>> trainSentences,
       File contextPath, int vocabSize, RnnCellTemplate cellTemplate, int batchSize,
       int saveInterval, double stepDistance, int samples) throws IOException {
-    Map<IndexedKey<String>, Double> context = null;
-    long tokenCount = 0;
-    if (contextPath.exists()) {
-      System.out.println("Loading context " + contextPath);
-      context = StringContext.loadContext(contextPath);
-      System.out.println("Load complete.");
-    } else {
-      System.out.println("Initializing context " + contextPath);
-      Map<IndexedKey<String>, Double> tmpContext = new HashMap<>();
-      cellTemplate.getKeys().forEach(k -> tmpContext.put(k, 2 * Math.random() - 1));
-      context = tmpContext;
-      System.out.println("New context initialized.");
+    train(es, trainSentences, contextPath, vocabSize, cellTemplate, batchSize, saveInterval,
+        UpdateRule.sgd(stepDistance), samples, 1, 0, false, 1);
+  }
+
+  /**
+   * Loads the context at contextPath, or initializes a random one, and trains it with the given
+   * update rule. Each worker advances miniBatchSize sequences at once through the template's
+   * batched cell; a miniBatchSize of 1 trains one sequence per worker task. If bpttWindow is
+   * positive, gradients are computed by truncated backpropagation through time over windows of
+   * that many tokens, which requires a miniBatchSize of 1. If sharedNegatives is true, every
+   * sequence of a batch is scored against one set of negatives; mini-batches always share their
+   * negatives within a group. The last keepCheckpoints checkpoints are retained.
+   */
+  public static void train(ExecutorService es, List<List<Integer>> trainSentences,
+      File contextPath, int vocabSize, RnnCellTemplate cellTemplate, int batchSize,
+      int saveInterval, UpdateRule rule, int samples, int miniBatchSize, int bpttWindow,
+      boolean sharedNegatives, int keepCheckpoints) throws IOException {
+    ParameterStore<String> store = loadOrInitialize(contextPath, vocabSize, cellTemplate);
+    try (Checkpointer checkpointer = new Checkpointer(contextPath, keepCheckpoints)) {
+      train(es, trainSentences, store, checkpointer, vocabSize, cellTemplate, batchSize,
+          saveInterval, rule, samples, miniBatchSize, bpttWindow, sharedNegatives);
     }
-    Map<IndexedKey<String>, Range> variableRanges = new HashMap<>();
-    context.keySet().forEach(k -> variableRanges.put(k, new Range(-1, 1)));
-    NGramPredictor predictor = new NGramPredictor(vocabSize, cellTemplate, context, false);
+  }
+
+  public static void train(ExecutorService es, List<List<Integer>> trainSentences,
+      ParameterStore<String> store, Checkpointer checkpointer, int vocabSize,
+      RnnCellTemplate cellTemplate, int batchSize, int saveInterval, double stepDistance,
+      int samples) throws IOException {
+    train(es, trainSentences, store, checkpointer, vocabSize, cellTemplate, batchSize,
+        saveInterval, UpdateRule.sgd(stepDistance), samples, 1, 0, false);
+  }
+
+  /**
+   * Trains the parameters held in the store, updating them in place with the given rule after each
+   * batch. The embedding and response bias are updated only at the columns each batch touches.
+   * With sharedNegatives, each batch draws one set of negatives for all of its sequences (see
+   * NGramPredictor.accumulateSharedNegativeBatchGradient). Every saveInterval batches, a snapshot
+   * of the store is handed to the checkpointer, which writes it in the background while training
+   * continues.
+   */
+  public static void train(ExecutorService es, List<List<Integer>> trainSentences,
+      ParameterStore<String> store, Checkpointer checkpointer, int vocabSize,
+      RnnCellTemplate cellTemplate, int batchSize, int saveInterval, UpdateRule rule, int samples,
+      int miniBatchSize, int bpttWindow, boolean sharedNegatives) throws IOException {
+    if (bpttWindow > 0 && miniBatchSize > 1) {
+      throw new IllegalArgumentException("Truncated BPTT is not supported with mini-batches.");
+    }
+    if (bpttWindow > 0 && sharedNegatives) {
+      throw new IllegalArgumentException("Truncated BPTT is not supported with shared negatives.");
+    }
+    long tokenCount = 0;
+    NGramPredictor.setSparseColumns(store);
+    NGramPredictor predictor = new NGramPredictor(vocabSize, cellTemplate, store, false);
+    GradientAccumulator<String> accumulator = new GradientAccumulator<>(store);
 
     long startTime = System.currentTimeMillis();
     for (int i = 0; i < trainSentences.size() / batchSize; ++i) {
-      Scalar<String> cumulativeLoss = Scalar.constant(0);
       List<List<Integer>> batch = new ArrayList<>();
       for (int j = 0; j < batchSize; ++j) {
         List<Integer> sequence = trainSentences.get((int) (trainSentences.size() * Math.random()));
         batch.add(sequence);
         tokenCount += sequence.size();
       }
-      Scalar<String> loss = predictor.getBatchLoss(batch, es, samples);
-      context = Optimizer.step(loss, context, variableRanges, stepDistance);
-      predictor = new NGramPredictor(vocabSize, cellTemplate, context, false);
-      cumulativeLoss = cumulativeLoss.plus(loss);
+      double loss;
+      if (bpttWindow > 0) {
+        loss =
+            predictor.accumulateTruncatedBatchGradient(batch, es, samples, bpttWindow,
+                accumulator);
+      } else if (sharedNegatives && miniBatchSize <= 1) {
+        loss = predictor.accumulateSharedNegativeBatchGradient(batch, es, samples, accumulator);
+      } else {
+        loss = predictor.accumulateBatchGradient(batch, es, samples, miniBatchSize, accumulator);
+      }
+      if (i % saveInterval == 0) {
+        KeyedDerivative.printRelativeDist(store);
+      }
+      Optimizer.applyGradient(store, rule);
+      predictor.refresh();
       if (i % saveInterval == 0) {
-        KeyedDerivative.printRelativeDist(loss.getGradient());
         double timeTakenSeconds = (System.currentTimeMillis() - startTime) / 1000.0;
         double tokensPerSecond = (tokenCount) / timeTakenSeconds;
         double sequencesPerSecond = ((i + 1) * saveInterval * batchSize) / timeTakenSeconds;
-        System.out.println("Batch loss " + cumulativeLoss.value());
+        System.out.println("Batch loss " + loss);
         System.out.println("Tokens per second " + tokensPerSecond);
         System.out.println("Sequence per second " + sequencesPerSecond);
-        StringContext.saveContext(context, contextPath);
+        checkpointer.save(store);
       }
     }
 
 
   }
+
+  private static ParameterStore<String> loadOrInitialize(File contextPath, int vocabSize,
+      RnnCellTemplate cellTemplate) {
+    ParameterStore<String> store = null;
+    if (contextPath.exists()) {
+      System.out.println("Loading context " + contextPath);
+      store = StringContext.loadStore(contextPath);
+      System.out.println("Load complete.");
+    } else {
+      System.out.println("Initializing context " + contextPath);
+      store = NGramPredictor.randomizedStore(vocabSize, cellTemplate);
+      System.out.println("New context initialized.");
+    }
+    store.setRange(new Range(-1, 1));
+    return store;
+  }
+
+  /**
+   * Loads the context at contextPath, or initializes a random one, and trains it with asynchronous
+   * SGD. The last keepCheckpoints checkpoints are retained.
+   */
+  public static void trainAsync(ExecutorService es, int threads,
+      List<List<Integer>> trainSentences, File contextPath, int vocabSize,
+      RnnCellTemplate cellTemplate, int saveInterval, double learningRate, int samples,
+      int keepCheckpoints) throws IOException {
+    ParameterStore<String> store = loadOrInitialize(contextPath, vocabSize, cellTemplate);
+    try (Checkpointer checkpointer = new Checkpointer(contextPath, keepCheckpoints)) {
+      trainAsync(es, threads, trainSentences, store, checkpointer, vocabSize, cellTemplate,
+          saveInterval, learningRate, samples);
+    }
+  }
+
+  /**
+   * Trains the parameters held in the store with Hogwild-style asynchronous SGD, for as many
+   * sequences as there are training sentences.
+   * 
+   * Each of threads workers keeps one predictor, which reads the embedding and response bias
+   * through views of the store. Before each random sequence it refreshes the predictor's cell from
+   * the store's current values, which for the LSTM cells is a copy into arrays the predictor
+   * already holds, computes the sequence's loss, and subtracts its gradient times learningRate
+   * from the values it touches. There is no barrier between workers and no lock on the store; an
+   * update may occasionally overwrite a concurrent one, which SGD tolerates because each sequence
+   * touches few embedding columns. A snapshot of the store is handed to the checkpointer
+   * after every saveInterval sequences and at the end.
+   */
+  public static void trainAsync(ExecutorService es, int threads,
+      List<List<Integer>> trainSentences, ParameterStore<String> store, Checkpointer checkpointer,
+      int vocabSize, RnnCellTemplate cellTemplate, int saveInterval, double learningRate,
+      int samples) throws IOException {
+    long total = trainSentences.size();
+    AtomicLong sequenceCount = new AtomicLong();
+    AtomicLong tokenCount = new AtomicLong();
+    DoubleAdder intervalLoss = new DoubleAdder();
+    long startTime = System.currentTimeMillis();
+    List<Callable<Void>> workers = new ArrayList<>();
+    for (int t = 0; t < threads; ++t) {
+      workers.add(() -> {
+        NGramPredictor predictor = new NGramPredictor(vocabSize, cellTemplate, store, false);
+        long n;
+        while ((n = sequenceCount.incrementAndGet()) <= total) {
+          List<Integer> sequence =
+              trainSentences.get(ThreadLocalRandom.current().nextInt(trainSentences.size()));
+          predictor.refresh();
+          Scalar<String> loss = predictor.getLoss(sequence, samples);
+          Optimizer.stepAsync(loss, store, learningRate);
+          intervalLoss.add(loss.value());
+          tokenCount.addAndGet(sequence.size());
+          if (n % saveInterval == 0) {
+            synchronized (store) {
+              double timeTakenSeconds = (System.currentTimeMillis() - startTime) / 1000.0;
+              System.out.println("Sequences " + n + ", mean loss "
+                  + intervalLoss.sumThenReset() / saveInterval);
+              System.out.println("Tokens per second " + tokenCount.get() / timeTakenSeconds);
+              System.out.println("Sequence per second " + n / timeTakenSeconds);
+              checkpointer.save(store);
+            }
+          }
+        }
+        return null;
+      });
+    }
+    try {
+      for (Future<Void> worker : es.invokeAll(workers)) {
+        worker.get();
+      }
+    } catch (InterruptedException | ExecutionException e) {
+      throw new RuntimeException(e);
+    }
+    checkpointer.save(store);
+  }
 }
@@ -0,0 +1,136 @@
+package angland.optimizer.ngram;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import angland.optimizer.nn.RnnStateValues;
+
+/**
+ * Holds the state of an NGramPredictor after reading a sequence of tokens, so that the sequence can
+ * be extended or shortened one token at a time without replaying it.
+ * 
+ * The state after every prefix of the input is kept as plain values, so advancing costs one cell
+ * application, with no derivative bookkeeping, and rolling back costs nothing. The predictor
+ * should be created with constant parameters.
+ * 
+ * Not thread safe.
+ * 
+ * @author John Angland
+ *
+ */
+public class PredictionSession {
+
+  private final NGramPredictor predictor;
+  private final List<Integer> tokens = new ArrayList<>();
+  // states.get(i) is the state after reading the first i tokens.
+  private final List<RnnStateValues> states = new ArrayList<>();
+
+  public PredictionSession(NGramPredictor predictor) {
+    this.predictor = predictor;
+    states.add(predictor.initialState());
+  }
+
+  /**
+   * Reads one more token.
+   * 
+   * @param token
+   */
+  public void advance(int token) {
+    states.add(predictor.advance(getState(), token));
+    tokens.add(token);
+  }
+
+  public void advance(List<Integer> tokens) {
+    tokens.forEach(this::advance);
+  }
+
+  /**
+   * Returns a snapshot of the session that may later be passed to rollback.
+   * 
+   * @return
+   */
+  public int snapshot() {
+    return tokens.size();
+  }
+
+  /**
+   * Returns the session to the state it was in when the snapshot was taken.
+   * 
+   * @param snapshot
+   */
+  public void rollback(int snapshot) {
+    if (snapshot < 0 || snapshot > tokens.size()) {
+      throw new IllegalArgumentException("Cannot roll back to " + snapshot + " tokens from "
+          + tokens.size());
+    }
+    tokens.subList(snapshot, tokens.size()).clear();
+    states.subList(snapshot + 1, states.size()).clear();
+  }
+
+  /**
+   * Forgets the last token read.
+   */
+  public void backspace() {
+    rollback(tokens.size() - 1);
+  }
+
+  /**
+   * Brings the session to the given input, keeping the state of the longest prefix it shares with
+   * the tokens already read and advancing through the rest.
+   * 
+   * @param input
+   */
+  public void setInput(List<Integer> input) {
+    int common = 0;
+    while (common < input.size() && common < tokens.size()
+        && input.get(common).equals(tokens.get(common))) {
+      ++common;
+    }
+    rollback(common);
+    advance(input.subList(common, input.size()));
+  }
+
+  public List<Integer> getTokens() {
+    return Collections.unmodifiableList(tokens);
+  }
+
+  public RnnStateValues getState() {
+    return states.get(states.size() - 1);
+  }
+
+  /**
+   * As NGramPredictor.predictNext, applied to the tokens read so far.
+   * 
+   * @param predictTokens
+   * @param unkIdx
+   * @return
+   */
+  public List<Integer> predictNext(int predictTokens, int unkIdx) {
+    return predictor.predictFrom(getState(), predictTokens, unkIdx);
+  }
+
+  /**
+   * As NGramPredictor.topK, applied to the tokens read so far.
+   * 
+   * @param k
+   * @param unkIdx
+   * @return
+   */
+  public List<TokenProbability> topK(int k, int unkIdx) {
+    return predictor.topK(getState(), k, unkIdx);
+  }
+
+  /**
+   * As NGramPredictor.beamSearch, applied to the tokens read so far.
+   * 
+   * @param length
+   * @param beamWidth
+   * @param unkIdx
+   * @return
+   */
+  public List<ScoredSequence> beamSearch(int length, int beamWidth, int unkIdx) {
+    return predictor.beamSearch(getState(), length, beamWidth, unkIdx);
+  }
+
+}
@@ -0,0 +1,34 @@
+package angland.optimizer.ngram;
+
+import java.util.List;
+
+/**
+ * A sequence of predicted tokens and the sum of their log probabilities.
+ * 
+ * @author John Angland
+ *
+ */
+public class ScoredSequence {
+
+  private final List<Integer> tokens;
+  private final double logProbability;
+
+  public ScoredSequence(List<Integer> tokens, double logProbability) {
+    this.tokens = tokens;
+    this.logProbability = logProbability;
+  }
+
+  public List<Integer> getTokens() {
+    return tokens;
+  }
+
+  public double getLogProbability() {
+    return logProbability;
+  }
+
+  @Override
+  public String toString() {
+    return tokens + ":" + logProbability;
+  }
+
+}
@@ -0,0 +1,100 @@
+package angland.optimizer.ngram;
+
+import java.io.File;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * The sequences of every {@link CorpusShard} in a directory, as one list. Sequences are views over
+ * the memory-mapped shards, so the corpus occupies almost no heap and opens without reading the
+ * tokens.
+ * 
+ * @author John Angland
+ *
+ */
+public class ShardedCorpus extends AbstractList<List<Integer>> implements RandomAccess {
+
+  private final List<CorpusShard> shards;
+  // starts[i] is the index of the first sequence of shard i; starts[shards.size()] is the size.
+  private final int[] starts;
+
+  public ShardedCorpus(List<CorpusShard> shards) {
+    this.shards = shards;
+    this.starts = new int[shards.size() + 1];
+    for (int i = 0; i < shards.size(); ++i) {
+      starts[i + 1] = starts[i] + shards.get(i).size();
+    }
+  }
+
+  /**
+   * Returns true if the directory holds at least one shard.
+   * 
+   * @param directory
+   * @return
+   */
+  public static boolean isShardDirectory(File directory) {
+    return shardFiles(directory).length > 0;
+  }
+
+  /**
+   * Opens every shard in the directory, in name order.
+   * 
+   * @param directory
+   * @return
+   */
+  public static ShardedCorpus open(File directory) {
+    File[] files = shardFiles(directory);
+    if (files.length == 0) {
+      throw new RuntimeException("No shards in " + directory);
+    }
+    Arrays.sort(files);
+    List<CorpusShard> shards = new ArrayList<>();
+    for (File file : files) {
+      shards.add(CorpusShard.open(file));
+    }
+    return new ShardedCorpus(shards);
+  }
+
+  private static File[] shardFiles(File directory) {
+    File[] files = directory.listFiles((d, name) -> name.endsWith(CorpusShard.EXTENSION));
+    return files == null ? new File[0] : files;
+  }
+
+  @Override
+  public List<Integer> get(int sequence) {
+    if (sequence < 0 || sequence >= size()) {
+      throw new IndexOutOfBoundsException("Sequence " + sequence + " of " + size());
+    }
+    int shard = Arrays.binarySearch(starts, sequence);
+    if (shard < 0) {
+      shard = -shard - 2;
+    } else {
+      // Skip empty shards that start at the same index.
+      while (starts[shard + 1] == sequence) {
+        ++shard;
+      }
+    }
+    return shards.get(shard).getSequence(sequence - starts[shard]);
+  }
+
+  @Override
+  public int size() {
+    return starts[shards.size()];
+  }
+
+  public long getTokenCount() {
+    long tokenCount = 0;
+    for (CorpusShard shard : shards) {
+      tokenCount += shard.getTokenCount();
+    }
+    return tokenCount;
+  }
+
+  public List<CorpusShard> getShards() {
+    return shards;
+  }
+
+}
@@ -0,0 +1,32 @@
+package angland.optimizer.ngram;
+
+/**
+ * A predicted token and the probability the model assigns to it.
+ * 
+ * @author John Angland
+ *
+ */
+public class TokenProbability {
+
+  private final int token;
+  private final double probability;
+
+  public TokenProbability(int token, double probability) {
+    this.token = token;
+    this.probability = probability;
+  }
+
+  public int getToken() {
+    return token;
+  }
+
+  public double getProbability() {
+    return probability;
+  }
+
+  @Override
+  public String toString() {
+    return token + ":" + probability;
+  }
+
+}
@@ -0,0 +1,186 @@
+package angland.optimizer.nn;
+
+import java.util.Map;
+import java.util.function.Consumer;
+
+import angland.optimizer.var.IndexedKey;
+import angland.optimizer.var.Tape;
+import angland.optimizer.var.TapeNode;
+import angland.optimizer.var.matrix.DenseMatrix;
+import angland.optimizer.var.matrix.Matrix;
+import angland.optimizer.vec.MathUtils;
+
+/**
+ * An LSTM cell over the same parameters as {@link LstmCell} that advances many sequences at once,
+ * one per column of its input and hidden state.
+ *
+ * The retain, modify and select weights are stacked into a single (3 * size) x size matrix, so all
+ * three gates for every sequence come from one matrix product. The gate nonlinearities and the
+ * state update are then applied in one fused pass, whose backward rule is written out by hand.
+ *
+ * The forward values match LstmCell column for column. The gradient is exact: the gate gradient
+ * clipping that LstmCell applies with a nonzero threshold is not reproduced.
+ *
+ * @author John Angland
+ *
+ */
+public class BatchedLstmCell implements RnnCell<String> {
+
+  private final int size;
+  private final DenseMatrix<String> weights;
+  private final DenseMatrix<String> biases;
+
+  public BatchedLstmCell(String varPrefix, int size, Map<IndexedKey<String>, Double> context,
+      boolean constant) {
+    this.size = size;
+    this.weights =
+        DenseMatrix.varOrConst(varPrefix + "_retain_w", size, size, context, constant)
+            .vCat(DenseMatrix.varOrConst(varPrefix + "_modify_w", size, size, context, constant))
+            .vCat(DenseMatrix.varOrConst(varPrefix + "_select_w", size, size, context, constant));
+    this.biases =
+        DenseMatrix.varOrConst(varPrefix + "_retain_b", size, 1, context, constant)
+            .vCat(DenseMatrix.varOrConst(varPrefix + "_modify_b", size, 1, context, constant))
+            .vCat(DenseMatrix.varOrConst(varPrefix + "_select_b", size, 1, context, constant));
+  }
+
+  /**
+   * Advances every column of the input by one step. The hidden state and exposed state of the input
+   * are size x batch, and so are those of the result.
+   */
+  @Override
+  public RnnStateTuple<String> apply(RnnStateTuple<String> input) {
+    DenseMatrix<String> hidden = DenseMatrix.of(input.getHiddenState());
+    DenseMatrix<String> exposed = DenseMatrix.of(input.getExposedState());
+    if (hidden.getHeight() != size || exposed.getHeight() != size
+        || hidden.getWidth() != exposed.getWidth()) {
+      throw new IllegalArgumentException("Expected hidden and exposed states of height " + size
+          + " and equal width.");
+    }
+    DenseMatrix<String> gates = new Gates(weights.times(exposed), biases, hidden);
+    return new RnnStateTuple<>(gates.selectRows(0, size), gates.selectRows(size, 2 * size));
+  }
+
+  @Override
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * The fused gate computation. Its values are the new hidden state stacked above the cell output.
+   */
+  private static class Gates extends DenseMatrix.Operation<String> {
+
+    private final DenseMatrix<String> preactivation;
+    private final DenseMatrix<String> biases;
+    private final DenseMatrix<String> hidden;
+    private final int size;
+    private final int batch;
+    // Gate activations, stacked like the preactivation, kept for the backward rule.
+    private final double[] activations;
+
+    Gates(DenseMatrix<String> preactivation, DenseMatrix<String> biases, DenseMatrix<String> hidden) {
+      this(preactivation, biases, hidden, new double[preactivation.getValues().length],
+          new double[2 * hidden.getValues().length]);
+    }
+
+    private Gates(DenseMatrix<String> preactivation, DenseMatrix<String> biases,
+        DenseMatrix<String> hidden, double[] activations, double[] values) {
+      super(2 * hidden.getHeight(), hidden.getWidth(), values);
+      this.preactivation = preactivation;
+      this.biases = biases;
+      this.hidden = hidden;
+      this.size = hidden.getHeight();
+      this.batch = hidden.getWidth();
+      this.activations = activations;
+      double[] g = preactivation.getValues();
+      double[] b = biases.getValues();
+      double[] c = hidden.getValues();
+      int selectOffset = size * batch;
+      for (int i = 0; i < size; ++i) {
+        for (int j = 0; j < batch; ++j) {
+          int r = i * batch + j;
+          int m = (size + i) * batch + j;
+          int s = (2 * size + i) * batch + j;
+          double retain = MathUtils.sigmoidVal(g[r] + b[i]);
+          double modify = Math.tanh(g[m] + b[size + i]);
+          double select = MathUtils.sigmoidVal(g[s] + b[2 * size + i]);
+          activations[r] = retain;
+          activations[m] = modify;
+          activations[s] = select;
+          // As in LstmCell, the modify gate is weighted by retain + 1.
+          double next = c[r] * retain + (retain + 1) * modify;
+          values[r] = next;
+          values[selectOffset + r] = select * next;
+        }
+      }
+    }
+
+    @Override
+    public void forEachInput(Consumer<TapeNode<String>> consumer) {
+      if (!preactivation.isConstant()) {
+        consumer.accept(preactivation);
+      }
+      if (!biases.isConstant()) {
+        consumer.accept(biases);
+      }
+      if (!hidden.isConstant()) {
+        consumer.accept(hidden);
+      }
+    }
+
+    @Override
+    protected void backward(double[] adjoint, Tape<String> tape) {
+      double[] c = hidden.getValues();
+      double[] next = getValues();
+      double[] dPreactivation = new double[activations.length];
+      double[] dHidden = hidden.isConstant() ? null : accumulator(tape, hidden);
+      int selectOffset = size * batch;
+      for (int i = 0; i < size; ++i) {
+        for (int j = 0; j < batch; ++j) {
+          int r = i * batch + j;
+          int m = (size + i) * batch + j;
+          int s = (2 * size + i) * batch + j;
+          double retain = activations[r];
+          double modify = activations[m];
+          double select = activations[s];
+          double dOutput = adjoint[selectOffset + r];
+          double dNext = adjoint[r] + dOutput * select;
+          dPreactivation[r] = dNext * (c[r] + modify) * retain * (1 - retain);
+          dPreactivation[m] = dNext * (retain + 1) * (1 - modify * modify);
+          dPreactivation[s] = dOutput * next[r] * select * (1 - select);
+          if (dHidden != null) {
+            dHidden[r] += dNext * retain;
+          }
+        }
+      }
+      if (!preactivation.isConstant()) {
+        double[] accumulator = accumulator(tape, preactivation);
+        for (int i = 0; i < dPreactivation.length; ++i) {
+          accumulator[i] += dPreactivation[i];
+        }
+      }
+      if (!biases.isConstant()) {
+        double[] accumulator = accumulator(tape, biases);
+        for (int i = 0; i < 3 * size; ++i) {
+          double sum = 0;
+          for (int j = 0; j < batch; ++j) {
+            sum += dPreactivation[i * batch + j];
+          }
+          accumulator[i] += sum;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns a size x batch matrix of zeros, the initial hidden state for a batch of sequences.
+   *
+   * @param size
+   * @param batch
+   * @return
+   */
+  public static Matrix<String> zeroState(int size, int batch) {
+    return DenseMatrix.constant(size, batch, new double[size * batch]);
+  }
+
+}
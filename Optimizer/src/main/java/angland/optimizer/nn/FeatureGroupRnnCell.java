@@ -34,6 +34,22 @@ public class FeatureGroupRnnCell implements RnnCell<String> {
     return new RnnStateTuple<>(hidden, exposed);
   }
 
+  @Override
+  public RnnStateValues applyValues(RnnStateValues input) {
+    double[] hidden = new double[0];
+    double[] exposed = new double[0];
+    for (int i = 0; i < delegates.size(); ++i) {
+      List<Integer> selectedIndices = selection.get(i);
+      RnnStateValues delegateOutput =
+          delegates.get(i).applyValues(
+              new RnnStateValues(Values.select(input.getHiddenState(), selectedIndices), Values
+                  .select(input.getExposedState(), selectedIndices)));
+      hidden = Values.concat(hidden, delegateOutput.getHiddenState());
+      exposed = Values.concat(exposed, delegateOutput.getExposedState());
+    }
+    return new RnnStateValues(hidden, exposed);
+  }
+
   @Override
   public int getSize() {
     return size;
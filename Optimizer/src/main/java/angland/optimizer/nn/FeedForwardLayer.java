@@ -1,36 +1,79 @@
 package angland.optimizer.nn;
 
 import java.util.Map;
-import java.util.function.Function;
 import java.util.stream.Stream;
 
 import angland.optimizer.var.IndexedKey;
+import angland.optimizer.var.ParameterStore;
+import angland.optimizer.var.matrix.Activation;
+import angland.optimizer.var.matrix.DenseMatrix;
 import angland.optimizer.var.matrix.Matrix;
-import angland.optimizer.var.scalar.Scalar;
 
 public class FeedForwardLayer<VarKey> {
 
   private final int inputSize;
   private final int outputSize;
-  private final Matrix<VarKey> weights;
-  private final Matrix<VarKey> biases;
-  private final Function<Scalar<VarKey>, Scalar<VarKey>> transformation;
+  private final DenseMatrix<VarKey> weights;
+  private final DenseMatrix<VarKey> biases;
+  private final Activation activation;
+  private final double gradientClipThreshold;
+  private volatile double[] weightValues;
+  private volatile double[] biasValues;
 
-  public FeedForwardLayer(int inputSize, int outputSize,
-      Function<Scalar<VarKey>, Scalar<VarKey>> transformation, VarKey weightKey, VarKey biasKey,
+  /**
+   * Creates a layer whose weights and biases are dense matrices, so that the layer is applied with
+   * whole-matrix operations and its weight gradient is computed as a single dense array. Outputs
+   * whose activation derivative is below gradientClipThreshold pass no gradient (see
+   * DenseMatrix.transform(Activation, double)).
+   */
+  public FeedForwardLayer(int inputSize, int outputSize, Activation activation,
+      double gradientClipThreshold, VarKey weightKey, VarKey biasKey,
       Map<IndexedKey<VarKey>, Double> context, boolean constant) {
     super();
     this.inputSize = inputSize;
     this.outputSize = outputSize;
-    this.weights = Matrix.varOrConst(weightKey, this.outputSize, this.inputSize, context, constant);
-    this.biases = Matrix.varOrConst(biasKey, this.outputSize, 1, context, constant);
-    this.transformation = transformation;
-
+    this.weights =
+        DenseMatrix.varOrConst(weightKey, this.outputSize, this.inputSize, context, constant);
+    this.biases = DenseMatrix.varOrConst(biasKey, this.outputSize, 1, context, constant);
+    this.activation = activation;
+    this.gradientClipThreshold = gradientClipThreshold;
   }
 
   public Matrix<VarKey> apply(Matrix<VarKey> input) {
     // IScalarValue<VarKey> biasMultiplier = IScalarValue.constant(inputSize);
-    return weights.times(input).plus(biases).transform(transformation);
+    return weights.times(input).plus(biases)
+        .transform(activation, gradientClipThreshold);
+  }
+
+  /**
+   * Returns activation(weights * input + biases) for the given input values, with no derivative
+   * bookkeeping, using the same activation as apply. The parameter values are read once, on first
+   * use.
+   * 
+   * @param input
+   * @return
+   */
+  public double[] applyValues(double[] input) {
+    if (input.length != inputSize) {
+      throw new IllegalArgumentException("Expected " + inputSize + " inputs but got "
+          + input.length);
+    }
+    if (weightValues == null) {
+      biasValues = Values.of(biases);
+      weightValues = Values.of(weights);
+    }
+    return Values.affine(weightValues, biasValues, input, activation);
+  }
+
+  /**
+   * Copies the weights and biases from the store in place (see DenseMatrix.reload). Values read by
+   * applyValues are the same arrays, so they follow too.
+   * 
+   * @param store
+   */
+  public void reload(ParameterStore<VarKey> store) {
+    weights.reload(store);
+    biases.reload(store);
   }
 
   public int getInputSize() {
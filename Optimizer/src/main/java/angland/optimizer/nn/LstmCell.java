@@ -1,18 +1,29 @@
 package angland.optimizer.nn;
 
+import java.util.Arrays;
 import java.util.Map;
 
 import angland.optimizer.var.IndexedKey;
-import angland.optimizer.var.matrix.Matrix;
-import angland.optimizer.var.scalar.Scalar;
-
-
+import angland.optimizer.var.ParameterStore;
+import angland.optimizer.var.matrix.Activation;
+import angland.optimizer.var.matrix.DenseMatrix;
+
+/**
+ * An LSTM cell built from dense layers, so that a sweep through it carries one adjoint array per
+ * matrix and each weight gradient is emitted as a single dense array.
+ * 
+ * Gradient clipping is applied by the gate layers: a gate whose activation derivative is below the
+ * threshold passes no gradient. The cell output is not clipped separately, since clipping each of
+ * its elements with Scalar.clipGradient would build a gradient map of every parameter per element.
+ * 
+ * @author John Angland
+ * 
+ * @param <VarKey>
+ */
 public class LstmCell<VarKey> implements RnnCell<String> {
 
   private FeedForwardLayer<String> retain;
 
-  private static final Scalar<String> one = Scalar.constant(1);
-  private static final Scalar<String> minusOne = Scalar.constant(1);
   private final int size;
   private FeedForwardLayer<String> modify;
   private FeedForwardLayer<String> select;
@@ -21,14 +32,14 @@ public class LstmCell<VarKey> implements RnnCell<String> {
   public LstmCell(String varPrefix, int size, Map<IndexedKey<String>, Double> context,
       double gradientClipThreshold, boolean constant) {
     this.retain =
-        new FeedForwardLayer<>(size, size, v -> v.sigmoid().clipGradient(gradientClipThreshold),
-            varPrefix + "_retain_w", varPrefix + "_retain_b", context, constant);
+        new FeedForwardLayer<>(size, size, Activation.SIGMOID, gradientClipThreshold, varPrefix
+            + "_retain_w", varPrefix + "_retain_b", context, constant);
     this.modify =
-        new FeedForwardLayer<>(size, size, v -> v.tanh().clipGradient(gradientClipThreshold),
-            varPrefix + "_modify_w", varPrefix + "_modify_b", context, constant);
+        new FeedForwardLayer<>(size, size, Activation.TANH, gradientClipThreshold, varPrefix
+            + "_modify_w", varPrefix + "_modify_b", context, constant);
     this.select =
-        new FeedForwardLayer<>(size, size, v -> v.sigmoid().clipGradient(gradientClipThreshold),
-            varPrefix + "_select_w", varPrefix + "_select_b", context, constant);
+        new FeedForwardLayer<>(size, size, Activation.SIGMOID, gradientClipThreshold, varPrefix
+            + "_select_w", varPrefix + "_select_b", context, constant);
     this.gradientClipThreshold = gradientClipThreshold;
     this.size = size;
   }
@@ -42,24 +53,51 @@ public class LstmCell<VarKey> implements RnnCell<String> {
 
 
   public RnnStateTuple<String> apply(RnnStateTuple<String> input) {
+    DenseMatrix<String> exposed = DenseMatrix.of(input.getExposedState());
 
-    Matrix<String> retainHidden = retain.apply(input.getExposedState());
+    DenseMatrix<String> retainHidden = DenseMatrix.of(retain.apply(exposed));
 
-    Matrix<String> replaceHidden = minusOne.times(retainHidden).transform(s -> s.plus(one));
+    // The modify gate is weighted by retain + 1, as in applyValues.
+    double[] ones = new double[retainHidden.getValues().length];
+    Arrays.fill(ones, 1);
+    DenseMatrix<String> replaceHidden =
+        retainHidden.plus(DenseMatrix.constant(size, exposed.getWidth(), ones));
 
-    Matrix<String> modifier = modify.apply(input.getExposedState());
-    Matrix<String> replaceModify = replaceHidden.pointwiseMultiply(modifier);
+    DenseMatrix<String> modifier = DenseMatrix.of(modify.apply(exposed));
+    DenseMatrix<String> replaceModify = replaceHidden.pointwiseMultiply(modifier);
 
-    Matrix<String> hiddenModified =
-        input.getHiddenState().pointwiseMultiply(retainHidden).plus(replaceModify);
+    DenseMatrix<String> hiddenModified =
+        DenseMatrix.of(input.getHiddenState()).pointwiseMultiply(retainHidden).plus(replaceModify);
 
+    DenseMatrix<String> selector = DenseMatrix.of(select.apply(exposed));
 
-    Matrix<String> selector = select.apply(input.getExposedState());
+    DenseMatrix<String> cellOutput = selector.pointwiseMultiply(hiddenModified);
 
-    Matrix<String> cellOutput = selector.pointwiseMultiply(hiddenModified);
+    return new RnnStateTuple<>(hiddenModified, cellOutput);
+  }
+
+  @Override
+  public boolean reload(ParameterStore<String> store) {
+    retain.reload(store);
+    modify.reload(store);
+    select.reload(store);
+    return true;
+  }
 
-    return new RnnStateTuple<>(hiddenModified.transform(Scalar::cache), cellOutput.transform(x -> x
-        .clipGradient(gradientClipThreshold)));
+  @Override
+  public RnnStateValues applyValues(RnnStateValues input) {
+    double[] exposed = input.getExposedState();
+    double[] hidden = input.getHiddenState();
+    double[] retainHidden = retain.applyValues(exposed);
+    double[] modifier = modify.applyValues(exposed);
+    double[] selector = select.applyValues(exposed);
+    double[] hiddenModified = new double[size];
+    double[] cellOutput = new double[size];
+    for (int i = 0; i < size; ++i) {
+      hiddenModified[i] = hidden[i] * retainHidden[i] + (retainHidden[i] + 1) * modifier[i];
+      cellOutput[i] = selector[i] * hiddenModified[i];
+    }
+    return new RnnStateValues(hiddenModified, cellOutput);
   }
 
   public int getSize() {
@@ -25,6 +25,11 @@ public class LstmCellTemplate implements RnnCellTemplate {
     return new LstmCell<>(varPrefix, size, context, gradientClipThreshold, isConstant);
   }
 
+  @Override
+  public RnnCell<String> createBatched(Map<IndexedKey<String>, Double> context) {
+    return new BatchedLstmCell(varPrefix, size, context, isConstant);
+  }
+
   @Override
   public Stream<IndexedKey<String>> getKeys() {
     return Stream.concat(FeedForwardLayer.getVarKeys(varPrefix + "_retain_w", varPrefix
@@ -1,15 +1,15 @@
 package angland.optimizer.nn;
 
+import java.util.Arrays;
 import java.util.Map;
 
 import angland.optimizer.var.IndexedKey;
-import angland.optimizer.var.matrix.Matrix;
-import angland.optimizer.var.scalar.Scalar;
+import angland.optimizer.var.ParameterStore;
+import angland.optimizer.var.matrix.Activation;
+import angland.optimizer.var.matrix.DenseMatrix;
 
 public class PeepholeLstmCell implements RnnCell<String> {
 
-  private static final Scalar<String> one = Scalar.constant(1);
-  private static final Scalar<String> minusOne = Scalar.constant(-1);
   private final FeedForwardLayer<String> retainLayer;
   private final FeedForwardLayer<String> modifyLayer;
   private final FeedForwardLayer<String> selectLayer;
@@ -20,17 +20,14 @@ public class PeepholeLstmCell implements RnnCell<String> {
   public PeepholeLstmCell(String varPrefix, int size, Map<IndexedKey<String>, Double> context,
       double gradientClipThreshold, boolean constant) {
     this.retainLayer =
-        new FeedForwardLayer<>(2 * size, size, v -> v.sigmoid().clipGradient(gradientClipThreshold)
-            .cache(2 * size * size), varPrefix + "_retain_w", varPrefix + "_retain_b", context,
-            constant);
+        new FeedForwardLayer<>(2 * size, size, Activation.SIGMOID, gradientClipThreshold,
+            varPrefix + "_retain_w", varPrefix + "_retain_b", context, constant);
     this.modifyLayer =
-        new FeedForwardLayer<>(2 * size, size, v -> v.tanh().clipGradient(gradientClipThreshold)
-            .cache(2 * size * size), varPrefix + "_modify_w", varPrefix + "_modify_b", context,
-            constant);
+        new FeedForwardLayer<>(2 * size, size, Activation.TANH, gradientClipThreshold, varPrefix
+            + "_modify_w", varPrefix + "_modify_b", context, constant);
     this.selectLayer =
-        new FeedForwardLayer<>(2 * size, size, v -> v.sigmoid().clipGradient(gradientClipThreshold)
-            .cache(2 * size * size), varPrefix + "_select_w", varPrefix + "_select_b", context,
-            constant);
+        new FeedForwardLayer<>(2 * size, size, Activation.SIGMOID, gradientClipThreshold,
+            varPrefix + "_select_w", varPrefix + "_select_b", context, constant);
     this.gradientClipThreshold = gradientClipThreshold;
     this.size = size;
   }
@@ -44,26 +41,61 @@ public class PeepholeLstmCell implements RnnCell<String> {
   @Override
   public RnnStateTuple<String> apply(RnnStateTuple<String> input) {
 
-    Matrix<String> combinedInputs = input.getHiddenState().vCat(input.getExposedState());
+    DenseMatrix<String> hidden = DenseMatrix.of(input.getHiddenState());
+    DenseMatrix<String> exposed = DenseMatrix.of(input.getExposedState());
+    DenseMatrix<String> combinedInputs = hidden.vCat(exposed);
 
-    Matrix<String> retainHidden = retainLayer.apply(combinedInputs);
+    DenseMatrix<String> retainHidden = DenseMatrix.of(retainLayer.apply(combinedInputs));
 
-    Matrix<String> replaceHidden = minusOne.times(retainHidden).transform(s -> s.plus(one));
+    // 1 - retainHidden
+    double[] ones = new double[retainHidden.getValues().length];
+    Arrays.fill(ones, 1);
+    double[] minusOnes = new double[ones.length];
+    Arrays.fill(minusOnes, -1);
+    DenseMatrix<String> replaceHidden =
+        retainHidden.pointwiseMultiply(DenseMatrix.constant(size, hidden.getWidth(), minusOnes))
+            .plus(DenseMatrix.constant(size, hidden.getWidth(), ones));
 
-    Matrix<String> modifier = modifyLayer.apply(combinedInputs);
-    Matrix<String> replaceModify = replaceHidden.pointwiseMultiply(modifier);
+    DenseMatrix<String> modifier = DenseMatrix.of(modifyLayer.apply(combinedInputs));
+    DenseMatrix<String> replaceModify = replaceHidden.pointwiseMultiply(modifier);
 
-    Matrix<String> hiddenModified =
-        input.getHiddenState().pointwiseMultiply(retainHidden).plus(replaceModify)
-            .transform(x -> x.cache(2 * size * size));
+    DenseMatrix<String> hiddenModified =
+        hidden.pointwiseMultiply(retainHidden).plus(replaceModify);
 
-    Matrix<String> combinedUpdated = hiddenModified.vCat(input.getExposedState());
+    DenseMatrix<String> combinedUpdated = hiddenModified.vCat(exposed);
 
-    Matrix<String> selector = selectLayer.apply(combinedUpdated);
-    Matrix<String> selectedOutput = selector.pointwiseMultiply(hiddenModified);
+    DenseMatrix<String> selector = DenseMatrix.of(selectLayer.apply(combinedUpdated));
+    DenseMatrix<String> selectedOutput = selector.pointwiseMultiply(hiddenModified);
     return new RnnStateTuple<>(hiddenModified, selectedOutput);
   }
 
+  @Override
+  public boolean reload(ParameterStore<String> store) {
+    retainLayer.reload(store);
+    modifyLayer.reload(store);
+    selectLayer.reload(store);
+    return true;
+  }
+
+  @Override
+  public RnnStateValues applyValues(RnnStateValues input) {
+    double[] hidden = input.getHiddenState();
+    double[] combinedInputs = Values.concat(hidden, input.getExposedState());
+    double[] retainHidden = retainLayer.applyValues(combinedInputs);
+    double[] modifier = modifyLayer.applyValues(combinedInputs);
+    double[] hiddenModified = new double[size];
+    for (int i = 0; i < size; ++i) {
+      hiddenModified[i] = hidden[i] * retainHidden[i] + (1 - retainHidden[i]) * modifier[i];
+    }
+    double[] selector =
+        selectLayer.applyValues(Values.concat(hiddenModified, input.getExposedState()));
+    double[] selectedOutput = new double[size];
+    for (int i = 0; i < size; ++i) {
+      selectedOutput[i] = selector[i] * hiddenModified[i];
+    }
+    return new RnnStateValues(hiddenModified, selectedOutput);
+  }
+
   @Override
   public int getSize() {
     return size;
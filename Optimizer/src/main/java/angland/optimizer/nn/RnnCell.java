@@ -1,9 +1,34 @@
 package angland.optimizer.nn;
 
+import angland.optimizer.var.ParameterStore;
+
 public interface RnnCell<VarKey> {
 
   public RnnStateTuple<VarKey> apply(RnnStateTuple<VarKey> input);
 
+  /**
+   * Advances a single sequence on plain values, with no derivative bookkeeping. The default
+   * implementation evaluates apply on constants.
+   * 
+   * @param input
+   * @return
+   */
+  public default RnnStateValues applyValues(RnnStateValues input) {
+    return RnnStateValues.of(apply(input.toTuple()));
+  }
+
   public int getSize();
 
+  /**
+   * Copies the current values of the cell's parameters from the store it was created from, after
+   * they have been updated in place. Returns false if the cell cannot, in which case it must be
+   * recreated to see the new values.
+   * 
+   * @param store
+   * @return
+   */
+  public default boolean reload(ParameterStore<VarKey> store) {
+    return false;
+  }
+
 }
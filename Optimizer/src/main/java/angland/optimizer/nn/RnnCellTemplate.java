@@ -9,6 +9,17 @@ public interface RnnCellTemplate {
 
   public RnnCell<String> create(Map<IndexedKey<String>, Double> context);
 
+  /**
+   * Creates a cell over the same parameters whose apply advances one sequence per column of its
+   * input, or returns null if this template has no batched form.
+   * 
+   * @param context
+   * @return
+   */
+  public default RnnCell<String> createBatched(Map<IndexedKey<String>, Double> context) {
+    return null;
+  }
+
   public Stream<IndexedKey<String>> getKeys();
 
   public int getSize();
@@ -0,0 +1,45 @@
+package angland.optimizer.nn;
+
+import angland.optimizer.var.matrix.DenseMatrix;
+import angland.optimizer.var.matrix.Matrix;
+
+/**
+ * The values of an RnnStateTuple of single columns, for evaluating cells without derivatives.
+ * 
+ * @author John Angland
+ *
+ */
+public class RnnStateValues {
+
+  private final double[] hiddenState;
+  private final double[] exposedState;
+
+  public RnnStateValues(double[] hiddenState, double[] exposedState) {
+    this.hiddenState = hiddenState;
+    this.exposedState = exposedState;
+  }
+
+  public static RnnStateValues zeros(int size) {
+    return new RnnStateValues(new double[size], new double[size]);
+  }
+
+  public static RnnStateValues of(RnnStateTuple<?> tuple) {
+    return new RnnStateValues(Values.of(tuple.getHiddenState()), Values.of(tuple
+        .getExposedState()));
+  }
+
+  public double[] getHiddenState() {
+    return hiddenState;
+  }
+
+  public double[] getExposedState() {
+    return exposedState;
+  }
+
+  public <VarKey> RnnStateTuple<VarKey> toTuple() {
+    Matrix<VarKey> hidden = DenseMatrix.constant(hiddenState.length, 1, hiddenState);
+    Matrix<VarKey> exposed = DenseMatrix.constant(exposedState.length, 1, exposedState);
+    return new RnnStateTuple<>(hidden, exposed);
+  }
+
+}
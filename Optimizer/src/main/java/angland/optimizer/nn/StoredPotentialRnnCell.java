@@ -3,6 +3,7 @@ package angland.optimizer.nn;
 import java.util.Map;
 
 import angland.optimizer.var.IndexedKey;
+import angland.optimizer.var.matrix.Activation;
 import angland.optimizer.var.matrix.Matrix;
 import angland.optimizer.var.scalar.Scalar;
 
@@ -12,6 +13,7 @@ public class StoredPotentialRnnCell implements RnnCell<String> {
   private final Matrix<String> updateWeights;
   private final FeedForwardLayer<String> selector;
   private final double gradientClipThreshold;
+  private volatile double[] updateWeightValues;
 
 
   public StoredPotentialRnnCell(String varPrefix, int size,
@@ -20,8 +22,8 @@ public class StoredPotentialRnnCell implements RnnCell<String> {
     this.size = size;
     this.updateWeights = Matrix.var("adjust_weights", size, 2 * size, context);
     this.selector =
-        new FeedForwardLayer<>(2 * size, size, v -> v.tanh().clipGradient(gradientClipThreshold)
-            .cache(), varPrefix + "_select_w", varPrefix + "_select_b", context, isConstant);
+        new FeedForwardLayer<>(2 * size, size, Activation.TANH, gradientClipThreshold, varPrefix
+            + "_select_w", varPrefix + "_select_b", context, isConstant);
     this.gradientClipThreshold = gradientClipThreshold;
   }
 
@@ -41,6 +43,30 @@ public class StoredPotentialRnnCell implements RnnCell<String> {
     return new RnnStateTuple<>(lastPotential.transform(Scalar::cache), chosen);
   }
 
+  @Override
+  public RnnStateValues applyValues(RnnStateValues input) {
+    if (updateWeightValues == null) {
+      updateWeightValues = Values.of(updateWeights);
+    }
+    double[] hidden = input.getHiddenState();
+    double[] update =
+        Values.affine(updateWeightValues, null, Values.concat(hidden, input.getExposedState()),
+            Activation.TANH);
+    double[] updatedPotential = new double[size];
+    for (int i = 0; i < size; ++i) {
+      updatedPotential[i] = hidden[i] + update[i];
+    }
+    double[] selection =
+        selector.applyValues(Values.concat(updatedPotential, input.getExposedState()));
+    double[] chosen = new double[size];
+    double[] lastPotential = new double[size];
+    for (int i = 0; i < size; ++i) {
+      chosen[i] = Math.tanh(selection[i] * updatedPotential[i]);
+      lastPotential[i] = updatedPotential[i] - chosen[i];
+    }
+    return new RnnStateValues(lastPotential, chosen);
+  }
+
   @Override
   public int getSize() {
     return size;
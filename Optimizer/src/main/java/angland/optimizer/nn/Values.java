@@ -0,0 +1,68 @@
+package angland.optimizer.nn;
+
+import java.util.List;
+
+import angland.optimizer.var.matrix.Activation;
+import angland.optimizer.var.matrix.DenseMatrix;
+import angland.optimizer.var.matrix.Matrix;
+
+/**
+ * Operations on plain arrays used by the cells' applyValues methods. Matrices are row-major.
+ * 
+ * @author John Angland
+ *
+ */
+class Values {
+
+  private Values() {}
+
+  /**
+   * Returns the values of the matrix in row-major order. The values of a DenseMatrix are returned
+   * without copying, and must not be modified.
+   */
+  static double[] of(Matrix<?> matrix) {
+    if (matrix instanceof DenseMatrix) {
+      return ((DenseMatrix<?>) matrix).getValues();
+    }
+    double[] values = new double[matrix.getHeight() * matrix.getWidth()];
+    for (int i = 0; i < matrix.getHeight(); ++i) {
+      for (int j = 0; j < matrix.getWidth(); ++j) {
+        values[i * matrix.getWidth() + j] = matrix.get(i, j).value();
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Returns activation(weights * input + biases). biases may be null.
+   */
+  static double[] affine(double[] weights, double[] biases, double[] input, Activation activation) {
+    int height = weights.length / input.length;
+    double[] output = new double[height];
+    for (int i = 0; i < height; ++i) {
+      double sum = biases == null ? 0 : biases[i];
+      int offset = i * input.length;
+      for (int j = 0; j < input.length; ++j) {
+        sum += weights[offset + j] * input[j];
+      }
+      output[i] = activation.apply(sum);
+    }
+    return output;
+  }
+
+  static double[] concat(double[] top, double[] bottom) {
+    double[] result = new double[top.length + bottom.length];
+    System.arraycopy(top, 0, result, 0, top.length);
+    System.arraycopy(bottom, 0, result, top.length, bottom.length);
+    return result;
+  }
+
+  static double[] select(double[] values, List<Integer> indices) {
+    double[] result = new double[indices.size()];
+    for (int i = 0; i < result.length; ++i) {
+      result[i] = values[indices.get(i)];
+    }
+    return result;
+  }
+
+}
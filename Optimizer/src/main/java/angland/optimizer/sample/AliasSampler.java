@@ -0,0 +1,113 @@
+package angland.optimizer.sample;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Samples indices in proportion to fixed weights in O(1) per draw, using Walker's alias method.
+ * 
+ * The table splits [0, size) into equal columns. Column i returns i with probability
+ * threshold[i], and alias[i] otherwise. Building the table takes O(size).
+ * 
+ * @author John Angland
+ *
+ */
+public class AliasSampler implements Sampler {
+
+  private final double[] threshold;
+  private final int[] alias;
+  private final int nonZero;
+
+  public AliasSampler(double[] weights) {
+    int size = weights.length;
+    if (size < 1) {
+      throw new IllegalArgumentException("Weights must not be empty.");
+    }
+    double total = 0;
+    int nonZero = 0;
+    for (double weight : weights) {
+      if (weight < 0 || Double.isNaN(weight) || Double.isInfinite(weight)) {
+        throw new IllegalArgumentException("Invalid weight " + weight);
+      }
+      total += weight;
+      if (weight > 0) {
+        ++nonZero;
+      }
+    }
+    if (total == 0) {
+      throw new IllegalArgumentException("At least one weight must be positive.");
+    }
+    this.nonZero = nonZero;
+    this.threshold = new double[size];
+    this.alias = new int[size];
+    // Columns scaled so that the mean is one; small ones are topped up from large ones.
+    double[] scaled = new double[size];
+    int[] small = new int[size];
+    int[] large = new int[size];
+    int smallCount = 0;
+    int largeCount = 0;
+    for (int i = 0; i < size; ++i) {
+      scaled[i] = weights[i] * size / total;
+      if (scaled[i] < 1) {
+        small[smallCount++] = i;
+      } else {
+        large[largeCount++] = i;
+      }
+    }
+    while (smallCount > 0 && largeCount > 0) {
+      int less = small[--smallCount];
+      int more = large[--largeCount];
+      threshold[less] = scaled[less];
+      alias[less] = more;
+      scaled[more] = scaled[more] + scaled[less] - 1;
+      if (scaled[more] < 1) {
+        small[smallCount++] = more;
+      } else {
+        large[largeCount++] = more;
+      }
+    }
+    // Whatever remains is one up to rounding.
+    while (largeCount > 0) {
+      int i = large[--largeCount];
+      threshold[i] = 1;
+      alias[i] = i;
+    }
+    while (smallCount > 0) {
+      int i = small[--smallCount];
+      threshold[i] = 1;
+      alias[i] = i;
+    }
+  }
+
+  @Override
+  public int size() {
+    return threshold.length;
+  }
+
+  /**
+   * Returns the number of indices with a positive weight, which bounds the number of distinct
+   * indices that can be drawn.
+   * 
+   * @return
+   */
+  public int getSupportSize() {
+    return nonZero;
+  }
+
+  @Override
+  public int next() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int column = random.nextInt(threshold.length);
+    return random.nextDouble() < threshold[column] ? column : alias[column];
+  }
+
+  @Override
+  public int[] sample(int count, int exclude) {
+    int available = exclude >= 0 && exclude < size() ? nonZero - 1 : nonZero;
+    if (count > available) {
+      throw new IllegalArgumentException("Cannot draw " + count + " distinct indices from "
+          + available);
+    }
+    return DistinctDraw.draw(this, count, exclude);
+  }
+
+}
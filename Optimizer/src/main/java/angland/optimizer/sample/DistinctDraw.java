@@ -0,0 +1,56 @@
+package angland.optimizer.sample;
+
+/**
+ * Draws distinct indices from a sampler by rejection, remembering those drawn in a small
+ * open-addressed hash set.
+ * 
+ * @author John Angland
+ *
+ */
+class DistinctDraw {
+
+  private DistinctDraw() {}
+
+  static int[] draw(Sampler sampler, int count, int exclude) {
+    int available = sampler.size() - (exclude >= 0 && exclude < sampler.size() ? 1 : 0);
+    if (count < 0 || count > available) {
+      throw new IllegalArgumentException("Cannot draw " + count + " distinct indices from "
+          + available);
+    }
+    int[] result = new int[count];
+    if (count == 0) {
+      return result;
+    }
+    int capacity = Integer.highestOneBit(Math.max(4, 2 * (count + 1)) - 1) << 1;
+    int mask = capacity - 1;
+    // Slots hold index + 1, so that zero marks an empty slot.
+    int[] table = new int[capacity];
+    if (exclude >= 0) {
+      insert(table, mask, exclude);
+    }
+    int drawn = 0;
+    while (drawn < count) {
+      int index = sampler.next();
+      if (insert(table, mask, index)) {
+        result[drawn++] = index;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Adds the index to the table, returning false if it was already present.
+   */
+  private static boolean insert(int[] table, int mask, int index) {
+    int slot = (index * 0x9E3779B9) >>> 7 & mask;
+    while (table[slot] != 0) {
+      if (table[slot] == index + 1) {
+        return false;
+      }
+      slot = (slot + 1) & mask;
+    }
+    table[slot] = index + 1;
+    return true;
+  }
+
+}
@@ -0,0 +1,65 @@
+package angland.optimizer.sample;
+
+/**
+ * Draws distinct indices in [0, size()) for sampled losses.
+ * 
+ * Implementations draw from ThreadLocalRandom and hold no mutable state, so one sampler may be
+ * shared by every thread.
+ * 
+ * @author John Angland
+ *
+ */
+public interface Sampler {
+
+  /**
+   * Returns the number of indices that may be drawn.
+   * 
+   * @return
+   */
+  public int size();
+
+  /**
+   * Draws a single index.
+   * 
+   * @return
+   */
+  public int next();
+
+  /**
+   * Draws count distinct indices, none equal to exclude, in expected O(count) time. Pass -1 to
+   * exclude nothing.
+   * 
+   * @param count
+   * @param exclude
+   * @return
+   */
+  public default int[] sample(int count, int exclude) {
+    return DistinctDraw.draw(this, count, exclude);
+  }
+
+  /**
+   * Samples uniformly from [0, size).
+   * 
+   * @param size
+   * @return
+   */
+  public static Sampler uniform(int size) {
+    return new UniformSampler(size);
+  }
+
+  /**
+   * Samples in proportion to count^power, the unigram^0.75 distribution for a power of .75.
+   * 
+   * @param counts
+   * @param power
+   * @return
+   */
+  public static Sampler unigram(long[] counts, double power) {
+    double[] weights = new double[counts.length];
+    for (int i = 0; i < counts.length; ++i) {
+      weights[i] = Math.pow(counts[i], power);
+    }
+    return new AliasSampler(weights);
+  }
+
+}
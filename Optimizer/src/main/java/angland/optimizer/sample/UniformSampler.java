@@ -0,0 +1,64 @@
+package angland.optimizer.sample;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Samples uniformly from [0, size).
+ * 
+ * @author John Angland
+ *
+ */
+public class UniformSampler implements Sampler {
+
+  private final int size;
+
+  public UniformSampler(int size) {
+    if (size < 1) {
+      throw new IllegalArgumentException("Size must be positive: " + size);
+    }
+    this.size = size;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public int next() {
+    return ThreadLocalRandom.current().nextInt(size);
+  }
+
+  /**
+   * Draws by rejection when count is at most half of size, and otherwise by a partial shuffle,
+   * which is O(size) but never rejects.
+   */
+  @Override
+  public int[] sample(int count, int exclude) {
+    if (2 * count <= size) {
+      return Sampler.super.sample(count, exclude);
+    }
+    boolean excluding = exclude >= 0 && exclude < size;
+    int available = excluding ? size - 1 : size;
+    if (count < 0 || count > available) {
+      throw new IllegalArgumentException("Cannot draw " + count + " distinct indices from "
+          + available);
+    }
+    int[] candidates = new int[available];
+    for (int i = 0, j = 0; i < size; ++i) {
+      if (!excluding || i != exclude) {
+        candidates[j++] = i;
+      }
+    }
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    for (int i = 0; i < count; ++i) {
+      int swap = i + random.nextInt(available - i);
+      int tmp = candidates[i];
+      candidates[i] = candidates[swap];
+      candidates[swap] = tmp;
+    }
+    return Arrays.copyOf(candidates, count);
+  }
+
+}
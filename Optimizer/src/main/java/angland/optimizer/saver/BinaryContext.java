@@ -0,0 +1,220 @@
+package angland.optimizer.saver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import angland.optimizer.var.ParameterStore;
+
+/**
+ * Saves and loads parameter stores in a binary checkpoint format.
+ *
+ * A checkpoint is a little-endian header listing each slot's name and shape, padded to a multiple
+ * of eight bytes, followed by every slot's values as one contiguous run of doubles or floats in
+ * slot order. Checkpoints are written to a temporary file that is renamed over the target once
+ * complete, and are loaded by memory-mapping the file and copying the run straight into the
+ * store.
+ *
+ * @author John Angland
+ *
+ */
+public class BinaryContext {
+
+  /**
+   * Files with this extension are saved in the binary format by StringContext.saveStore.
+   */
+  public static final String EXTENSION = ".bin";
+
+  private static final int MAGIC = 0x4A4F4331;
+  private static final int VERSION = 1;
+  private static final int WRITE_CHUNK = 1 << 16;
+
+  public static void main(String[] args) {
+    if (args.length != 2) {
+      System.out.println("Usage: BinaryContext <text context> <binary checkpoint>");
+      return;
+    }
+    save(StringContext.loadStore(new File(args[0])), new File(args[1]));
+  }
+
+  /**
+   * Returns true if the file begins with the binary checkpoint header.
+   *
+   * @param file
+   * @return
+   */
+  public static boolean isBinary(File file) {
+    if (!file.isFile() || file.length() < 4) {
+      return false;
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      return Integer.reverseBytes(raf.readInt()) == MAGIC;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public static void save(ParameterStore<String> store, File file) {
+    save(store, file, false);
+  }
+
+  /**
+   * Saves the store, replacing the file atomically where the file system allows it.
+   *
+   * @param store
+   * @param file
+   * @param singlePrecision - if true, values are stored as floats
+   */
+  public static void save(ParameterStore<String> store, File file, boolean singlePrecision) {
+    double[] values = store.getValues();
+    for (int i = 0; i < store.size(); ++i) {
+      if (Double.isNaN(values[i])) {
+        throw new RuntimeException("NaN value detected.  Not saving.");
+      }
+    }
+    File tmp = new File(file.getAbsolutePath() + ".tmp");
+    try (FileChannel channel =
+        FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      writeFully(channel, header(store, singlePrecision));
+      int elementBytes = singlePrecision ? 4 : 8;
+      ByteBuffer chunk =
+          ByteBuffer.allocateDirect(WRITE_CHUNK * elementBytes).order(ByteOrder.LITTLE_ENDIAN);
+      for (int start = 0; start < store.size(); start += WRITE_CHUNK) {
+        int length = Math.min(WRITE_CHUNK, store.size() - start);
+        chunk.clear();
+        if (singlePrecision) {
+          for (int i = start; i < start + length; ++i) {
+            chunk.putFloat((float) values[i]);
+          }
+        } else {
+          chunk.asDoubleBuffer().put(values, start, length);
+          chunk.position(length * elementBytes);
+        }
+        chunk.flip();
+        writeFully(channel, chunk);
+      }
+      channel.force(true);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    replace(tmp, file);
+  }
+
+  /**
+   * Loads a binary checkpoint into a new store.
+   *
+   * @param file
+   * @return
+   */
+  public static ParameterStore<String> load(File file) {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      mapped.order(ByteOrder.LITTLE_ENDIAN);
+      if (mapped.getInt() != MAGIC) {
+        throw new RuntimeException(file + " is not a binary checkpoint.");
+      }
+      int version = mapped.getInt();
+      if (version != VERSION) {
+        throw new RuntimeException("Unsupported checkpoint version " + version + " in " + file);
+      }
+      int elementBytes = mapped.getInt();
+      int slotCount = mapped.getInt();
+      long valueCount = mapped.getLong();
+      ParameterStore<String> store = new ParameterStore<>();
+      for (int i = 0; i < slotCount; ++i) {
+        byte[] name = new byte[mapped.getShort() & 0xFFFF];
+        mapped.get(name);
+        int height = mapped.getInt();
+        int width = mapped.getInt();
+        String key = new String(name, StandardCharsets.UTF_8);
+        if (mapped.get() != 0) {
+          store.registerScalar(key);
+        } else {
+          store.register(key, height, width);
+        }
+      }
+      if (store.size() != valueCount) {
+        throw new RuntimeException("Corrupt checkpoint " + file + ": expected " + valueCount
+            + " values but slots hold " + store.size());
+      }
+      mapped.position(align(mapped.position()));
+      ByteBuffer data = mapped.slice().order(ByteOrder.LITTLE_ENDIAN);
+      double[] values = store.getValues();
+      if (elementBytes == 8) {
+        data.asDoubleBuffer().get(values, 0, store.size());
+      } else if (elementBytes == 4) {
+        for (int i = 0; i < store.size(); ++i) {
+          values[i] = data.getFloat(i * 4);
+        }
+      } else {
+        throw new RuntimeException("Unsupported element size " + elementBytes + " in " + file);
+      }
+      return store;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static ByteBuffer header(ParameterStore<String> store, boolean singlePrecision) {
+    int length = 24;
+    for (ParameterStore.Slot<String> slot : store.getSlots()) {
+      length += 2 + slot.getKey().getBytes(StandardCharsets.UTF_8).length + 9;
+    }
+    ByteBuffer header = ByteBuffer.allocate(align(length)).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(MAGIC);
+    header.putInt(VERSION);
+    header.putInt(singlePrecision ? 4 : 8);
+    header.putInt(store.getSlots().size());
+    header.putLong(store.size());
+    for (ParameterStore.Slot<String> slot : store.getSlots()) {
+      byte[] name = slot.getKey().getBytes(StandardCharsets.UTF_8);
+      if (name.length > 0xFFFF) {
+        throw new RuntimeException("Key " + slot.getKey() + " is too long to save.");
+      }
+      header.putShort((short) name.length);
+      header.put(name);
+      header.putInt(slot.getHeight());
+      header.putInt(slot.getWidth());
+      header.put((byte) (slot.isScalar() ? 1 : 0));
+    }
+    header.position(0);
+    return header;
+  }
+
+  private static int align(int position) {
+    return (position + 7) & ~7;
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  /**
+   * Moves tmp over file, atomically if the file system supports it.
+   */
+  static void replace(File tmp, File file) {
+    try {
+      try {
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+}
@@ -0,0 +1,166 @@
+package angland.optimizer.saver;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import angland.optimizer.var.ParameterStore;
+
+/**
+ * Writes checkpoints of a ParameterStore on a dedicated background thread, so that training only
+ * waits for a copy of the values rather than for the disk.
+ * 
+ * Snapshots are double-buffered. While one snapshot is being written, the other receives the next
+ * save; if that one is still waiting to be written when a further save arrives, it is overwritten
+ * with the newer values and both saves complete with the same write. Checkpoints are saved in the
+ * binary format if the file name ends with BinaryContext.EXTENSION and as text otherwise. The last
+ * keep checkpoints are retained as file, file.1, ... file.(keep - 1), rotated by renames once the
+ * newest checkpoint is completely written.
+ * 
+ * @author John Angland
+ * 
+ */
+public class Checkpointer implements AutoCloseable {
+
+  private final File file;
+  private final int keep;
+  private final ExecutorService writer;
+  // The two snapshot buffers, either of which may be the one being written.
+  private ParameterStore<String> front;
+  private ParameterStore<String> back;
+  private ParameterStore<String> writing;
+  private ParameterStore<String> queued;
+  private CompletableFuture<File> queuedFuture;
+  private RuntimeException failure;
+
+  public Checkpointer(File file) {
+    this(file, 1);
+  }
+
+  /**
+   * @param file - the checkpoint to write
+   * @param keep - the number of checkpoints to retain, including the newest
+   */
+  public Checkpointer(File file, int keep) {
+    if (keep < 1) {
+      throw new IllegalArgumentException("Must keep at least one checkpoint.");
+    }
+    this.file = file;
+    this.keep = keep;
+    this.writer = Executors.newSingleThreadExecutor(r -> {
+      Thread thread = new Thread(r, "checkpointer " + file.getName());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Copies the store's values and queues them to be written, returning a future that completes
+   * with the checkpoint file once they are. Throws if an earlier checkpoint failed.
+   * 
+   * @param store
+   * @return
+   */
+  public synchronized CompletableFuture<File> save(ParameterStore<String> store) {
+    if (failure != null) {
+      throw new RuntimeException("An earlier checkpoint of " + file + " failed.", failure);
+    }
+    if (queued != null) {
+      System.arraycopy(store.getValues(), 0, queued.getValues(), 0, store.size());
+      return queuedFuture;
+    }
+    if (front != null && front == writing) {
+      ParameterStore<String> swap = front;
+      front = back;
+      back = swap;
+    }
+    if (front == null || front.size() != store.size()) {
+      front = store.copy();
+    } else {
+      System.arraycopy(store.getValues(), 0, front.getValues(), 0, store.size());
+    }
+    queued = front;
+    queuedFuture = new CompletableFuture<>();
+    writer.submit(this::writeQueued);
+    return queuedFuture;
+  }
+
+  private void writeQueued() {
+    ParameterStore<String> snapshot;
+    CompletableFuture<File> future;
+    synchronized (this) {
+      snapshot = queued;
+      future = queuedFuture;
+      writing = snapshot;
+      queued = null;
+      queuedFuture = null;
+    }
+    try {
+      write(snapshot);
+      future.complete(file);
+    } catch (RuntimeException e) {
+      synchronized (this) {
+        failure = e;
+      }
+      future.completeExceptionally(e);
+    } finally {
+      synchronized (this) {
+        writing = null;
+      }
+    }
+  }
+
+  private void write(ParameterStore<String> snapshot) {
+    File next = keep > 1 ? new File(file.getAbsolutePath() + ".next") : file;
+    if (file.getName().endsWith(BinaryContext.EXTENSION)) {
+      BinaryContext.save(snapshot, next);
+    } else {
+      StringContext.saveContext(snapshot, next);
+    }
+    if (keep > 1) {
+      for (int i = keep - 1; i >= 1; --i) {
+        File older = getRotated(i - 1);
+        if (older.exists()) {
+          BinaryContext.replace(older, getRotated(i));
+        }
+      }
+      BinaryContext.replace(next, file);
+    }
+  }
+
+  /**
+   * Returns the file holding the checkpoint written age saves before the newest.
+   * 
+   * @param age
+   * @return
+   */
+  public File getRotated(int age) {
+    return age == 0 ? file : new File(file.getAbsolutePath() + "." + age);
+  }
+
+  /**
+   * Waits for any queued checkpoint to be written and stops the writer thread. Throws if any
+   * checkpoint failed.
+   */
+  @Override
+  public void close() {
+    writer.shutdown();
+    try {
+      writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+    synchronized (this) {
+      if (failure != null) {
+        throw new RuntimeException("Checkpoint of " + file + " failed.", failure);
+      }
+    }
+  }
+
+}
@@ -13,6 +13,7 @@ import java.util.Map;
 import java.util.function.Consumer;
 
 import angland.optimizer.var.IndexedKey;
+import angland.optimizer.var.ParameterStore;
 
 public class StringContext {
 
@@ -20,7 +21,16 @@ public class StringContext {
     return loadContext(new File(file));
   }
 
+  /**
+   * Loads a context from a text file, or from a binary checkpoint written by BinaryContext.
+   * 
+   * @param file
+   * @return
+   */
   public static Map<IndexedKey<String>, Double> loadContext(File file) {
+    if (BinaryContext.isBinary(file)) {
+      return new HashMap<>(BinaryContext.load(file));
+    }
     Map<IndexedKey<String>, Double> context = new HashMap<>();
     try {
       Files.lines(Paths.get(file.getAbsolutePath())).forEach(
@@ -42,11 +52,45 @@ public class StringContext {
     return context;
   }
 
+  /**
+   * Loads a context file into a new store. Binary checkpoints are memory-mapped; for text files,
+   * slot shapes are inferred from the largest indices in the file.
+   * 
+   * @param file
+   * @return
+   */
+  public static ParameterStore<String> loadStore(File file) {
+    if (BinaryContext.isBinary(file)) {
+      return BinaryContext.load(file);
+    }
+    return ParameterStore.fromContext(loadContext(file));
+  }
+
+  /**
+   * Saves a store as a binary checkpoint if the file name ends with BinaryContext.EXTENSION, and in
+   * the text format otherwise.
+   * 
+   * @param store
+   * @param file
+   */
+  public static void saveStore(ParameterStore<String> store, File file) {
+    if (file.getName().endsWith(BinaryContext.EXTENSION)) {
+      BinaryContext.save(store, file);
+    } else {
+      saveContext(store, file);
+    }
+  }
+
   public static void saveContext(Map<IndexedKey<String>, Double> context, String file) {
     saveContext(context, new File(file));
   }
 
+  @SuppressWarnings("unchecked")
   public static void saveContext(Map<? extends IndexedKey<String>, Double> context, File file) {
+    if (context instanceof ParameterStore) {
+      saveContext((ParameterStore<String>) (Map<?, ?>) context, file);
+      return;
+    }
     File tmp = new File(file.getAbsolutePath() + ".tmp");
     Consumer<File> c = f -> {
       try (FileWriter fw = new FileWriter(f); PrintWriter pw = new PrintWriter(fw);) {
@@ -67,6 +111,37 @@ public class StringContext {
       }
     };
     c.accept(tmp);
-    c.accept(file);
+    BinaryContext.replace(tmp, file);
+  }
+
+  /**
+   * Saves a store in the same format as a context, reading each slot directly from the store's
+   * value array.
+   * 
+   * @param store
+   * @param file
+   */
+  public static void saveContext(ParameterStore<String> store, File file) {
+    File tmp = new File(file.getAbsolutePath() + ".tmp");
+    double[] values = store.getValues();
+    Consumer<File> c = f -> {
+      try (FileWriter fw = new FileWriter(f); PrintWriter pw = new PrintWriter(fw);) {
+        for (ParameterStore.Slot<String> slot : store.getSlots()) {
+          for (int i = 0; i < slot.getLength(); ++i) {
+            double v = values[slot.getOffset() + i];
+            if (Double.isNaN(v)) {
+              throw new RuntimeException("NaN value detected.  Not saving.");
+            }
+            int row = slot.isScalar() ? -1 : i / slot.getWidth();
+            int col = slot.isScalar() ? -1 : i % slot.getWidth();
+            pw.println(slot.getKey() + " " + row + " " + col + " " + v);
+          }
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    };
+    c.accept(tmp);
+    BinaryContext.replace(tmp, file);
   }
 }
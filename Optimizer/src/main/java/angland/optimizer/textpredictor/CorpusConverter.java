@@ -0,0 +1,88 @@
+package angland.optimizer.textpredictor;
+
+import static angland.optimizer.textpredictor.TextPredictorConstants.vocabSize;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import angland.optimizer.ngram.CorpusShardWriter;
+
+/**
+ * Tokenizes a directory of text files once and writes the token ids to corpus shards, which
+ * TextPredictionTrainer and TextPredictionValidator load in place of the text.
+ * 
+ * @author John Angland
+ *
+ */
+public class CorpusConverter {
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 3) {
+      System.out.println("Usage: CorpusConverter <vocab file> <text dir> <shard dir> [documents]");
+      return;
+    }
+    TokenBiMap tbm = TokenBiMap.fromVocabFile(args[0], vocabSize);
+    boolean documents = args.length > 3 && args[3].equals("documents");
+    List<File> shards = convert(tbm, new File(args[1]), new File(args[2]), documents);
+    System.out.println("Wrote " + shards.size() + " shards.");
+  }
+
+  /**
+   * Writes one sequence per line of at least two tokens, or, if documents is true, one sequence per
+   * file. Lines are tokenized as they are read, so the corpus is never held in memory.
+   * 
+   * @param tbm
+   * @param textDir
+   * @param shardDir
+   * @param documents
+   * @return the shards written
+   * @throws IOException
+   */
+  public static List<File> convert(TokenBiMap tbm, File textDir, File shardDir, boolean documents)
+      throws IOException {
+    List<Path> files;
+    try (Stream<Path> paths = Files.walk(textDir.toPath())) {
+      files = paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+    }
+    CorpusShardWriter writer = new CorpusShardWriter(shardDir, "corpus");
+    try {
+      int[] tokens = new int[256];
+      for (Path file : files) {
+        int length = 0;
+        try (BufferedReader br = Files.newBufferedReader(file,
+            StandardCharsets.UTF_8)) {
+          String line = null;
+          while ((line = br.readLine()) != null) {
+            if (!documents) {
+              length = 0;
+            }
+            for (String token : TokenBiMap.tokenize(line)) {
+              if (length == tokens.length) {
+                tokens = Arrays.copyOf(tokens, 2 * length);
+              }
+              tokens[length++] = tbm.getIdx(token);
+            }
+            if (!documents && length > 1) {
+              writer.add(tokens, length);
+            }
+          }
+        }
+        if (documents && length > 1) {
+          writer.add(tokens, length);
+        }
+      }
+    } finally {
+      writer.close();
+    }
+    return writer.getShards();
+  }
+
+}
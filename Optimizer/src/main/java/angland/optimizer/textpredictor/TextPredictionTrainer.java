@@ -2,9 +2,7 @@ package angland.optimizer.textpredictor;
 
 import static angland.optimizer.textpredictor.TextPredictorConstants.vocabSize;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -16,6 +14,8 @@ import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
 import angland.optimizer.ngram.NGramTrainer;
+import angland.optimizer.ngram.ShardedCorpus;
+import angland.optimizer.update.UpdateRule;
 
 public class TextPredictionTrainer {
 
@@ -33,51 +33,79 @@ public class TextPredictionTrainer {
     int batchSize = 50;
     int saveInterval = 4;
     double gradientMultiplier = .5;
-    List<String> vocabTokens = new ArrayList<>();
-    vocabTokens.add("<unk>");
-    try (FileReader fr = new FileReader(vocabFile); BufferedReader br = new BufferedReader(fr)) {
-      String line = null;
-      while ((line = br.readLine()) != null && vocabTokens.size() < vocabSize) {
-        vocabTokens.add(line.split(" ")[0]);
+    String ruleName = System.getProperty("UPDATE_RULE", "sgd");
+    double learningRate =
+        Double.parseDouble(System.getProperty("LEARNING_RATE", Double.toString(gradientMultiplier)));
+    System.out.println("Update rule " + ruleName + ", learning rate " + learningRate);
+    UpdateRule rule = UpdateRule.named(ruleName, learningRate);
+    int miniBatchSize = Integer.getInteger("MINI_BATCH", 1);
+    System.out.println("Mini-batch size " + miniBatchSize);
+    // With truncated BPTT, each file is trained as one sequence instead of line by line.
+    int bpttWindow = Integer.getInteger("BPTT_WINDOW", 0);
+    System.out.println("BPTT window " + bpttWindow);
+    boolean sharedNegatives = Boolean.getBoolean("SHARED_NEGATIVES");
+    System.out.println("Shared negatives " + sharedNegatives);
+    int keepCheckpoints = Integer.getInteger("KEEP_CHECKPOINTS", 1);
+    TokenBiMap tbm = TokenBiMap.fromVocabFile(vocabFile, vocabSize);
+    System.out.println("Vocabulary size " + tbm.size());
+
+    System.out.println("Loading train data.");
+    // A directory of shards written by CorpusConverter is mapped rather than tokenized.
+    List<List<Integer>> trainSentences =
+        ShardedCorpus.isShardDirectory(new File(trainDir)) ? ShardedCorpus.open(new File(
+            trainDir)) : loadText(tbm, trainDir, bpttWindow > 0);
+    System.out.println("Done loading train data.");
+    System.out.println("Train sequences: " + trainSentences.size());
+
+    ExecutorService es = null;
+    try {
+      es = Executors.newFixedThreadPool(numThreads);
+      if (Boolean.getBoolean("HOGWILD")) {
+        // Each sequence takes the step its share of a batch would have.
+        System.out.println("Training asynchronously.");
+        NGramTrainer.trainAsync(es, numThreads, trainSentences, new File(contextFile), vocabSize,
+            TextPredictorConstants.getTemplate(false), saveInterval * batchSize,
+            learningRate / batchSize, samples, keepCheckpoints);
+      } else {
+        NGramTrainer.train(es, trainSentences, new File(contextFile), vocabSize,
+            TextPredictorConstants.getTemplate(false), batchSize, saveInterval, rule, samples,
+            miniBatchSize, bpttWindow, sharedNegatives, keepCheckpoints);
+      }
+    } finally {
+      if (es != null) {
+        es.shutdown();
       }
     }
-    System.out.println("Vocabulary size " + vocabTokens.size());
-    TokenBiMap tbm = new TokenBiMap(vocabTokens, "<unk>");
-
+  }
 
+  /**
+   * Tokenizes every file under trainDir, as one sequence per line or, if documents is true, one
+   * sequence per file.
+   */
+  private static List<List<Integer>> loadText(TokenBiMap tbm, String trainDir, boolean documents)
+      throws IOException {
     List<List<Integer>> trainSentences = new ArrayList<>();
     List<File> filesInFolder =
         Files.walk(Paths.get(trainDir)).filter(Files::isRegularFile).map(Path::toFile)
             .collect(Collectors.toList());
-
-    System.out.println("Loading train data.");
     for (File file : filesInFolder) {
+      List<Integer> document = new ArrayList<>();
       Files.lines(Paths.get(file.getAbsolutePath())).forEach(line -> {
         List<String> tokens = TokenBiMap.tokenize(line);
-        List<Integer> tokenInts = new ArrayList<>();
+        List<Integer> tokenInts = documents ? document : new ArrayList<>();
         for (String token : tokens) {
           int tokenInt = tbm.getIdx(token);
           tokenInts.add(tokenInt);
         }
-        if (tokenInts.size() > 1) {
+        if (!documents && tokenInts.size() > 1) {
           trainSentences.add(tokenInts);
         }
       });
-    }
-    System.out.println("Done loading train data.");
-    System.out.println("Train sequences: " + trainSentences.size());
-
-    ExecutorService es = null;
-    try {
-      es = Executors.newFixedThreadPool(numThreads);
-      NGramTrainer.train(es, trainSentences, new File(contextFile), vocabSize,
-          TextPredictorConstants.getTemplate(false), batchSize, saveInterval, gradientMultiplier, samples);
-    } finally {
-      if (es != null) {
-        es.shutdown();
+      if (document.size() > 1) {
+        trainSentences.add(document);
       }
     }
+    return trainSentences;
   }
 
-
 }
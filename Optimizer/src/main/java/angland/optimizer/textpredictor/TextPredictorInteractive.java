@@ -2,51 +2,48 @@ package angland.optimizer.textpredictor;
 
 import static angland.optimizer.textpredictor.TextPredictorConstants.vocabSize;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.Scanner;
 import java.util.stream.Collectors;
 
 import angland.optimizer.ngram.NGramPredictor;
+import angland.optimizer.ngram.PredictionSession;
+import angland.optimizer.ngram.TokenProbability;
 import angland.optimizer.nn.RnnCellTemplate;
 import angland.optimizer.saver.StringContext;
-import angland.optimizer.var.IndexedKey;
+import angland.optimizer.var.ParameterStore;
 
 public class TextPredictorInteractive {
 
   public static void main(String[] args) throws FileNotFoundException, IOException {
-    List<String> vocabTokens = new ArrayList<>();
-    vocabTokens.add("<unk>");
-    try (FileReader fr = new FileReader(args[0]); BufferedReader br = new BufferedReader(fr)) {
-      String line = null;
-      while ((line = br.readLine()) != null && vocabTokens.size() < vocabSize) {
-        vocabTokens.add(line.split(" ")[0]);
-      }
-    }
-    System.out.println("Vocabulary size " + vocabTokens.size());
-    TokenBiMap tbm = new TokenBiMap(vocabTokens, "<unk>");
+    TokenBiMap tbm = TokenBiMap.fromVocabFile(args[0], vocabSize);
+    System.out.println("Vocabulary size " + tbm.size());
     System.out.println("Loading model. ");
     RnnCellTemplate template = TextPredictorConstants.getTemplate(true);
 
-    Map<IndexedKey<String>, Double> context = StringContext.loadContext(args[1]);
+    ParameterStore<String> context = StringContext.loadStore(new File(args[1]));
 
     NGramPredictor predictor = new NGramPredictor(vocabSize, template, context, true);
+    PredictionSession session = new PredictionSession(predictor);
     try (Scanner scan = new Scanner(System.in);) {
       System.out.println("Type and press enter to view predicted next tokens.");
       while (true) {
         String line = scan.nextLine();
         List<String> tokens = TokenBiMap.tokenize(line);
         List<Integer> tokenInts = tokens.stream().map(tbm::getIdx).collect(Collectors.toList());
-        List<Integer> response = predictor.predictNext(tokenInts, 10, tbm.getIdx("<unk>"));
+        // Only the tokens that differ from the previous line are read.
+        session.setInput(tokenInts);
+        List<Integer> response = session.predictNext(10, tbm.getIdx("<unk>"));
         List<String> responseTokens =
             response.stream().map(tbm::getToken).collect(Collectors.toList());
         responseTokens.forEach(t -> System.out.print(t + " "));
         System.out.println();
+        for (TokenProbability next : session.topK(5, tbm.getIdx("<unk>"))) {
+          System.out.printf("  %s %.3f%n", tbm.getToken(next.getToken()), next.getProbability());
+        }
       }
     }
 
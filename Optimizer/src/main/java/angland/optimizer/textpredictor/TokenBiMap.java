@@ -1,5 +1,8 @@
 package angland.optimizer.textpredictor;
 
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -9,6 +12,8 @@ import java.util.regex.Pattern;
 
 public class TokenBiMap {
 
+  private static final Pattern TOKEN = Pattern.compile("\\w+|[.,!?:\\'\\\"]");
+
   private final List<String> idxToToken;
   private final Map<String, Integer> tokenToIdx = new HashMap<>();
   private final int unkIdx;
@@ -34,9 +39,34 @@ public class TokenBiMap {
   }
 
 
+  /**
+   * Reads the first vocabSize - 1 tokens of a vocabulary file, one per line followed by anything
+   * after a space, and adds "<unk>" as token 0.
+   * 
+   * @param vocabFile
+   * @param vocabSize
+   * @return
+   * @throws IOException
+   */
+  public static TokenBiMap fromVocabFile(String vocabFile, int vocabSize) throws IOException {
+    List<String> vocabTokens = new ArrayList<>();
+    vocabTokens.add("<unk>");
+    try (FileReader fr = new FileReader(vocabFile); BufferedReader br = new BufferedReader(fr)) {
+      String line = null;
+      while ((line = br.readLine()) != null && vocabTokens.size() < vocabSize) {
+        vocabTokens.add(line.split(" ")[0]);
+      }
+    }
+    return new TokenBiMap(vocabTokens, "<unk>");
+  }
+
+  public int size() {
+    return idxToToken.size();
+  }
+
   public static List<String> tokenize(String line) {
 
-    Matcher matcher = Pattern.compile("\\w+|[.,!?:\\'\\\"]").matcher(line);
+    Matcher matcher = TOKEN.matcher(line);
     ArrayList<String> tokens = new ArrayList<>();
     while (matcher.find()) {
       tokens.add(matcher.group().toLowerCase());
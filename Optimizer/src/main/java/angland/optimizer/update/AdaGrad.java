@@ -0,0 +1,43 @@
+package angland.optimizer.update;
+
+import java.util.Arrays;
+
+/**
+ * Scales each step by the inverse root of the parameter's summed squared gradients, so that rarely
+ * updated parameters, such as embedding columns of uncommon tokens, take larger steps.
+ * 
+ * @author John Angland
+ *
+ */
+public class AdaGrad implements UpdateRule {
+
+  private final double learningRate;
+  private final double epsilon;
+  private double[] sumSquares = new double[0];
+
+  public AdaGrad(double learningRate, double epsilon) {
+    if (learningRate <= 0) {
+      throw new IllegalArgumentException("Learning rate must be greater than 0.");
+    }
+    this.learningRate = learningRate;
+    this.epsilon = epsilon;
+  }
+
+  @Override
+  public void beginStep(int size) {
+    if (sumSquares.length < size) {
+      sumSquares = Arrays.copyOf(sumSquares, size);
+    }
+  }
+
+  @Override
+  public void update(double[] values, double[] gradient, int start, int end) {
+    for (int i = start; i < end; ++i) {
+      double g = gradient[i];
+      double s = sumSquares[i] + g * g;
+      sumSquares[i] = s;
+      values[i] -= learningRate * g / (Math.sqrt(s) + epsilon);
+    }
+  }
+
+}
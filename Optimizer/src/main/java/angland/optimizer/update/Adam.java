@@ -0,0 +1,96 @@
+package angland.optimizer.update;
+
+import java.util.Arrays;
+
+/**
+ * Adam: steps along a decaying average of the gradient, scaled by a decaying average of its square,
+ * with both averages corrected for their bias towards zero in early steps.
+ * 
+ * @author John Angland
+ *
+ */
+public class Adam implements UpdateRule {
+
+  private final double learningRate;
+  private final double beta1;
+  private final double beta2;
+  private final double epsilon;
+  private double[] mean = new double[0];
+  private double[] meanSquare = new double[0];
+  private long[] lastStep = new long[0];
+  private long steps = 0;
+  private double stepSize;
+  private double correctedEpsilon;
+
+  public Adam(double learningRate, double beta1, double beta2, double epsilon) {
+    if (learningRate <= 0) {
+      throw new IllegalArgumentException("Learning rate must be greater than 0.");
+    }
+    if (beta1 < 0 || beta1 >= 1 || beta2 < 0 || beta2 >= 1) {
+      throw new IllegalArgumentException("Betas must be in [0, 1).");
+    }
+    this.learningRate = learningRate;
+    this.beta1 = beta1;
+    this.beta2 = beta2;
+    this.epsilon = epsilon;
+  }
+
+  @Override
+  public void beginStep(int size) {
+    if (mean.length < size) {
+      mean = Arrays.copyOf(mean, size);
+      meanSquare = Arrays.copyOf(meanSquare, size);
+      lastStep = Arrays.copyOf(lastStep, size);
+    }
+    ++steps;
+    // Fold both bias corrections into per-step constants rather than correcting every entry.
+    double meanCorrection = 1 - Math.pow(beta1, steps);
+    double squareCorrection = Math.sqrt(1 - Math.pow(beta2, steps));
+    stepSize = learningRate * squareCorrection / meanCorrection;
+    correctedEpsilon = epsilon * squareCorrection;
+  }
+
+  @Override
+  public void update(double[] values, double[] gradient, int start, int end) {
+    for (int i = start; i < end; ++i) {
+      double g = gradient[i];
+      double m = beta1 * mean[i] + (1 - beta1) * g;
+      double v = beta2 * meanSquare[i] + (1 - beta2) * g * g;
+      mean[i] = m;
+      meanSquare[i] = v;
+      lastStep[i] = steps;
+      values[i] -= stepSize * m / (Math.sqrt(v) + correctedEpsilon);
+    }
+  }
+
+  /**
+   * Before updating each entry, decays both of its averages once for every step it missed. The
+   * movement those steps would have made along the decaying mean is not replayed, as in lazy Adam,
+   * since it has no closed form under the per-step bias corrections.
+   */
+  @Override
+  public void update(double[] values, double[] gradient, int[] offsets, int count) {
+    for (int j = 0; j < count; ++j) {
+      int i = offsets[j];
+      long missed = steps - 1 - lastStep[i];
+      double m = mean[i];
+      double v = meanSquare[i];
+      if (missed > 0) {
+        m *= Math.pow(beta1, missed);
+        v *= Math.pow(beta2, missed);
+      }
+      double g = gradient[i];
+      m = beta1 * m + (1 - beta1) * g;
+      v = beta2 * v + (1 - beta2) * g * g;
+      mean[i] = m;
+      meanSquare[i] = v;
+      lastStep[i] = steps;
+      values[i] -= stepSize * m / (Math.sqrt(v) + correctedEpsilon);
+    }
+  }
+
+  public long getSteps() {
+    return steps;
+  }
+
+}
@@ -0,0 +1,90 @@
+package angland.optimizer.update;
+
+import java.util.Arrays;
+
+/**
+ * Gradient descent with momentum, optionally with the Nesterov correction.
+ * 
+ * Entries updated sparsely catch up on the steps they missed as if they had received a zero
+ * gradient at each. The gradient they receive when next touched was computed before the catch-up
+ * moved them, so the result differs from a dense update unless that gradient does not depend on
+ * their value.
+ * 
+ * @author John Angland
+ *
+ */
+public class Momentum implements UpdateRule {
+
+  private final double learningRate;
+  private final double momentum;
+  private final boolean nesterov;
+  private double[] velocity = new double[0];
+  private long[] lastStep = new long[0];
+  private long steps = 0;
+
+  public Momentum(double learningRate, double momentum, boolean nesterov) {
+    if (learningRate <= 0) {
+      throw new IllegalArgumentException("Learning rate must be greater than 0.");
+    }
+    if (momentum < 0 || momentum >= 1) {
+      throw new IllegalArgumentException("Momentum must be in [0, 1).");
+    }
+    this.learningRate = learningRate;
+    this.momentum = momentum;
+    this.nesterov = nesterov;
+  }
+
+  @Override
+  public void beginStep(int size) {
+    if (velocity.length < size) {
+      velocity = Arrays.copyOf(velocity, size);
+      lastStep = Arrays.copyOf(lastStep, size);
+    }
+    ++steps;
+  }
+
+  @Override
+  public void update(double[] values, double[] gradient, int start, int end) {
+    for (int i = start; i < end; ++i) {
+      double g = gradient[i];
+      double v = momentum * velocity[i] + g;
+      velocity[i] = v;
+      lastStep[i] = steps;
+      values[i] -= learningRate * (nesterov ? g + momentum * v : v);
+    }
+  }
+
+  @Override
+  public void update(double[] values, double[] gradient, int[] offsets, int count) {
+    update(values, gradient, offsets, count, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+  }
+
+  /**
+   * Before updating each entry, replays the steps it missed: the velocity keeps moving the value
+   * while it decays, which sums to a geometric series. The velocity keeps its sign as it decays, so
+   * the value moves in one direction throughout, and clipping the sum to [min, max] gives the same
+   * value as clipping after each missed step.
+   */
+  @Override
+  public void update(double[] values, double[] gradient, int[] offsets, int count, double min,
+      double max) {
+    for (int j = 0; j < count; ++j) {
+      int i = offsets[j];
+      long missed = steps - 1 - lastStep[i];
+      double v = velocity[i];
+      if (missed > 0 && v != 0) {
+        double decay = Math.pow(momentum, missed);
+        double travelled = momentum * (1 - decay) / (1 - momentum);
+        values[i] -= learningRate * v * (nesterov ? momentum * travelled : travelled);
+        values[i] = Math.max(min, Math.min(max, values[i]));
+        v *= decay;
+      }
+      double g = gradient[i];
+      v = momentum * v + g;
+      velocity[i] = v;
+      lastStep[i] = steps;
+      values[i] -= learningRate * (nesterov ? g + momentum * v : v);
+    }
+  }
+
+}
@@ -0,0 +1,73 @@
+package angland.optimizer.update;
+
+import java.util.Arrays;
+
+/**
+ * Scales each step by a decaying average of the parameter's squared gradients.
+ * 
+ * @author John Angland
+ *
+ */
+public class RmsProp implements UpdateRule {
+
+  private final double learningRate;
+  private final double decay;
+  private final double epsilon;
+  private double[] meanSquare = new double[0];
+  private long[] lastStep = new long[0];
+  private long steps = 0;
+
+  public RmsProp(double learningRate, double decay, double epsilon) {
+    if (learningRate <= 0) {
+      throw new IllegalArgumentException("Learning rate must be greater than 0.");
+    }
+    if (decay < 0 || decay >= 1) {
+      throw new IllegalArgumentException("Decay must be in [0, 1).");
+    }
+    this.learningRate = learningRate;
+    this.decay = decay;
+    this.epsilon = epsilon;
+  }
+
+  @Override
+  public void beginStep(int size) {
+    if (meanSquare.length < size) {
+      meanSquare = Arrays.copyOf(meanSquare, size);
+      lastStep = Arrays.copyOf(lastStep, size);
+    }
+    ++steps;
+  }
+
+  @Override
+  public void update(double[] values, double[] gradient, int start, int end) {
+    for (int i = start; i < end; ++i) {
+      double g = gradient[i];
+      double s = decay * meanSquare[i] + (1 - decay) * g * g;
+      meanSquare[i] = s;
+      lastStep[i] = steps;
+      values[i] -= learningRate * g / (Math.sqrt(s) + epsilon);
+    }
+  }
+
+  /**
+   * Before updating each entry, decays its mean square once for every step it missed, which is
+   * exactly what zero gradients would have done.
+   */
+  @Override
+  public void update(double[] values, double[] gradient, int[] offsets, int count) {
+    for (int j = 0; j < count; ++j) {
+      int i = offsets[j];
+      long missed = steps - 1 - lastStep[i];
+      double s = meanSquare[i];
+      if (missed > 0) {
+        s *= Math.pow(decay, missed);
+      }
+      double g = gradient[i];
+      s = decay * s + (1 - decay) * g * g;
+      meanSquare[i] = s;
+      lastStep[i] = steps;
+      values[i] -= learningRate * g / (Math.sqrt(s) + epsilon);
+    }
+  }
+
+}
@@ -0,0 +1,27 @@
+package angland.optimizer.update;
+
+/**
+ * Plain gradient descent with a fixed learning rate.
+ * 
+ * @author John Angland
+ *
+ */
+public class Sgd implements UpdateRule {
+
+  private final double learningRate;
+
+  public Sgd(double learningRate) {
+    if (learningRate <= 0) {
+      throw new IllegalArgumentException("Learning rate must be greater than 0.");
+    }
+    this.learningRate = learningRate;
+  }
+
+  @Override
+  public void update(double[] values, double[] gradient, int start, int end) {
+    for (int i = start; i < end; ++i) {
+      values[i] -= learningRate * gradient[i];
+    }
+  }
+
+}
@@ -0,0 +1,133 @@
+package angland.optimizer.update;
+
+/**
+ * Turns a gradient into an in-place update of a parameter array.
+ * 
+ * Rules that keep per-parameter state hold it in arrays aligned to the parameter array, so a rule
+ * instance belongs to one ParameterStore for its whole life. Optimizer.step calls beginStep once
+ * per step, then update once per slot, and finally clips each slot to its range. Slots that are
+ * sparse by column are updated with the offsets of their touched columns only.
+ * 
+ * @author John Angland
+ *
+ */
+public interface UpdateRule {
+
+  /**
+   * Prepares for a step over a parameter array of the given size, growing any state arrays to fit.
+   * 
+   * @param size
+   */
+  public default void beginStep(int size) {}
+
+  /**
+   * Updates values[start, end) from gradient[start, end). The gradient is left unchanged.
+   * 
+   * @param values
+   * @param gradient
+   * @param start
+   * @param end
+   */
+  public void update(double[] values, double[] gradient, int start, int end);
+
+  /**
+   * Updates only values[offsets[i]] for i < count, as for the touched columns of a sparse slot.
+   * Entries not passed are treated as having had a zero gradient for every step since they were
+   * last updated. Rules whose state changes under a zero gradient bring it up to date when the
+   * entry is next updated; the default suits rules without such state.
+   * 
+   * @param values
+   * @param gradient
+   * @param offsets
+   * @param count
+   */
+  public default void update(double[] values, double[] gradient, int[] offsets, int count) {
+    for (int i = 0; i < count; ++i) {
+      update(values, gradient, offsets[i], offsets[i] + 1);
+    }
+  }
+
+  /**
+   * As update(values, gradient, offsets, count), for entries that are clipped to [min, max] after
+   * every step. Rules that move an entry while bringing it up to date keep it within the range, as
+   * the clipping after each missed step would have; the default ignores the range.
+   * 
+   * @param values
+   * @param gradient
+   * @param offsets
+   * @param count
+   * @param min
+   * @param max
+   */
+  public default void update(double[] values, double[] gradient, int[] offsets, int count,
+      double min, double max) {
+    update(values, gradient, offsets, count);
+  }
+
+  /**
+   * Creates a rule with default hyperparameters by name: sgd, momentum, nesterov, rmsprop, adagrad
+   * or adam.
+   * 
+   * @param name
+   * @param learningRate
+   * @return
+   */
+  public static UpdateRule named(String name, double learningRate) {
+    switch (name.toLowerCase()) {
+      case "sgd":
+        return sgd(learningRate);
+      case "momentum":
+        return momentum(learningRate, 0.9);
+      case "nesterov":
+        return nesterov(learningRate, 0.9);
+      case "rmsprop":
+        return rmsProp(learningRate);
+      case "adagrad":
+        return adaGrad(learningRate);
+      case "adam":
+        return adam(learningRate);
+      default:
+        throw new IllegalArgumentException("Unknown update rule " + name);
+    }
+  }
+
+  /**
+   * Plain gradient descent: value -= learningRate * gradient.
+   */
+  public static UpdateRule sgd(double learningRate) {
+    return new Sgd(learningRate);
+  }
+
+  public static UpdateRule momentum(double learningRate, double momentum) {
+    return new Momentum(learningRate, momentum, false);
+  }
+
+  public static UpdateRule nesterov(double learningRate, double momentum) {
+    return new Momentum(learningRate, momentum, true);
+  }
+
+  public static UpdateRule rmsProp(double learningRate, double decay, double epsilon) {
+    return new RmsProp(learningRate, decay, epsilon);
+  }
+
+  public static UpdateRule rmsProp(double learningRate) {
+    return rmsProp(learningRate, 0.9, 1e-8);
+  }
+
+  public static UpdateRule adaGrad(double learningRate, double epsilon) {
+    return new AdaGrad(learningRate, epsilon);
+  }
+
+  public static UpdateRule adaGrad(double learningRate) {
+    return adaGrad(learningRate, 1e-8);
+  }
+
+  public static UpdateRule adam(double learningRate, double beta1, double beta2, double epsilon) {
+    return new Adam(learningRate, beta1, beta2, epsilon);
+  }
+
+  public static UpdateRule adam(double learningRate) {
+    return adam(learningRate, 0.9, 0.999, 1e-8);
+  }
+
+}
@@ -1,173 +1,333 @@
 package angland.optimizer.utils;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
 import java.util.function.Consumer;
+import java.util.function.ObjDoubleConsumer;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+/**
+ * A map from objects to primitive doubles, suitable as a sparse vector.
+ *
+ * Keys and values are held in parallel arrays and collisions are resolved by linear probing, so no
+ * object is allocated per entry. Entries cannot be removed. Keys may not be null. The map must not
+ * be modified while one of its streams is in use.
+ *
+ * @author John Angland
+ *
+ * @param <Key>
+ */
 public class ObjectToDoubleMap<Key> {
 
-  private List<Entry<Key>>[] arr;
+  private static final double DEFAULT_LOAD_FACTOR = .75;
+  // Ranges of slots smaller than this are not split further by a parallel stream.
+  private static final int MIN_SPLIT = 1 << 10;
+
+  private Object[] keys;
+  private double[] values;
   private final double loadFactor;
   private int size;
+  private int threshold;
 
-  private ObjectToDoubleMap(List<Entry<Key>>[] arr, double loadFactor, int size) {
-    this.arr = arr;
+  private ObjectToDoubleMap(Object[] keys, double[] values, double loadFactor, int size) {
+    this.keys = keys;
+    this.values = values;
     this.loadFactor = loadFactor;
     this.size = size;
+    this.threshold = threshold(keys.length, loadFactor);
   }
 
-  @SuppressWarnings("unchecked")
+  /**
+   * @param initialSize - the number of entries the map can hold before it must grow
+   * @param loadFactor - the largest fraction of slots that may be filled, between 0 and 1
+   */
   public ObjectToDoubleMap(int initialSize, double loadFactor) {
-    this(new List[initialSize], loadFactor, 0);
+    this(new Object[capacity(initialSize, loadFactor)], loadFactor);
+  }
+
+  private ObjectToDoubleMap(Object[] keys, double loadFactor) {
+    this(keys, new double[keys.length], loadFactor, 0);
   }
 
-  @SuppressWarnings("unchecked")
   public ObjectToDoubleMap(int initialSize) {
-    this(new List[initialSize], 1.0, 0);
+    this(initialSize, DEFAULT_LOAD_FACTOR);
   }
 
-  public int size() {
-    return (int) size;
+  private static int capacity(int initialSize, double loadFactor) {
+    if (!(loadFactor > 0 && loadFactor < 1)) {
+      throw new IllegalArgumentException("Load factor must be between 0 and 1, was " + loadFactor);
+    }
+    int capacity = 2;
+    while (capacity * loadFactor < initialSize) {
+      capacity *= 2;
+    }
+    return capacity;
   }
 
-  private Entry<Key> getEntry(Key key) {
-    List<Entry<Key>> bucket = getBucket(key);
-    return getEntryFromBucket(key, bucket);
+  private static int threshold(int capacity, double loadFactor) {
+    // At least one slot is always left empty, so that every probe terminates.
+    return Math.min((int) (capacity * loadFactor), capacity - 1);
   }
 
-  private List<Entry<Key>> getBucket(Key key) {
-    return arr[Math.abs(key.hashCode()) % arr.length];
+  private static int slot(Object key, int mask) {
+    int h = key.hashCode() * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & mask;
   }
 
-  private Entry<Key> getEntryFromBucket(Key key, List<Entry<Key>> bucket) {
-    if (bucket != null) {
-      for (Entry<Key> entry : bucket) {
-        if (entry.getKey().equals(key)) {
-          return entry;
-        }
-      }
+  /**
+   * Returns the slot holding key, or the empty slot where it would be inserted.
+   */
+  private int find(Object key) {
+    int mask = keys.length - 1;
+    int i = slot(key, mask);
+    Object k;
+    while ((k = keys[i]) != null && !k.equals(key)) {
+      i = (i + 1) & mask;
     }
-    return null;
+    return i;
+  }
+
+  /**
+   * Returns a map holding the entries of map.
+   *
+   * @param map
+   * @return
+   */
+  public static <Key> ObjectToDoubleMap<Key> fromMap(Map<? extends Key, Double> map) {
+    ObjectToDoubleMap<Key> result = new ObjectToDoubleMap<>(map.size());
+    map.forEach(result::put);
+    return result;
+  }
+
+  public int size() {
+    return size;
   }
 
   /**
    * Returns the associated value for the specified key, or zero if no entry is present.
-   * 
+   *
    * @param key
    * @return
    */
   public double get(Key key) {
-    Entry<Key> entry = getEntry(key);
-    return entry == null ? 0 : entry.getValue();
+    int i = find(key);
+    return keys[i] == null ? 0 : values[i];
   }
 
+  public boolean containsKey(Key key) {
+    return keys[find(key)] != null;
+  }
 
   public void put(Key key, double value) {
-    int absHashCode = Math.abs(key.hashCode());
-    int bucketIdx = absHashCode % arr.length;
-    List<Entry<Key>> bucket = arr[bucketIdx];
-    Entry<Key> entry = getEntryFromBucket(key, bucket);
-    if (entry == null) {
-      entry = new Entry<Key>(key, value, absHashCode);
-      insertNewValue(bucketIdx, bucket, entry);
+    int i = find(key);
+    if (keys[i] == null) {
+      insert(i, key, value);
+    } else {
+      values[i] = value;
     }
-    entry.value = value;
   }
 
-  private void insertNewValue(int existingBucketIdx, List<Entry<Key>> existingBucket,
-      Entry<Key> entry) {
-    ++size;
-    if (size <= loadFactor * arr.length) {
-      if (existingBucket == null) {
-        existingBucket = new ArrayList<>(1);
-        arr[existingBucketIdx] = existingBucket;
-      }
-      existingBucket.add(entry);
+  public void adjust(Key key, double shift) {
+    int i = find(key);
+    if (keys[i] == null) {
+      insert(i, key, shift);
     } else {
-      @SuppressWarnings("unchecked")
-      List<Entry<Key>>[] a2 = new List[arr.length * 2];
-      for (List<Entry<Key>> oldBucket : arr) {
-        if (oldBucket != null) {
-          for (Entry<Key> oldEntry : oldBucket) {
-            List<Entry<Key>> targetBucket = a2[oldEntry.hashCode() % a2.length];
-            if (targetBucket == null) {
-              targetBucket = new ArrayList<>(1);
-              a2[oldEntry.hashCode() % a2.length] = targetBucket;
-            }
-            targetBucket.add(oldEntry);
-          }
+      values[i] += shift;
+    }
+  }
+
+  private void insert(int i, Object key, double value) {
+    if (size >= threshold) {
+      resize(keys.length * 2);
+      i = find(key);
+    }
+    keys[i] = key;
+    values[i] = value;
+    ++size;
+  }
+
+  private void resize(int capacity) {
+    Object[] oldKeys = keys;
+    double[] oldValues = values;
+    keys = new Object[capacity];
+    values = new double[capacity];
+    threshold = threshold(capacity, loadFactor);
+    int mask = capacity - 1;
+    for (int j = 0; j < oldKeys.length; ++j) {
+      Object key = oldKeys[j];
+      if (key != null) {
+        int i = slot(key, mask);
+        while (keys[i] != null) {
+          i = (i + 1) & mask;
         }
+        keys[i] = key;
+        values[i] = oldValues[j];
       }
-      this.arr = a2;
-      existingBucketIdx = entry.hashCode() % arr.length;
-      existingBucket = arr[existingBucketIdx];
-      if (existingBucket == null) {
-        existingBucket = new ArrayList<>(1);
-        arr[existingBucketIdx] = existingBucket;
+    }
+  }
+
+  /**
+   * Adds multiplier times each value of other to the value of the same key in this map.
+   *
+   * @param other
+   * @param multiplier
+   */
+  public void addAll(ObjectToDoubleMap<? extends Key> other, double multiplier) {
+    if (other == this) {
+      scale(1 + multiplier);
+      return;
+    }
+    Object[] otherKeys = other.keys;
+    double[] otherValues = other.values;
+    for (int j = 0; j < otherKeys.length; ++j) {
+      Object key = otherKeys[j];
+      if (key != null) {
+        int i = find(key);
+        if (keys[i] == null) {
+          insert(i, key, otherValues[j] * multiplier);
+        } else {
+          values[i] += otherValues[j] * multiplier;
+        }
       }
-      existingBucket.add(entry);
     }
   }
 
-  public void adjust(Key key, double shift) {
-    int absHashCode = Math.abs(key.hashCode());
-    int bucketIdx = absHashCode % arr.length;
-    List<Entry<Key>> bucket = arr[bucketIdx];
-    Entry<Key> entry = getEntryFromBucket(key, bucket);
-    if (entry != null) {
-      entry.value += shift;
-    } else {
-      entry = new Entry<>(key, shift, absHashCode);
-      insertNewValue(bucketIdx, bucket, entry);
+  /**
+   * Multiplies every value in this map by multiplier.
+   *
+   * @param multiplier
+   */
+  public void scale(double multiplier) {
+    for (int i = 0; i < keys.length; ++i) {
+      if (keys[i] != null) {
+        values[i] *= multiplier;
+      }
     }
   }
 
   public ObjectToDoubleMap<Key> cloneWithMultiplier(double multiplier) {
-    @SuppressWarnings("unchecked")
-    List<Entry<Key>>[] a2 = new List[arr.length];
-    for (int i = 0; i < arr.length; ++i) {
-      List<Entry<Key>> bucket = arr[i];
-      if (bucket != null) {
-        a2[i] = new ArrayList<>(bucket.size());
-        for (Entry<Key> entry : bucket) {
-          a2[i].add(new Entry<>(entry.key, entry.value * multiplier, entry.hashCode()));
-        }
+    ObjectToDoubleMap<Key> clone =
+        new ObjectToDoubleMap<>(keys.clone(), values.clone(), loadFactor, size);
+    if (multiplier != 1) {
+      clone.scale(multiplier);
+    }
+    return clone;
+  }
+
+  /**
+   * Returns the sum of the squares of the values.
+   *
+   * @return
+   */
+  public double sumOfSquares() {
+    double sum = 0;
+    for (int i = 0; i < keys.length; ++i) {
+      if (keys[i] != null) {
+        sum += values[i] * values[i];
       }
     }
-    return new ObjectToDoubleMap<>(a2, loadFactor, size);
+    return sum;
   }
 
-  public void actOnEntries(Consumer<Entry<Key>> consumer) {
-    for (List<Entry<Key>> bucket : arr) {
-      if (bucket != null) {
-        for (Entry<Key> entry : bucket) {
-          consumer.accept(entry);
-        }
+  @SuppressWarnings("unchecked")
+  public void forEach(ObjDoubleConsumer<? super Key> consumer) {
+    for (int i = 0; i < keys.length; ++i) {
+      if (keys[i] != null) {
+        consumer.accept((Key) keys[i], values[i]);
       }
     }
   }
 
+  public void actOnEntries(Consumer<Entry<Key>> consumer) {
+    forEach((k, v) -> consumer.accept(new Entry<>(k, v)));
+  }
+
   public Stream<Entry<Key>> entries() {
-    Stream<Entry<Key>> s = Stream.empty();
-    for (List<Entry<Key>> bucket : arr) {
-      if (bucket != null) {
-        s = Stream.concat(s, bucket.stream());
+    return StreamSupport.stream(new EntrySpliterator(0, keys.length), false);
+  }
+
+  /**
+   * Returns a parallel stream of the entries, split by ranges of slots.
+   *
+   * @return
+   */
+  public Stream<Entry<Key>> parallelEntries() {
+    return StreamSupport.stream(new EntrySpliterator(0, keys.length), true);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("{");
+    forEach((k, v) -> sb.append(sb.length() == 1 ? "" : ", ").append(k).append('=').append(v));
+    return sb.append('}').toString();
+  }
+
+  private class EntrySpliterator implements Spliterator<Entry<Key>> {
+
+    private int index;
+    private final int fence;
+
+    EntrySpliterator(int index, int fence) {
+      this.index = index;
+      this.fence = fence;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean tryAdvance(Consumer<? super Entry<Key>> action) {
+      while (index < fence) {
+        int i = index++;
+        if (keys[i] != null) {
+          action.accept(new Entry<>((Key) keys[i], values[i]));
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void forEachRemaining(Consumer<? super Entry<Key>> action) {
+      for (; index < fence; ++index) {
+        if (keys[index] != null) {
+          action.accept(new Entry<>((Key) keys[index], values[index]));
+        }
+      }
+    }
+
+    @Override
+    public Spliterator<Entry<Key>> trySplit() {
+      if (fence - index < MIN_SPLIT) {
+        return null;
       }
+      int mid = (index + fence) >>> 1;
+      Spliterator<Entry<Key>> prefix = new EntrySpliterator(index, mid);
+      index = mid;
+      return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+      return (long) (fence - index) * size / keys.length;
+    }
+
+    @Override
+    public int characteristics() {
+      return DISTINCT | NONNULL;
     }
-    return s;
   }
 
+  /**
+   * A key and the value it held when the entry was read.
+   */
   public static class Entry<Key> {
     private final Key key;
-    private double value;
-    private final int hashCode;
+    private final double value;
 
-    public Entry(Key key, double value, int hashCode) {
-      super();
+    public Entry(Key key, double value) {
       this.key = key;
       this.value = value;
-      this.hashCode = hashCode;
     }
 
     public Key getKey() {
@@ -178,13 +338,9 @@ public class ObjectToDoubleMap<Key> {
       return value;
     }
 
-    public void setValue(double value) {
-      this.value = value;
-    }
-
     @Override
-    public int hashCode() {
-      return hashCode;
+    public String toString() {
+      return key + "=" + value;
     }
   }
 
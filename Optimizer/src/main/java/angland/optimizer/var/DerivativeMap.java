@@ -1,83 +1,118 @@
 package angland.optimizer.var;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.function.Consumer;
-
-
+import java.util.Arrays;
 
+/**
+ * Sums derivatives by key. Entries are held in parallel key and value arrays in insertion order,
+ * located through an open-addressing table of entry indices. Merging into an existing key does not
+ * allocate, visiting the entries is a sequential scan, and growing the table only rehashes the
+ * indices.
+ * 
+ * @author John Angland
+ * 
+ * @param <VarKey>
+ */
 public class DerivativeMap<VarKey> {
 
-
-  private KeyedDerivativeMapNode<VarKey>[] buckets;
+  private IndexedKey<VarKey>[] keys;
+  private double[] values;
+  private int[] table;
   private int entryCount = 0;
-  private float loadFactor = 1;
 
   @SuppressWarnings("unchecked")
   public DerivativeMap(int initialArraySize) {
-    this.buckets = new KeyedDerivativeMapNode[initialArraySize];
+    int capacity = Math.max(4, initialArraySize);
+    this.keys = new IndexedKey[capacity];
+    this.values = new double[capacity];
+    this.table = new int[Integer.highestOneBit(capacity * 2 - 1) << 1];
   }
 
-  public double get(IndexedKey<VarKey> key) {
-    KeyedDerivativeMapNode<VarKey> node = buckets[Math.abs(key.hashCode()) % buckets.length];
-    while (node != null) {
-      if (key.equals(node.getKey())) {
-        return node.value;
-      }
-      node = node.next;
-    }
-    return 0;
+  private static int spread(int hashCode) {
+    int h = hashCode * 0x9E3779B9;
+    return h ^ (h >>> 16);
   }
 
-  @SuppressWarnings("unchecked")
-  private void reorgIfNeeded() {
-    if (loadFactor * entryCount > buckets.length) {
-      KeyedDerivativeMapNode<VarKey>[] oldBuckets = buckets;
-      buckets = new KeyedDerivativeMapNode[oldBuckets.length * 2];
-      for (int i = 0; i < oldBuckets.length; ++i) {
-        KeyedDerivativeMapNode<VarKey> node = oldBuckets[i];
-        while (node != null) {
-          KeyedDerivativeMapNode<VarKey> copy =
-              new KeyedDerivativeMapNode<>(node.getKey(), node.getValue());
-          int idx = Math.abs(copy.getKey().hashCode()) % buckets.length;
-          copy.next = buckets[idx];
-          buckets[idx] = copy;
-          node = node.next;
-        }
+  /**
+   * Returns the table position holding the key's entry index plus one, or minus one minus the
+   * empty position at which it would be inserted.
+   */
+  private int positionOf(IndexedKey<VarKey> key) {
+    int mask = table.length - 1;
+    int pos = spread(key.hashCode()) & mask;
+    int entry;
+    while ((entry = table[pos]) != 0) {
+      IndexedKey<VarKey> existing = keys[entry - 1];
+      if (existing == key || existing.equals(key)) {
+        return pos;
       }
+      pos = (pos + 1) & mask;
     }
+    return -1 - pos;
+  }
+
+  public double get(IndexedKey<VarKey> key) {
+    int pos = positionOf(key);
+    return pos < 0 ? 0 : values[table[pos] - 1];
+  }
+
+  public int size() {
+    return entryCount;
   }
 
   public void merge(IndexedKey<VarKey> key, double value) {
-    KeyedDerivativeMapNode<VarKey> node = buckets[Math.abs(key.hashCode()) % buckets.length];
-    while (node != null) {
-      if (node.getKey().equals(key)) {
-        node.setValue(node.getValue() + value);
-        return;
-      }
-      node = node.next;
+    int pos = positionOf(key);
+    if (pos >= 0) {
+      values[table[pos] - 1] += value;
+      return;
     }
-    KeyedDerivativeMapNode<VarKey> newNode = new KeyedDerivativeMapNode<>(key, value);
-    newNode.next = buckets[Math.abs(key.hashCode()) % buckets.length];
-    buckets[Math.abs(key.hashCode()) % buckets.length] = newNode;
+    if (entryCount == keys.length) {
+      keys = Arrays.copyOf(keys, entryCount * 2);
+      values = Arrays.copyOf(values, entryCount * 2);
+    }
+    keys[entryCount] = key;
+    values[entryCount] = value;
     ++entryCount;
-    reorgIfNeeded();
+    if (2 * entryCount > table.length) {
+      rehash();
+    } else {
+      table[-1 - pos] = entryCount;
+    }
   }
 
-  public void actOnEntries(Consumer<KeyedDerivative<VarKey>> consumer) {
-    for (int i = 0; i < buckets.length; ++i) {
-      KeyedDerivativeMapNode<VarKey> node = buckets[i];
-      while (node != null) {
-        consumer.accept(node);
-        node = node.next;
+  private void rehash() {
+    table = new int[table.length * 2];
+    int mask = table.length - 1;
+    for (int i = 0; i < entryCount; ++i) {
+      int pos = spread(keys[i].hashCode()) & mask;
+      while (table[pos] != 0) {
+        pos = (pos + 1) & mask;
       }
+      table[pos] = i + 1;
+    }
+  }
+
+  public void actOnEntries(DerivativeSink<VarKey> sink) {
+    for (int i = 0; i < entryCount; ++i) {
+      sink.accept(keys[i], values[i]);
     }
   }
 
   /**
+   * Invokes the sink on multiplier times each entry.
    * 
-   * If n is greater than or equal to the number of entries, returns this map.
+   * @param multiplier
+   * @param sink
+   */
+  public void actOnEntries(double multiplier, DerivativeSink<VarKey> sink) {
+    for (int i = 0; i < entryCount; ++i) {
+      sink.accept(keys[i], multiplier * values[i]);
+    }
+  }
+
+  /**
+   * 
+   * If n is greater than or equal to the number of entries, returns this map. If n is zero or
+   * negative, returns an empty map.
    * 
    * Otherwise, returns a new derivativemap containing only the n entries from this map with the
    * highest absolute value.
@@ -86,12 +121,26 @@ public class DerivativeMap<VarKey> {
    */
   public DerivativeMap<VarKey> getHighestAbs(int n) {
     if (n >= entryCount) return this;
-    List<KeyedDerivative<VarKey>> entries = new ArrayList<>();
-    actOnEntries(entries::add);
-    Collections.sort(entries, (e1, e2) -> Double.compare(Math.abs(e2.value), Math.abs(e1.value)));
+    if (n <= 0) return new DerivativeMap<>(0);
+    double[] abs = new double[entryCount];
+    for (int i = 0; i < entryCount; ++i) {
+      abs[i] = Math.abs(values[i]);
+    }
+    Arrays.sort(abs);
+    double threshold = abs[entryCount - n];
+    int aboveThreshold = 0;
+    for (int i = entryCount - n; i < entryCount; ++i) {
+      if (abs[i] > threshold) {
+        ++aboveThreshold;
+      }
+    }
+    int atThreshold = n - aboveThreshold;
     DerivativeMap<VarKey> outputMap = new DerivativeMap<>(n);
-    for (int i = 0; i < n; ++i) {
-      outputMap.merge(entries.get(i).getKey(), entries.get(i).value);
+    for (int i = 0; i < entryCount; ++i) {
+      double a = Math.abs(values[i]);
+      if (a > threshold || (a == threshold && atThreshold-- > 0)) {
+        outputMap.merge(keys[i], values[i]);
+      }
     }
     return outputMap;
   }
@@ -0,0 +1,15 @@
+package angland.optimizer.var;
+
+/**
+ * Receives derivatives with respect to individual keys without wrapping them in an object.
+ * 
+ * @author John Angland
+ * 
+ * @param <VarKey>
+ */
+@FunctionalInterface
+public interface DerivativeSink<VarKey> {
+
+  public void accept(IndexedKey<VarKey> key, double value);
+
+}
@@ -0,0 +1,195 @@
+package angland.optimizer.var;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import angland.optimizer.var.scalar.Scalar;
+
+/**
+ * Accumulates gradients from many threads into a ParameterStore without locking.
+ * 
+ * Each thread that calls accumulate adds into its own dense buffer, aligned to the store's value
+ * array. reduce then sums the buffers into the store's gradient, splitting the array into chunks
+ * that are summed concurrently, and zeroes the buffers for the next batch. Every buffer is as
+ * large as the store, so an accumulator should be created once and reused for every batch.
+ * 
+ * Slots marked with setSparseColumns are excluded from the chunked reduction. Each thread instead
+ * records the columns of those slots it touched, and reduce sums only those columns and marks them
+ * touched in the slot, so the cost of a batch scales with the tokens it contains rather than with
+ * the vocabulary.
+ * 
+ * @author John Angland
+ *
+ * @param <VarKey>
+ */
+public class GradientAccumulator<VarKey> {
+
+  private static final int REDUCE_CHUNK = 1 << 15;
+
+  private final ParameterStore<VarKey> store;
+  private final List<ParameterStore.Slot<VarKey>> sparseSlots;
+  private final List<ThreadBuffer> buffers = new ArrayList<>();
+  private final ThreadLocal<ThreadBuffer> threadBuffer = ThreadLocal.withInitial(this::newBuffer);
+
+  /**
+   * A thread's dense buffer and the columns of each sparse slot it has touched.
+   */
+  private class ThreadBuffer {
+    private final double[] gradient = new double[store.size()];
+    private final boolean[][] touched = new boolean[sparseSlots.size()][];
+    private final int[][] touchedColumns = new int[sparseSlots.size()][];
+    private final int[] touchedCounts = new int[sparseSlots.size()];
+
+    private ThreadBuffer() {
+      for (int i = 0; i < sparseSlots.size(); ++i) {
+        touched[i] = new boolean[sparseSlots.get(i).getWidth()];
+        touchedColumns[i] = new int[16];
+      }
+    }
+
+    private void add(int offset, double derivative) {
+      gradient[offset] += derivative;
+      if (derivative == 0) {
+        return;
+      }
+      for (int i = 0; i < touched.length; ++i) {
+        ParameterStore.Slot<VarKey> slot = sparseSlots.get(i);
+        int index = offset - slot.getOffset();
+        if (index >= 0 && index < slot.getLength()) {
+          int column = index % slot.getWidth();
+          if (!touched[i][column]) {
+            touched[i][column] = true;
+            if (touchedCounts[i] == touchedColumns[i].length) {
+              touchedColumns[i] = Arrays.copyOf(touchedColumns[i], touchedCounts[i] * 2);
+            }
+            touchedColumns[i][touchedCounts[i]++] = column;
+          }
+          return;
+        }
+      }
+    }
+  }
+
+  public GradientAccumulator(ParameterStore<VarKey> store) {
+    this.store = store;
+    this.sparseSlots = store.getSparseSlots();
+  }
+
+  public ParameterStore<VarKey> getStore() {
+    return store;
+  }
+
+  private ThreadBuffer newBuffer() {
+    ThreadBuffer buffer = new ThreadBuffer();
+    synchronized (buffers) {
+      buffers.add(buffer);
+    }
+    return buffer;
+  }
+
+  /**
+   * Adds multiplier times the gradient of the given scalar to the calling thread's buffer. May be
+   * called from any number of threads at once, but not concurrently with reduce.
+   * 
+   * @param scalar
+   * @param multiplier
+   */
+  public void accumulate(Scalar<VarKey> scalar, double multiplier) {
+    ThreadBuffer buffer = threadBuffer.get();
+    if (sparseSlots.isEmpty()) {
+      store.accumulateGradient(scalar, multiplier, buffer.gradient);
+    } else {
+      store.sweep(scalar, multiplier, buffer::add);
+    }
+  }
+
+  /**
+   * Adds every thread's buffer to the store's gradient and zeroes the buffers. Chunks of the dense
+   * slots are reduced as separate tasks on the executor, and the touched columns of sparse slots as
+   * one more task.
+   * 
+   * @param es
+   */
+  public void reduce(ExecutorService es) {
+    List<ThreadBuffer> toReduce;
+    synchronized (buffers) {
+      toReduce = new ArrayList<>(buffers);
+    }
+    if (toReduce.isEmpty()) {
+      return;
+    }
+    List<Callable<Void>> tasks = new ArrayList<>();
+    int spanStart = 0;
+    for (ParameterStore.Slot<VarKey> slot : store.getSlots()) {
+      if (sparseSlots.contains(slot)) {
+        addChunks(tasks, toReduce, spanStart, slot.getOffset());
+        spanStart = slot.getOffset() + slot.getLength();
+      }
+    }
+    addChunks(tasks, toReduce, spanStart, store.size());
+    if (!sparseSlots.isEmpty()) {
+      tasks.add(() -> {
+        reduceSparse(toReduce);
+        return null;
+      });
+    }
+    try {
+      for (Future<Void> future : es.invokeAll(tasks)) {
+        future.get();
+      }
+    } catch (InterruptedException | ExecutionException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void addChunks(List<Callable<Void>> tasks, List<ThreadBuffer> toReduce, int start,
+      int end) {
+    for (int chunkStart = start; chunkStart < end; chunkStart += REDUCE_CHUNK) {
+      int from = chunkStart;
+      int to = Math.min(end, chunkStart + REDUCE_CHUNK);
+      tasks.add(() -> {
+        reduce(toReduce, from, to);
+        return null;
+      });
+    }
+  }
+
+  private void reduce(List<ThreadBuffer> toReduce, int start, int end) {
+    double[] gradient = store.getGradient();
+    for (ThreadBuffer buffer : toReduce) {
+      double[] source = buffer.gradient;
+      for (int i = start; i < end; ++i) {
+        gradient[i] += source[i];
+        source[i] = 0;
+      }
+    }
+  }
+
+  private void reduceSparse(List<ThreadBuffer> toReduce) {
+    double[] gradient = store.getGradient();
+    for (ThreadBuffer buffer : toReduce) {
+      double[] source = buffer.gradient;
+      for (int i = 0; i < sparseSlots.size(); ++i) {
+        ParameterStore.Slot<VarKey> slot = sparseSlots.get(i);
+        int[] columns = buffer.touchedColumns[i];
+        for (int j = 0; j < buffer.touchedCounts[i]; ++j) {
+          int column = columns[j];
+          slot.touchColumn(column);
+          buffer.touched[i][column] = false;
+          for (int offset = slot.getOffset() + column; offset < slot.getOffset()
+              + slot.getLength(); offset += slot.getWidth()) {
+            gradient[offset] += source[offset];
+            source[offset] = 0;
+          }
+        }
+        buffer.touchedCounts[i] = 0;
+      }
+    }
+  }
+
+}
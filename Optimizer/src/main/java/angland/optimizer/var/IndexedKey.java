@@ -65,11 +65,12 @@ public class IndexedKey<VarKey> {
   public boolean equals(Object obj) {
     if (this == obj) return true;
     if (obj == null) return false;
-    if (getClass() != obj.getClass()) return false;
+    if (!(obj instanceof IndexedKey)) return false;
     @SuppressWarnings("rawtypes")
     IndexedKey other = (IndexedKey) obj;
     if (hashCode != other.hashCode) return false;
     if (row != other.row) return false;
+    if (col != other.col) return false;
     if (varKey == null) {
       if (other.varKey != null) return false;
     } else if (!varKey.equals(other.varKey)) return false;
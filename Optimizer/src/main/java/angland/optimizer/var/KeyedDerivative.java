@@ -40,6 +40,29 @@ public class KeyedDerivative<VarKey> {
 
   }
 
+  /**
+   * Prints the count of nonzero derivatives and their average absolute value for each slot of the
+   * store's gradient.
+   * 
+   * @param store
+   */
+  public static <VarKey> void printRelativeDist(ParameterStore<VarKey> store) {
+    System.out.println("Printing derivative dist:");
+    double[] gradient = store.getGradient();
+    for (ParameterStore.Slot<VarKey> slot : store.getSlots()) {
+      int count = 0;
+      double sum = 0;
+      for (int i = slot.getOffset(); i < slot.getOffset() + slot.getLength(); ++i) {
+        if (gradient[i] != 0) {
+          ++count;
+          sum += Math.abs(gradient[i]);
+        }
+      }
+      System.out.println(slot.getKey() + ", count: " + count + ", average abs: "
+          + (count == 0 ? 0.0 : sum / count));
+    }
+  }
+
   @Override
   public int hashCode() {
     return key.hashCode();
@@ -0,0 +1,606 @@
+package angland.optimizer.var;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import angland.optimizer.Range;
+import angland.optimizer.var.scalar.Scalar;
+
+/**
+ * Holds the values of named matrices in one contiguous array, with a parallel array for their
+ * gradient.
+ * 
+ * Each registered matrix occupies a slot of height * width consecutive, row-major entries. The
+ * store interns its keys: each entry has one canonical key, created the first time it is asked
+ * for and kept for the life of the store, which remembers its offset. Resolving such a key again
+ * costs nothing, and equal keys from the same store are usually identical, so comparing them
+ * rarely goes past the identity check. The offset serves as the key's dense integer id. The store
+ * is also a Map, so it may be passed anywhere a context is expected; Matrix.var and Scalar.var
+ * recognize it and read from the array directly.
+ * 
+ * @author John Angland
+ * 
+ * @param <VarKey>
+ */
+public class ParameterStore<VarKey> extends AbstractMap<IndexedKey<VarKey>, Double> {
+
+  private final Map<VarKey, Slot<VarKey>> slots = new LinkedHashMap<>();
+  private final List<Slot<VarKey>> slotList = new ArrayList<>();
+  private double[] values = new double[16];
+  private double[] gradient = new double[16];
+  @SuppressWarnings("unchecked")
+  private IndexedKey<VarKey>[] canonicalKeys = new IndexedKey[16];
+  private int size = 0;
+
+  /**
+   * A named matrix within a store.
+   */
+  public static class Slot<VarKey> {
+    private final VarKey key;
+    private final int offset;
+    private final int height;
+    private final int width;
+    private final boolean scalar;
+    private Range range;
+    private boolean[] touched;
+    private int[] touchedColumns;
+    private int touchedCount;
+
+    private Slot(VarKey key, int offset, int height, int width, boolean scalar) {
+      this.key = key;
+      this.offset = offset;
+      this.height = height;
+      this.width = width;
+      this.scalar = scalar;
+    }
+
+    public VarKey getKey() {
+      return key;
+    }
+
+    public int getOffset() {
+      return offset;
+    }
+
+    public int getHeight() {
+      return height;
+    }
+
+    public int getWidth() {
+      return width;
+    }
+
+    public int getLength() {
+      return height * width;
+    }
+
+    /**
+     * Returns true if this slot holds a scalar registered with IndexedKey.scalarKey.
+     * 
+     * @return
+     */
+    public boolean isScalar() {
+      return scalar;
+    }
+
+    /**
+     * Returns the range to which optimizers clip this slot's values, or null if unbounded.
+     * 
+     * @return
+     */
+    public Range getRange() {
+      return range;
+    }
+
+    public void setRange(Range range) {
+      this.range = range;
+    }
+
+    /**
+     * Returns true if this slot's gradient is tracked by column, so that only the columns touched
+     * since the last update are updated.
+     * 
+     * @return
+     */
+    public boolean isSparseColumns() {
+      return touched != null;
+    }
+
+    /**
+     * Marks this slot's gradient as sparse by column, as for an embedding whose columns are tokens.
+     * Optimizer.applyGradient then updates only the columns that received a nonzero derivative
+     * through ParameterStore.accumulateGradient or a GradientAccumulator, so gradient added to such
+     * a slot by other means is ignored. Must be set before any GradientAccumulator over the store
+     * is created.
+     * 
+     * @param sparseColumns
+     */
+    public void setSparseColumns(boolean sparseColumns) {
+      touched = sparseColumns ? new boolean[width] : null;
+      touchedColumns = sparseColumns ? new int[16] : null;
+      touchedCount = 0;
+    }
+
+    /**
+     * Records that the given column has gradient to apply. Only valid for sparse slots.
+     * 
+     * @param column
+     */
+    public void touchColumn(int column) {
+      if (!touched[column]) {
+        touched[column] = true;
+        if (touchedCount == touchedColumns.length) {
+          touchedColumns = Arrays.copyOf(touchedColumns, touchedCount * 2);
+        }
+        touchedColumns[touchedCount++] = column;
+      }
+    }
+
+    /**
+     * Returns the columns touched since the last call to clearTouchedColumns, in the order they
+     * were first touched.
+     * 
+     * @return
+     */
+    public int[] getTouchedColumns() {
+      return touchedColumns == null ? new int[0] : Arrays.copyOf(touchedColumns, touchedCount);
+    }
+
+    public void clearTouchedColumns() {
+      for (int i = 0; i < touchedCount; ++i) {
+        touched[touchedColumns[i]] = false;
+      }
+      touchedCount = 0;
+    }
+  }
+
+  /**
+   * A key that remembers the store and offset it was resolved against.
+   */
+  private static class StoredKey<VarKey> extends IndexedKey<VarKey> {
+    private final ParameterStore<VarKey> store;
+    private final int offset;
+
+    private StoredKey(VarKey varKey, int row, int col, ParameterStore<VarKey> store, int offset) {
+      super(varKey, row, col);
+      this.store = store;
+      this.offset = offset;
+    }
+  }
+
+  /**
+   * Creates a store holding every key in the context. Shapes are inferred from the largest row and
+   * column of each variable; any entries missing from the context start at zero.
+   * 
+   * @param context
+   * @return
+   */
+  public static <VarKey> ParameterStore<VarKey> fromContext(
+      Map<IndexedKey<VarKey>, Double> context) {
+    return fromKeys(context.keySet().stream(), context::get);
+  }
+
+  /**
+   * Creates a store holding every key in the stream, initialized with the given function.
+   * 
+   * @param keys
+   * @param initialValue
+   * @return
+   */
+  public static <VarKey> ParameterStore<VarKey> fromKeys(Stream<IndexedKey<VarKey>> keys,
+      ToDoubleFunction<IndexedKey<VarKey>> initialValue) {
+    List<IndexedKey<VarKey>> keyList = keys.collect(Collectors.toList());
+    Map<VarKey, int[]> shapes = new LinkedHashMap<>();
+    for (IndexedKey<VarKey> key : keyList) {
+      int[] shape = shapes.computeIfAbsent(key.getVarKey(), k -> new int[] {-1, -1});
+      shape[0] = Math.max(shape[0], key.getRow());
+      shape[1] = Math.max(shape[1], key.getCol());
+    }
+    ParameterStore<VarKey> store = new ParameterStore<>();
+    shapes.forEach((varKey, shape) -> {
+      if (shape[0] < 0) {
+        store.registerScalar(varKey);
+      } else {
+        store.register(varKey, shape[0] + 1, shape[1] + 1);
+      }
+    });
+    for (IndexedKey<VarKey> key : keyList) {
+      store.values[store.getOffset(key)] = initialValue.applyAsDouble(key);
+    }
+    return store;
+  }
+
+  /**
+   * Reserves a slot for a matrix, initialized to zero. If the key is already registered with the
+   * same shape, returns the existing slot.
+   * 
+   * @param key
+   * @param height
+   * @param width
+   * @return
+   */
+  public Slot<VarKey> register(VarKey key, int height, int width) {
+    return register(key, height, width, false);
+  }
+
+  public Slot<VarKey> registerScalar(VarKey key) {
+    return register(key, 1, 1, true);
+  }
+
+  private Slot<VarKey> register(VarKey key, int height, int width, boolean scalar) {
+    Slot<VarKey> existing = slots.get(key);
+    if (existing != null) {
+      if (existing.height != height || existing.width != width || existing.scalar != scalar) {
+        throw new IllegalArgumentException("Key " + key + " is already registered as "
+            + existing.height + "x" + existing.width);
+      }
+      return existing;
+    }
+    int length = height * width;
+    if (size + length > values.length) {
+      int capacity = Math.max(values.length * 2, size + length);
+      values = Arrays.copyOf(values, capacity);
+      gradient = Arrays.copyOf(gradient, capacity);
+      canonicalKeys = Arrays.copyOf(canonicalKeys, capacity);
+    }
+    Slot<VarKey> slot = new Slot<>(key, size, height, width, scalar);
+    slots.put(key, slot);
+    slotList.add(slot);
+    size += length;
+    return slot;
+  }
+
+  /**
+   * Returns a new store with the same slots and a copy of this store's values. Gradients, ranges
+   * and sparse markings are not copied.
+   * 
+   * @return
+   */
+  public ParameterStore<VarKey> copy() {
+    ParameterStore<VarKey> copy = new ParameterStore<>();
+    for (Slot<VarKey> slot : slotList) {
+      copy.register(slot.key, slot.height, slot.width, slot.scalar);
+    }
+    System.arraycopy(values, 0, copy.values, 0, size);
+    return copy;
+  }
+
+  /**
+   * Returns the slot for the given key, or null if none is registered.
+   * 
+   * @param key
+   * @return
+   */
+  public Slot<VarKey> getSlot(VarKey key) {
+    return slots.get(key);
+  }
+
+  public Collection<Slot<VarKey>> getSlots() {
+    return Collections.unmodifiableList(slotList);
+  }
+
+  /**
+   * Sets the range of every registered slot.
+   * 
+   * @param range
+   */
+  public void setRange(Range range) {
+    slotList.forEach(s -> s.setRange(range));
+  }
+
+  /**
+   * Returns the number of values held by the store.
+   */
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the array of values. Entries at or beyond size() are unused.
+   * 
+   * @return
+   */
+  public double[] getValues() {
+    return values;
+  }
+
+  /**
+   * Returns the gradient array, which is parallel to getValues().
+   * 
+   * @return
+   */
+  public double[] getGradient() {
+    return gradient;
+  }
+
+  /**
+   * Returns the offset of the given key within getValues(), or -1 if it is not held by this store.
+   * 
+   * @param key
+   * @return
+   */
+  public int getOffset(IndexedKey<VarKey> key) {
+    if (key instanceof StoredKey && ((StoredKey<VarKey>) key).store == this) {
+      return ((StoredKey<VarKey>) key).offset;
+    }
+    Slot<VarKey> slot = slots.get(key.getVarKey());
+    if (slot == null) {
+      return -1;
+    }
+    if (slot.scalar) {
+      return key.getRow() == -1 && key.getCol() == -1 ? slot.offset : -1;
+    }
+    if (key.getRow() < 0 || key.getRow() >= slot.height || key.getCol() < 0
+        || key.getCol() >= slot.width) {
+      return -1;
+    }
+    return slot.offset + key.getRow() * slot.width + key.getCol();
+  }
+
+  /**
+   * Returns the canonical key for the given entry of a slot, which resolves to its offset without a
+   * lookup.
+   * 
+   * @param slot
+   * @param row
+   * @param col
+   * @return
+   */
+  public IndexedKey<VarKey> getKey(Slot<VarKey> slot, int row, int col) {
+    if (slot.scalar) {
+      return canonicalKey(slot.key, -1, -1, slot.offset);
+    }
+    return canonicalKey(slot.key, row, col, slot.offset + row * slot.width + col);
+  }
+
+  /**
+   * Returns the canonical key equal to the given one, which resolves to its offset without a
+   * lookup.
+   * 
+   * @param key
+   * @return
+   */
+  public IndexedKey<VarKey> resolve(IndexedKey<VarKey> key) {
+    if (key instanceof StoredKey && ((StoredKey<VarKey>) key).store == this) {
+      return key;
+    }
+    int offset = getOffset(key);
+    if (offset < 0) {
+      throw new IllegalArgumentException("Key " + key + " is not held by this store.");
+    }
+    return canonicalKey(key.getVarKey(), key.getRow(), key.getCol(), offset);
+  }
+
+  /**
+   * Keys are created without locking. Threads that race to create the same key may each create
+   * one, in which case the keys are equal but not identical; the last one written is kept.
+   */
+  private IndexedKey<VarKey> canonicalKey(VarKey varKey, int row, int col, int offset) {
+    IndexedKey<VarKey> key = canonicalKeys[offset];
+    if (key == null) {
+      key = new StoredKey<>(varKey, row, col, this, offset);
+      canonicalKeys[offset] = key;
+    }
+    return key;
+  }
+
+  /**
+   * Returns the key held at the given offset.
+   * 
+   * @param offset
+   * @return
+   */
+  public IndexedKey<VarKey> getKey(int offset) {
+    Slot<VarKey> slot = getSlotAt(offset);
+    int index = offset - slot.offset;
+    return getKey(slot, index / slot.width, index % slot.width);
+  }
+
+  /**
+   * Returns the slot containing the given offset.
+   * 
+   * @param offset
+   * @return
+   */
+  public Slot<VarKey> getSlotAt(int offset) {
+    if (offset < 0 || offset >= size) {
+      throw new IndexOutOfBoundsException("Offset " + offset + " is outside the store.");
+    }
+    int lo = 0;
+    int hi = slotList.size() - 1;
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (slotList.get(mid).offset <= offset) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return slotList.get(lo);
+  }
+
+  /**
+   * Adds multiplier times the gradient of the given scalar to getGradient(), recording the touched
+   * columns of sparse slots. Not safe to call from several threads at once; use a
+   * GradientAccumulator for that.
+   * 
+   * @param scalar
+   * @param multiplier
+   */
+  public void accumulateGradient(Scalar<VarKey> scalar, double multiplier) {
+    List<Slot<VarKey>> sparse = getSparseSlots();
+    if (sparse.isEmpty()) {
+      accumulateGradient(scalar, multiplier, gradient);
+      return;
+    }
+    sweep(scalar, multiplier, (offset, derivative) -> {
+      gradient[offset] += derivative;
+      if (derivative != 0) {
+        for (Slot<VarKey> slot : sparse) {
+          int index = offset - slot.offset;
+          if (index >= 0 && index < slot.getLength()) {
+            slot.touchColumn(index % slot.width);
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Returns the slots whose gradient is sparse by column.
+   * 
+   * @return
+   */
+  public List<Slot<VarKey>> getSparseSlots() {
+    List<Slot<VarKey>> sparse = new ArrayList<>();
+    for (Slot<VarKey> slot : slotList) {
+      if (slot.isSparseColumns()) {
+        sparse.add(slot);
+      }
+    }
+    return sparse;
+  }
+
+  /**
+   * Adds multiplier times the gradient of the given scalar to target, which is indexed like
+   * getValues() and must hold at least size() entries.
+   * 
+   * @param scalar
+   * @param multiplier
+   * @param target
+   */
+  public void accumulateGradient(Scalar<VarKey> scalar, double multiplier, double[] target) {
+    sweep(scalar, multiplier, (offset, derivative) -> target[offset] += derivative);
+  }
+
+  /**
+   * Receives derivatives by their offset within getValues().
+   */
+  @FunctionalInterface
+  public interface OffsetSink {
+    public void accept(int offset, double derivative);
+  }
+
+  /**
+   * Passes multiplier times each derivative of the given scalar to the sink, by offset. Derivatives
+   * with respect to keys not held by this store are dropped.
+   * 
+   * @param scalar
+   * @param multiplier
+   * @param sink
+   */
+  public void sweep(Scalar<VarKey> scalar, double multiplier, OffsetSink sink) {
+    Tape.sweep(scalar, multiplier, (key, derivative) -> {
+      int offset = getOffset(key);
+      if (offset >= 0) {
+        sink.accept(offset, derivative);
+      }
+    }, (varKey, dense) -> {
+      Slot<VarKey> slot = slots.get(varKey);
+      if (slot != null) {
+        for (int i = 0; i < dense.length; ++i) {
+          sink.accept(slot.offset + i, dense[i]);
+        }
+      }
+    });
+  }
+
+  public void clearGradient() {
+    Arrays.fill(gradient, 0, size, 0);
+    for (Slot<VarKey> slot : slotList) {
+      if (slot.isSparseColumns()) {
+        slot.clearTouchedColumns();
+      }
+    }
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return key instanceof IndexedKey && offsetOf(key) >= 0;
+  }
+
+  @Override
+  public Double get(Object key) {
+    if (!(key instanceof IndexedKey)) {
+      return null;
+    }
+    int offset = offsetOf(key);
+    return offset < 0 ? null : values[offset];
+  }
+
+  @Override
+  public Double put(IndexedKey<VarKey> key, Double value) {
+    int offset = getOffset(key);
+    if (offset < 0) {
+      throw new IllegalArgumentException("Key " + key + " is not registered in this store.");
+    }
+    double previous = values[offset];
+    values[offset] = value;
+    return previous;
+  }
+
+  @SuppressWarnings("unchecked")
+  private int offsetOf(Object key) {
+    return getOffset((IndexedKey<VarKey>) key);
+  }
+
+  @Override
+  public Set<Map.Entry<IndexedKey<VarKey>, Double>> entrySet() {
+    return new AbstractSet<Map.Entry<IndexedKey<VarKey>, Double>>() {
+
+      @Override
+      public Iterator<Map.Entry<IndexedKey<VarKey>, Double>> iterator() {
+        return new Iterator<Map.Entry<IndexedKey<VarKey>, Double>>() {
+          private int offset = 0;
+
+          @Override
+          public boolean hasNext() {
+            return offset < size;
+          }
+
+          @Override
+          public Map.Entry<IndexedKey<VarKey>, Double> next() {
+            if (offset >= size) {
+              throw new NoSuchElementException();
+            }
+            // Iterating the whole store should not intern every key, so uninterned keys are
+            // created afresh.
+            IndexedKey<VarKey> key = canonicalKeys[offset];
+            if (key == null) {
+              Slot<VarKey> slot = getSlotAt(offset);
+              int index = offset - slot.offset;
+              key =
+                  slot.scalar ? new StoredKey<>(slot.key, -1, -1, ParameterStore.this, offset)
+                      : new StoredKey<>(slot.key, index / slot.width, index % slot.width,
+                          ParameterStore.this, offset);
+            }
+            Map.Entry<IndexedKey<VarKey>, Double> entry =
+                new AbstractMap.SimpleImmutableEntry<>(key, values[offset]);
+            ++offset;
+            return entry;
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return size;
+      }
+    };
+  }
+
+}
@@ -0,0 +1,339 @@
+package angland.optimizer.var;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * A per-thread workspace for reverse-mode differentiation.
+ *
+ * A sweep records every node reachable from a root in topological order, seeds the root with an
+ * adjoint of one, and then visits the recorded nodes in reverse. Each node therefore distributes
+ * its fully accumulated adjoint to its inputs exactly once, and the cost of a sweep is linear in
+ * the size of the graph no matter how often intermediate results are shared.
+ *
+ * Scalar nodes accumulate a single adjoint. Tensor nodes, which hold many values, accumulate an
+ * array of adjoints that is allocated the first time one of their consumers propagates to them.
+ *
+ * Tapes are reused between sweeps, so a scalar sweep does not allocate once the tape has grown to
+ * fit the largest graph seen on its thread.
+ *
+ * @author John Angland
+ *
+ * @param <VarKey>
+ */
+public class Tape<VarKey> {
+
+  private static final ThreadLocal<Tape<?>> current = ThreadLocal.withInitial(Tape::new);
+
+  private TapeNode<VarKey>[] nodes;
+  private double[] adjoints;
+  private double[][] tensorAdjoints;
+  private int[] tablePositions;
+  private int size;
+
+  private Object[] tableKeys;
+  private int[] tableSlots;
+
+  private TapeNode<VarKey>[] stack;
+  private boolean[] expanded;
+  private int stackSize;
+
+  private final Consumer<TapeNode<VarKey>> pusher = this::push;
+  private DerivativeSink<VarKey> sink;
+  private BiConsumer<VarKey, double[]> denseConsumer;
+  private boolean inUse = false;
+  private Tape<VarKey> nested;
+
+  @SuppressWarnings("unchecked")
+  private Tape() {
+    this.nodes = new TapeNode[64];
+    this.adjoints = new double[64];
+    this.tensorAdjoints = new double[64][];
+    this.tablePositions = new int[64];
+    this.tableKeys = new Object[128];
+    this.tableSlots = new int[128];
+    this.stack = new TapeNode[64];
+    this.expanded = new boolean[64];
+  }
+
+  /**
+   * Invokes the consumer on the derivative of root with respect to each variable it depends on. A
+   * key may be passed to the consumer more than once, in which case its derivatives should be
+   * summed.
+   *
+   * @param root
+   * @param consumer
+   */
+  public static <VarKey> void sweep(TapeNode<VarKey> root,
+      Consumer<KeyedDerivative<VarKey>> consumer) {
+    sweep(root, 1, (key, value) -> consumer.accept(new KeyedDerivative<>(key, value)), null);
+  }
+
+  /**
+   * Invokes the sink on multiplier times the derivative of root with respect to each variable it
+   * depends on. Nothing is allocated per derivative. A key may be passed to the sink more than
+   * once, in which case its derivatives should be summed.
+   *
+   * @param root
+   * @param multiplier
+   * @param sink
+   */
+  public static <VarKey> void sweep(TapeNode<VarKey> root, double multiplier,
+      DerivativeSink<VarKey> sink) {
+    sweep(root, multiplier, sink, null);
+  }
+
+  /**
+   * Like {@link #sweep(TapeNode, double, DerivativeSink)}, except that tensor variables pass their
+   * whole gradient to denseConsumer as one row-major array rather than one keyed derivative per
+   * element. The array already includes the multiplier, and is only valid for the duration of the
+   * call.
+   *
+   * @param root
+   * @param multiplier
+   * @param sink
+   * @param denseConsumer
+   */
+  public static <VarKey> void sweep(TapeNode<VarKey> root, double multiplier,
+      DerivativeSink<VarKey> sink, BiConsumer<VarKey, double[]> denseConsumer) {
+    Tape<VarKey> tape = acquire();
+    try {
+      tape.run(root, multiplier, sink, denseConsumer);
+    } finally {
+      tape.release();
+    }
+  }
+
+  /**
+   * Returns the tape for the current thread, or a nested tape if a sweep is already in progress on
+   * this thread (for example when a leaf computes its own derivatives with another sweep).
+   *
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  private static <VarKey> Tape<VarKey> acquire() {
+    Tape<VarKey> tape = (Tape<VarKey>) current.get();
+    while (tape.inUse) {
+      if (tape.nested == null) {
+        tape.nested = new Tape<>();
+      }
+      tape = tape.nested;
+    }
+    tape.inUse = true;
+    return tape;
+  }
+
+  private void release() {
+    for (int i = 0; i < size; ++i) {
+      tableKeys[tablePositions[i]] = null;
+      nodes[i] = null;
+      adjoints[i] = 0;
+      tensorAdjoints[i] = null;
+    }
+    for (int i = 0; i < stackSize; ++i) {
+      stack[i] = null;
+    }
+    size = 0;
+    stackSize = 0;
+    sink = null;
+    denseConsumer = null;
+    inUse = false;
+  }
+
+  private void run(TapeNode<VarKey> root, double multiplier, DerivativeSink<VarKey> sink,
+      BiConsumer<VarKey, double[]> denseConsumer) {
+    this.sink = sink;
+    this.denseConsumer = denseConsumer;
+    record(root);
+    adjoints[size - 1] = multiplier;
+    for (int i = size - 1; i >= 0; --i) {
+      if (adjoints[i] != 0 || tensorAdjoints[i] != null) {
+        nodes[i].backpropagate(this, i);
+      }
+    }
+  }
+
+  /**
+   * Records every node reachable from root, such that each node is recorded after all of its
+   * inputs.
+   */
+  private void record(TapeNode<VarKey> root) {
+    push(root);
+    while (stackSize > 0) {
+      int top = stackSize - 1;
+      TapeNode<VarKey> node = stack[top];
+      if (expanded[top]) {
+        stack[top] = null;
+        --stackSize;
+        if (slotOf(node) < 0) {
+          add(node);
+        }
+      } else if (slotOf(node) >= 0) {
+        stack[top] = null;
+        --stackSize;
+      } else {
+        expanded[top] = true;
+        node.forEachInput(pusher);
+      }
+    }
+  }
+
+  private void push(TapeNode<VarKey> node) {
+    if (stackSize == stack.length) {
+      stack = Arrays.copyOf(stack, stack.length * 2);
+      expanded = Arrays.copyOf(expanded, expanded.length * 2);
+    }
+    stack[stackSize] = node;
+    expanded[stackSize] = false;
+    ++stackSize;
+  }
+
+  private void add(TapeNode<VarKey> node) {
+    if (size == nodes.length) {
+      nodes = Arrays.copyOf(nodes, nodes.length * 2);
+      adjoints = Arrays.copyOf(adjoints, adjoints.length * 2);
+      tensorAdjoints = Arrays.copyOf(tensorAdjoints, tensorAdjoints.length * 2);
+      tablePositions = Arrays.copyOf(tablePositions, tablePositions.length * 2);
+    }
+    if (2 * (size + 1) > tableKeys.length) {
+      growTable();
+    }
+    int mask = tableKeys.length - 1;
+    int pos = System.identityHashCode(node) & mask;
+    while (tableKeys[pos] != null) {
+      pos = (pos + 1) & mask;
+    }
+    tableKeys[pos] = node;
+    tableSlots[pos] = size;
+    tablePositions[size] = pos;
+    nodes[size] = node;
+    ++size;
+  }
+
+  private void growTable() {
+    tableKeys = new Object[tableKeys.length * 2];
+    tableSlots = new int[tableKeys.length];
+    int mask = tableKeys.length - 1;
+    for (int i = 0; i < size; ++i) {
+      int pos = System.identityHashCode(nodes[i]) & mask;
+      while (tableKeys[pos] != null) {
+        pos = (pos + 1) & mask;
+      }
+      tableKeys[pos] = nodes[i];
+      tableSlots[pos] = i;
+      tablePositions[i] = pos;
+    }
+  }
+
+  private int slotOf(TapeNode<VarKey> node) {
+    int mask = tableKeys.length - 1;
+    int pos = System.identityHashCode(node) & mask;
+    Object key;
+    while ((key = tableKeys[pos]) != null) {
+      if (key == node) {
+        return tableSlots[pos];
+      }
+      pos = (pos + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the adjoint accumulated so far for the node recorded at the given slot.
+   *
+   * @param slot
+   * @return
+   */
+  public double getAdjoint(int slot) {
+    return adjoints[slot];
+  }
+
+  /**
+   * Adds value to the adjoint of the given input node.
+   *
+   * @param input
+   * @param value
+   */
+  public void accumulate(TapeNode<VarKey> input, double value) {
+    adjoints[recordedSlotOf(input)] += value;
+  }
+
+  /**
+   * Returns the adjoints accumulated so far for the tensor node recorded at the given slot, or null
+   * if none of its consumers have propagated to it.
+   *
+   * @param slot
+   * @return
+   */
+  public double[] getTensorAdjoint(int slot) {
+    return tensorAdjoints[slot];
+  }
+
+  /**
+   * Returns the array into which consumers of the given tensor input should add their adjoints,
+   * allocating it with the given length if necessary.
+   *
+   * @param input
+   * @param length
+   * @return
+   */
+  public double[] getTensorAccumulator(TapeNode<VarKey> input, int length) {
+    int slot = recordedSlotOf(input);
+    double[] accumulator = tensorAdjoints[slot];
+    if (accumulator == null) {
+      accumulator = new double[length];
+      tensorAdjoints[slot] = accumulator;
+    }
+    return accumulator;
+  }
+
+  private int recordedSlotOf(TapeNode<VarKey> input) {
+    int slot = slotOf(input);
+    if (slot < 0) {
+      throw new IllegalStateException("Node was not recorded on this tape: " + input);
+    }
+    return slot;
+  }
+
+  /**
+   * Emits the derivative of the root of the current sweep with respect to the given key.
+   *
+   * @param key
+   * @param value
+   */
+  public void emit(IndexedKey<VarKey> key, double value) {
+    sink.accept(key, value);
+  }
+
+  /**
+   * Returns the sink receiving the derivatives of the current sweep, so that leaves holding many
+   * derivatives may pass them on directly.
+   *
+   * @return
+   */
+  public DerivativeSink<VarKey> getSink() {
+    return sink;
+  }
+
+  /**
+   * Emits the derivative of the root of the current sweep with respect to each element of a tensor
+   * variable, given as a row-major array of the given width.
+   *
+   * @param key
+   * @param width
+   * @param gradient
+   */
+  public void emitDense(VarKey key, int width, double[] gradient) {
+    if (denseConsumer != null) {
+      denseConsumer.accept(key, gradient);
+      return;
+    }
+    for (int i = 0; i < gradient.length; ++i) {
+      if (gradient[i] != 0) {
+        emit(IndexedKey.matrixKey(key, i / width, i % width), gradient[i]);
+      }
+    }
+  }
+
+}
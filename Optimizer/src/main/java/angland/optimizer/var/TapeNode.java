@@ -0,0 +1,33 @@
+package angland.optimizer.var;
+
+import java.util.function.Consumer;
+
+/**
+ * A node that may be recorded onto a {@link Tape} during a reverse-mode sweep.
+ * 
+ * @author John Angland
+ * 
+ * @param <VarKey>
+ */
+public interface TapeNode<VarKey> {
+
+  /**
+   * Invokes the consumer on each node from which this node was directly computed. Nodes that act as
+   * leaves of a sweep, such as variables, constants and cached values, have no inputs.
+   * 
+   * @param consumer
+   */
+  public void forEachInput(Consumer<TapeNode<VarKey>> consumer);
+
+  /**
+   * Invoked exactly once per sweep, after every node computed from this one has contributed to its
+   * adjoint. Interior nodes distribute the adjoint stored at the given slot to their inputs with
+   * {@link Tape#accumulate}. Leaves emit derivatives with respect to their keys with
+   * {@link Tape#emit}.
+   * 
+   * @param tape
+   * @param slot
+   */
+  public void backpropagate(Tape<VarKey> tape, int slot);
+
+}
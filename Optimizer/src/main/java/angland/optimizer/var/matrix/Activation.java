@@ -0,0 +1,53 @@
+package angland.optimizer.var.matrix;
+
+import angland.optimizer.vec.MathUtils;
+
+/**
+ * An elementwise function that {@link DenseMatrix} can apply to a whole matrix at once. Each
+ * function's derivative is expressed in terms of its output, so the backward rule does not need to
+ * keep the input.
+ * 
+ * @author John Angland
+ * 
+ */
+public enum Activation {
+
+  SIGMOID {
+    @Override
+    public double apply(double x) {
+      return MathUtils.sigmoidVal(x);
+    }
+
+    @Override
+    public double derivativeFromOutput(double y) {
+      return y * (1 - y);
+    }
+  },
+  TANH {
+    @Override
+    public double apply(double x) {
+      return Math.tanh(x);
+    }
+
+    @Override
+    public double derivativeFromOutput(double y) {
+      return 1 - y * y;
+    }
+  },
+  EXP {
+    @Override
+    public double apply(double x) {
+      return Math.exp(x);
+    }
+
+    @Override
+    public double derivativeFromOutput(double y) {
+      return y;
+    }
+  };
+
+  public abstract double apply(double x);
+
+  public abstract double derivativeFromOutput(double y);
+
+}
@@ -0,0 +1,985 @@
+package angland.optimizer.var.matrix;
+
+import java.util.Map;
+import java.util.function.Consumer;
+
+import angland.optimizer.var.IndexedKey;
+import angland.optimizer.var.KeyedDerivative;
+import angland.optimizer.var.ParameterStore;
+import angland.optimizer.var.Tape;
+import angland.optimizer.var.TapeNode;
+import angland.optimizer.var.scalar.Scalar;
+
+/**
+ * A matrix whose values are stored in a single row-major array, and whose derivatives are computed
+ * for the whole matrix at once.
+ * 
+ * times, plus, pointwiseMultiply, transform(Activation), softmax, vCat, transpose, selectColumns
+ * and selectRows each return a DenseMatrix that records its inputs and has a matching whole-matrix
+ * backward rule, so a reverse-mode sweep through them carries one adjoint array per matrix instead
+ * of one derivative map per element. A variable's gradient is emitted as a single dense array (see
+ * {@link Tape#emitDense}), except for a variable made by columns, which emits derivatives only for
+ * the columns it gathered.
+ * 
+ * The elements returned by get feed their adjoints back into that array, so dense matrices may be
+ * mixed freely with other matrices and scalars. Operations not listed above fall back to the
+ * elementwise implementations in Matrix.
+ * 
+ * @author John Angland
+ * 
+ * @param <VarKey>
+ */
+public class DenseMatrix<VarKey> implements Matrix<VarKey>, TapeNode<VarKey> {
+
+  private final int height;
+  private final int width;
+  private final double[] values;
+  private final VarKey key;
+
+  DenseMatrix(int height, int width, double[] values, VarKey key) {
+    if (values.length != height * width) {
+      throw new IllegalArgumentException("Expected " + height * width + " values but found "
+          + values.length);
+    }
+    this.height = height;
+    this.width = width;
+    this.values = values;
+    this.key = key;
+  }
+
+  /**
+   * Creates a matrix with no derivatives. The array is used as-is, and must not be modified
+   * afterwards.
+   * 
+   * @param height
+   * @param width
+   * @param values - row-major values
+   * @return
+   */
+  public static <VarKey> DenseMatrix<VarKey> constant(int height, int width, double[] values) {
+    return new DenseMatrix<>(height, width, values, null);
+  }
+
+  public static <VarKey> DenseMatrix<VarKey> var(VarKey key, int height, int width,
+      Map<IndexedKey<VarKey>, Double> context) {
+    if (context instanceof ParameterStore) {
+      return var(key, height, width, (ParameterStore<VarKey>) context);
+    }
+    double[] values = new double[height * width];
+    for (int i = 0; i < height; ++i) {
+      for (int j = 0; j < width; ++j) {
+        IndexedKey<VarKey> indexedKey = IndexedKey.matrixKey(key, i, j);
+        Double val = context.get(indexedKey);
+        if (val == null) {
+          throw new RuntimeException("No context value for key " + indexedKey);
+        }
+        values[i * width + j] = val;
+      }
+    }
+    return new DenseMatrix<>(height, width, values, key);
+  }
+
+  /**
+   * Creates a matrix variable holding a copy of the store's slot for key. Its gradient is emitted
+   * as one dense array, which the store adds to its gradient without resolving individual keys.
+   * 
+   * @param key
+   * @param height
+   * @param width
+   * @param store
+   * @return
+   */
+  public static <VarKey> DenseMatrix<VarKey> var(VarKey key, int height, int width,
+      ParameterStore<VarKey> store) {
+    ParameterStore.Slot<VarKey> slot = store.getSlot(key);
+    if (slot == null || slot.getHeight() != height || slot.getWidth() != width) {
+      throw new RuntimeException("No " + height + "x" + width + " slot for key " + key);
+    }
+    double[] values = new double[height * width];
+    System.arraycopy(store.getValues(), slot.getOffset(), values, 0, values.length);
+    return new DenseMatrix<>(height, width, values, key);
+  }
+
+  /**
+   * Copies the store's current values for this variable's key into it in place, so that a variable
+   * created from the store can follow updates to it without being recreated. Must not be called
+   * while the matrix is in use by a calculation.
+   * 
+   * @param store
+   */
+  public void reload(ParameterStore<VarKey> store) {
+    if (key == null) {
+      throw new IllegalStateException("Only matrix variables can be reloaded.");
+    }
+    ParameterStore.Slot<VarKey> slot = store.getSlot(key);
+    if (slot == null || slot.getHeight() != height || slot.getWidth() != width) {
+      throw new RuntimeException("No " + height + "x" + width + " slot for key " + key);
+    }
+    System.arraycopy(store.getValues(), slot.getOffset(), values, 0, values.length);
+  }
+
+  public static <VarKey> DenseMatrix<VarKey> varOrConst(VarKey key, int height, int width,
+      Map<IndexedKey<VarKey>, Double> context, boolean constant) {
+    DenseMatrix<VarKey> var = var(key, height, width, context);
+    return constant ? var.toConstant() : var;
+  }
+
+  /**
+   * Creates a matrix variable holding copies of the given columns of the height x width matrix key
+   * in the context, in order. Columns may repeat. Its gradient is emitted only for the gathered
+   * columns, so a sweep costs in proportion to them rather than to width, and slots that are sparse
+   * by column see only those columns touched.
+   * 
+   * @param key
+   * @param height
+   * @param width
+   * @param columns
+   * @param context
+   * @param constant - if true, the result has no derivatives
+   * @return
+   */
+  public static <VarKey> DenseMatrix<VarKey> columns(VarKey key, int height, int width,
+      int[] columns, Map<IndexedKey<VarKey>, Double> context, boolean constant) {
+    double[] values = new double[height * columns.length];
+    ParameterStore<VarKey> store = null;
+    ParameterStore.Slot<VarKey> slot = null;
+    if (context instanceof ParameterStore) {
+      store = (ParameterStore<VarKey>) context;
+      slot = store.getSlot(key);
+      if (slot == null || slot.getHeight() != height || slot.getWidth() != width) {
+        throw new RuntimeException("No " + height + "x" + width + " slot for key " + key);
+      }
+    }
+    for (int j = 0; j < columns.length; ++j) {
+      if (columns[j] < 0 || columns[j] >= width) {
+        throw new IllegalArgumentException("Column " + columns[j] + " is outside of a " + height
+            + "x" + width + " matrix.");
+      }
+      for (int i = 0; i < height; ++i) {
+        if (store != null) {
+          values[i * columns.length + j] =
+              store.getValues()[slot.getOffset() + i * width + columns[j]];
+        } else {
+          IndexedKey<VarKey> indexedKey = IndexedKey.matrixKey(key, i, columns[j]);
+          Double val = context.get(indexedKey);
+          if (val == null) {
+            throw new RuntimeException("No context value for key " + indexedKey);
+          }
+          values[i * columns.length + j] = val;
+        }
+      }
+    }
+    if (constant) {
+      return constant(height, columns.length, values);
+    }
+    return new GatheredColumns<>(key, height, columns, store, slot, values);
+  }
+
+  /**
+   * Returns the given matrix if it is already dense. Otherwise, copies its values into a dense
+   * matrix whose backward rule passes each element's adjoint to the corresponding scalar.
+   * 
+   * @param matrix
+   * @return
+   */
+  public static <VarKey> DenseMatrix<VarKey> of(Matrix<VarKey> matrix) {
+    if (matrix instanceof DenseMatrix) {
+      return (DenseMatrix<VarKey>) matrix;
+    }
+    int height = matrix.getHeight();
+    int width = matrix.getWidth();
+    @SuppressWarnings("unchecked")
+    Scalar<VarKey>[] elements = new Scalar[height * width];
+    double[] values = new double[height * width];
+    boolean constant = true;
+    for (int i = 0; i < height; ++i) {
+      for (int j = 0; j < width; ++j) {
+        Scalar<VarKey> element = matrix.get(i, j);
+        elements[i * width + j] = element;
+        values[i * width + j] = element.value();
+        constant &= element.getBranchComplexity() == 0;
+      }
+    }
+    return constant ? constant(height, width, values) : new Gathered<>(height, width, values,
+        elements);
+  }
+
+  @Override
+  public int getHeight() {
+    return height;
+  }
+
+  @Override
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   * Returns the row-major array backing this matrix. It must not be modified.
+   * 
+   * @return
+   */
+  public double[] getValues() {
+    return values;
+  }
+
+  /**
+   * Returns true if this matrix has no derivatives with respect to any variable.
+   * 
+   * @return
+   */
+  public boolean isConstant() {
+    return key == null;
+  }
+
+  @Override
+  public Scalar<VarKey> get(int row, int column) {
+    if (row < 0 || row >= height || column < 0 || column >= width) {
+      throw new IllegalArgumentException("(" + row + ", " + column + ") is outside of a " + height
+          + "x" + width + " matrix.");
+    }
+    int index = row * width + column;
+    return isConstant() ? Scalar.constant(values[index]) : new Element<>(this, index);
+  }
+
+  @Override
+  public void forEachInput(Consumer<TapeNode<VarKey>> consumer) {}
+
+  @Override
+  public void backpropagate(Tape<VarKey> tape, int slot) {
+    double[] adjoint = tape.getTensorAdjoint(slot);
+    if (key != null && adjoint != null) {
+      tape.emitDense(key, width, adjoint);
+    }
+  }
+
+  @Override
+  public DenseMatrix<VarKey> times(Matrix<VarKey> other) {
+    if (width != other.getHeight()) {
+      throw new IllegalArgumentException("Width of left matrix (" + width
+          + ") must equal height of right " + "matrix (" + other.getHeight() + ")");
+    }
+    if (isConstant()) {
+      DenseMatrix<VarKey> product = constantProduct(this, other);
+      if (product != null) {
+        return product;
+      }
+    }
+    DenseMatrix<VarKey> right = of(other);
+    double[] product = new double[height * right.width];
+    multiply(values, right.values, product, height, width, right.width);
+    if (isConstant() && right.isConstant()) {
+      return constant(height, right.width, product);
+    }
+    return new Product<>(this, right, product);
+  }
+
+  @Override
+  public DenseMatrix<VarKey> plus(Matrix<VarKey> other) {
+    DenseMatrix<VarKey> right = ofSameShape(other);
+    double[] sum = new double[values.length];
+    for (int i = 0; i < sum.length; ++i) {
+      sum[i] = values[i] + right.values[i];
+    }
+    if (isConstant() && right.isConstant()) {
+      return constant(height, width, sum);
+    }
+    return new Sum<>(this, right, sum);
+  }
+
+  @Override
+  public DenseMatrix<VarKey> pointwiseMultiply(Matrix<VarKey> other) {
+    DenseMatrix<VarKey> right = ofSameShape(other);
+    double[] product = new double[values.length];
+    for (int i = 0; i < product.length; ++i) {
+      product[i] = values[i] * right.values[i];
+    }
+    if (isConstant() && right.isConstant()) {
+      return constant(height, width, product);
+    }
+    return new PointwiseProduct<>(this, right, product);
+  }
+
+  public DenseMatrix<VarKey> transform(Activation activation) {
+    return transform(activation, 0);
+  }
+
+  /**
+   * Applies the activation to every element. An element whose local derivative is smaller in
+   * magnitude than gradientClipThreshold passes no gradient to its input, so saturated units are
+   * cut off much as Scalar.clipGradient cuts off small derivatives. Unlike Scalar.clipGradient,
+   * which filters each key's summed derivative of an element, only the element's own derivative
+   * is tested, so no per-element gradient map is built.
+   * 
+   * @param activation
+   * @param gradientClipThreshold - zero for an unclipped gradient
+   * @return
+   */
+  public DenseMatrix<VarKey> transform(Activation activation, double gradientClipThreshold) {
+    double[] transformed = new double[values.length];
+    for (int i = 0; i < transformed.length; ++i) {
+      transformed[i] = activation.apply(values[i]);
+    }
+    if (isConstant()) {
+      return constant(height, width, transformed);
+    }
+    return new Transform<>(this, activation, gradientClipThreshold, transformed);
+  }
+
+  /**
+   * Applies softmax to each column of this matrix independently.
+   */
+  @Override
+  public DenseMatrix<VarKey> softmax() {
+    double[] result = new double[values.length];
+    for (int j = 0; j < width; ++j) {
+      double max = Double.NEGATIVE_INFINITY;
+      for (int i = 0; i < height; ++i) {
+        max = Math.max(max, values[i * width + j]);
+      }
+      double sum = 0;
+      for (int i = 0; i < height; ++i) {
+        double exp = Math.exp(values[i * width + j] - max);
+        result[i * width + j] = exp;
+        sum += exp;
+      }
+      for (int i = 0; i < height; ++i) {
+        result[i * width + j] /= sum;
+      }
+    }
+    if (isConstant()) {
+      return constant(height, width, result);
+    }
+    return new Softmax<>(this, result);
+  }
+
+  /**
+   * Stacks the rows of other below the rows of this matrix.
+   */
+  @Override
+  public DenseMatrix<VarKey> vCat(Matrix<VarKey> other) {
+    if (width != other.getWidth()) {
+      throw new IllegalArgumentException("Can only vCat matrices with the same width.");
+    }
+    DenseMatrix<VarKey> bottom = of(other);
+    double[] stacked = new double[values.length + bottom.values.length];
+    System.arraycopy(values, 0, stacked, 0, values.length);
+    System.arraycopy(bottom.values, 0, stacked, values.length, bottom.values.length);
+    if (isConstant() && bottom.isConstant()) {
+      return constant(height + bottom.height, width, stacked);
+    }
+    return new VerticalConcat<>(this, bottom, stacked);
+  }
+
+  @Override
+  public DenseMatrix<VarKey> transpose() {
+    double[] transposed = new double[values.length];
+    for (int i = 0; i < height; ++i) {
+      for (int j = 0; j < width; ++j) {
+        transposed[j * height + i] = values[i * width + j];
+      }
+    }
+    if (isConstant()) {
+      return constant(width, height, transposed);
+    }
+    return new Transpose<>(this, transposed);
+  }
+
+  /**
+   * Returns a matrix whose jth column is column columns[j] of this matrix. Columns may repeat.
+   * 
+   * @param columns
+   * @return
+   */
+  public DenseMatrix<VarKey> selectColumns(int[] columns) {
+    double[] selected = new double[height * columns.length];
+    for (int j = 0; j < columns.length; ++j) {
+      if (columns[j] < 0 || columns[j] >= width) {
+        throw new IllegalArgumentException("Column " + columns[j] + " is outside of a " + height
+            + "x" + width + " matrix.");
+      }
+    }
+    for (int i = 0; i < height; ++i) {
+      int rowOffset = i * width;
+      int selectedOffset = i * columns.length;
+      for (int j = 0; j < columns.length; ++j) {
+        selected[selectedOffset + j] = values[rowOffset + columns[j]];
+      }
+    }
+    if (isConstant()) {
+      return constant(height, columns.length, selected);
+    }
+    return new ColumnSelection<>(this, columns, selected);
+  }
+
+  /**
+   * Returns rows [start, end) of this matrix.
+   * 
+   * @param start
+   * @param end
+   * @return
+   */
+  public DenseMatrix<VarKey> selectRows(int start, int end) {
+    if (start < 0 || end > height || start > end) {
+      throw new IllegalArgumentException("Rows [" + start + ", " + end + ") are outside of a "
+          + height + "x" + width + " matrix.");
+    }
+    double[] selected = new double[(end - start) * width];
+    System.arraycopy(values, start * width, selected, 0, selected.length);
+    if (isConstant()) {
+      return constant(end - start, width, selected);
+    }
+    return new RowRange<>(this, start, end, selected);
+  }
+
+  @Override
+  public DenseMatrix<VarKey> toConstant() {
+    return isConstant() ? this : constant(height, width, values);
+  }
+
+  private DenseMatrix<VarKey> ofSameShape(Matrix<VarKey> other) {
+    if (height != other.getHeight()) {
+      throw new RuntimeException(
+          "Cannot perform pointwise operations matrices of differing heights.");
+    }
+    if (width != other.getWidth()) {
+      throw new RuntimeException("Cannot perform pointwise operations matrices of differing widths");
+    }
+    return of(other);
+  }
+
+  /**
+   * c += a * b, where a is m by k and b is k by n.
+   */
+  static void multiply(double[] a, double[] b, double[] c, int m, int k, int n) {
+    Gemm.multiply(a, k, 1, b, n, 1, c, m, k, n);
+  }
+
+  /**
+   * c += a * transpose(b), where a is m by n and b is k by n.
+   */
+  static void multiplyTransposeRight(double[] a, double[] b, double[] c, int m, int k, int n) {
+    Gemm.multiply(a, n, 1, b, 1, n, c, m, n, k);
+  }
+
+  /**
+   * c += transpose(a) * b, where a is m by k and b is m by n.
+   */
+  static void multiplyTransposeLeft(double[] a, double[] b, double[] c, int m, int k, int n) {
+    Gemm.multiply(a, 1, k, b, n, 1, c, k, m, n);
+  }
+
+  /**
+   * Multiplies two matrices that have no derivatives. Dense matrices, and transposes of dense
+   * matrices, are read in place; other matrices are copied. Returns null if either operand has
+   * derivatives.
+   * 
+   * @param left
+   * @param right
+   * @return
+   */
+  static <VarKey> DenseMatrix<VarKey> constantProduct(Matrix<VarKey> left, Matrix<VarKey> right) {
+    Operand l = Operand.of(left);
+    if (l == null) {
+      return null;
+    }
+    Operand r = Operand.of(right);
+    if (r == null) {
+      return null;
+    }
+    int m = left.getHeight();
+    int k = left.getWidth();
+    int n = right.getWidth();
+    double[] product = new double[m * n];
+    Gemm.multiply(l.values, l.rowStride, l.colStride, r.values, r.rowStride, r.colStride, product,
+        m, k, n);
+    return constant(m, n, product);
+  }
+
+  /**
+   * The values of a matrix without derivatives, addressed by strides.
+   */
+  private static class Operand {
+    private final double[] values;
+    private final int rowStride;
+    private final int colStride;
+
+    private Operand(double[] values, int rowStride, int colStride) {
+      this.values = values;
+      this.rowStride = rowStride;
+      this.colStride = colStride;
+    }
+
+    private static <VarKey> Operand of(Matrix<VarKey> matrix) {
+      if (matrix instanceof DenseMatrix) {
+        DenseMatrix<VarKey> dense = (DenseMatrix<VarKey>) matrix;
+        return dense.isConstant() ? new Operand(dense.values, dense.width, 1) : null;
+      }
+      if (matrix instanceof TransposeView) {
+        Operand source = of(((TransposeView<VarKey>) matrix).getSource());
+        return source == null ? null : new Operand(source.values, source.colStride,
+            source.rowStride);
+      }
+      int height = matrix.getHeight();
+      int width = matrix.getWidth();
+      double[] values = new double[height * width];
+      for (int i = 0; i < height; ++i) {
+        for (int j = 0; j < width; ++j) {
+          Scalar<VarKey> element = matrix.get(i, j);
+          if (element.getBranchComplexity() != 0) {
+            return null;
+          }
+          values[i * width + j] = element.value();
+        }
+      }
+      return new Operand(values, width, 1);
+    }
+  }
+
+  /**
+   * A dense matrix computed from other nodes. Subclasses report their non-constant inputs through
+   * forEachInput and add their share of the adjoint to each input's accumulator in backward, which
+   * lets fused operations be defined outside this package.
+   */
+  public static abstract class Operation<VarKey> extends DenseMatrix<VarKey> {
+
+    protected Operation(int height, int width, double[] values) {
+      super(height, width, values, null);
+    }
+
+    @Override
+    public boolean isConstant() {
+      return false;
+    }
+
+    @Override
+    public void backpropagate(Tape<VarKey> tape, int slot) {
+      double[] adjoint = tape.getTensorAdjoint(slot);
+      if (adjoint != null) {
+        backward(adjoint, tape);
+      }
+    }
+
+    protected abstract void backward(double[] adjoint, Tape<VarKey> tape);
+
+    protected double[] accumulator(Tape<VarKey> tape, DenseMatrix<VarKey> input) {
+      return tape.getTensorAccumulator(input, input.values.length);
+    }
+
+  }
+
+  private static class Product<VarKey> extends Operation<VarKey> {
+
+    private final DenseMatrix<VarKey> left;
+    private final DenseMatrix<VarKey> right;
+
+    Product(DenseMatrix<VarKey> left, DenseMatrix<VarKey> right, double[] values) {
+      super(left.height, right.width, values);
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    public void forEachInput(Consumer<TapeNode<VarKey>> consumer) {
+      if (!left.isConstant()) {
+        consumer.accept(left);
+      }
+      if (!right.isConstant()) {
+        consumer.accept(right);
+      }
+    }
+
+    @Override
+    protected void backward(double[] adjoint, Tape<VarKey> tape) {
+      if (!left.isConstant()) {
+        multiplyTransposeRight(adjoint, right.values, accumulator(tape, left), left.height,
+            left.width, right.width);
+      }
+      if (!right.isConstant()) {
+        multiplyTransposeLeft(left.values, adjoint, accumulator(tape, right), left.height,
+            left.width, right.width);
+      }
+    }
+  }
+
+  private static class Sum<VarKey> extends Operation<VarKey> {
+
+    private final DenseMatrix<VarKey> left;
+    private final DenseMatrix<VarKey> right;
+
+    Sum(DenseMatrix<VarKey> left, DenseMatrix<VarKey> right, double[] values) {
+      super(left.height, left.width, values);
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    public void forEachInput(Consumer<TapeNode<VarKey>> consumer) {
+      if (!left.isConstant()) {
+        consumer.accept(left);
+      }
+      if (!right.isConstant()) {
+        consumer.accept(right);
+      }
+    }
+
+    @Override
+    protected void backward(double[] adjoint, Tape<VarKey> tape) {
+      if (!left.isConstant()) {
+        double[] accumulator = accumulator(tape, left);
+        for (int i = 0; i < adjoint.length; ++i) {
+          accumulator[i] += adjoint[i];
+        }
+      }
+      if (!right.isConstant()) {
+        double[] accumulator = accumulator(tape, right);
+        for (int i = 0; i < adjoint.length; ++i) {
+          accumulator[i] += adjoint[i];
+        }
+      }
+    }
+  }
+
+  private static class PointwiseProduct<VarKey> extends Operation<VarKey> {
+
+    private final DenseMatrix<VarKey> left;
+    private final DenseMatrix<VarKey> right;
+
+    PointwiseProduct(DenseMatrix<VarKey> left, DenseMatrix<VarKey> right, double[] values) {
+      super(left.height, left.width, values);
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    public void forEachInput(Consumer<TapeNode<VarKey>> consumer) {
+      if (!left.isConstant()) {
+        consumer.accept(left);
+      }
+      if (!right.isConstant()) {
+        consumer.accept(right);
+      }
+    }
+
+    @Override
+    protected void backward(double[] adjoint, Tape<VarKey> tape) {
+      if (!left.isConstant()) {
+        double[] accumulator = accumulator(tape, left);
+        for (int i = 0; i < adjoint.length; ++i) {
+          accumulator[i] += adjoint[i] * right.values[i];
+        }
+      }
+      if (!right.isConstant()) {
+        double[] accumulator = accumulator(tape, right);
+        for (int i = 0; i < adjoint.length; ++i) {
+          accumulator[i] += adjoint[i] * left.values[i];
+        }
+      }
+    }
+  }
+
+  private static class Transform<VarKey> extends Operation<VarKey> {
+
+    private final DenseMatrix<VarKey> input;
+    private final Activation activation;
+    private final double gradientClipThreshold;
+
+    Transform(DenseMatrix<VarKey> input, Activation activation, double gradientClipThreshold,
+        double[] values) {
+      super(input.height, input.width, values);
+      this.input = input;
+      this.activation = activation;
+      this.gradientClipThreshold = gradientClipThreshold;
+    }
+
+    @Override
+    public void forEachInput(Consumer<TapeNode<VarKey>> consumer) {
+      consumer.accept(input);
+    }
+
+    @Override
+    protected void backward(double[] adjoint, Tape<VarKey> tape) {
+      double[] accumulator = accumulator(tape, input);
+      double[] output = getValues();
+      for (int i = 0; i < adjoint.length; ++i) {
+        double derivative = activation.derivativeFromOutput(output[i]);
+        if (Math.abs(derivative) >= gradientClipThreshold) {
+          accumulator[i] += adjoint[i] * derivative;
+        }
+      }
+    }
+  }
+
+  private static class Softmax<VarKey> extends Operation<VarKey> {
+
+    private final DenseMatrix<VarKey> input;
+
+    Softmax(DenseMatrix<VarKey> input, double[] values) {
+      super(input.height, input.width, values);
+      this.input = input;
+    }
+
+    @Override
+    public void forEachInput(Consumer<TapeNode<VarKey>> consumer) {
+      consumer.accept(input);
+    }
+
+    @Override
+    protected void backward(double[] adjoint, Tape<VarKey> tape) {
+      double[] accumulator = accumulator(tape, input);
+      double[] output = getValues();
+      int height = getHeight();
+      int width = getWidth();
+      for (int j = 0; j < width; ++j) {
+        double weighted = 0;
+        for (int i = 0; i < height; ++i) {
+          weighted += adjoint[i * width + j] * output[i * width + j];
+        }
+        for (int i = 0; i < height; ++i) {
+          int idx = i * width + j;
+          accumulator[idx] += output[idx] * (adjoint[idx] - weighted);
+        }
+      }
+    }
+  }
+
+  private static class VerticalConcat<VarKey> extends Operation<VarKey> {
+
+    private final DenseMatrix<VarKey> top;
+    private final DenseMatrix<VarKey> bottom;
+
+    VerticalConcat(DenseMatrix<VarKey> top, DenseMatrix<VarKey> bottom, double[] values) {
+      super(top.height + bottom.height, top.width, values);
+      this.top = top;
+      this.bottom = bottom;
+    }
+
+    @Override
+    public void forEachInput(Consumer<TapeNode<VarKey>> consumer) {
+      if (!top.isConstant()) {
+        consumer.accept(top);
+      }
+      if (!bottom.isConstant()) {
+        consumer.accept(bottom);
+      }
+    }
+
+    @Override
+    protected void backward(double[] adjoint, Tape<VarKey> tape) {
+      if (!top.isConstant()) {
+        double[] accumulator = accumulator(tape, top);
+        for (int i = 0; i < top.values.length; ++i) {
+          accumulator[i] += adjoint[i];
+        }
+      }
+      if (!bottom.isConstant()) {
+        double[] accumulator = accumulator(tape, bottom);
+        int offset = top.values.length;
+        for (int i = 0; i < bottom.values.length; ++i) {
+          accumulator[i] += adjoint[offset + i];
+        }
+      }
+    }
+  }
+
+  private static class Transpose<VarKey> extends Operation<VarKey> {
+
+    private final DenseMatrix<VarKey> input;
+
+    Transpose(DenseMatrix<VarKey> input, double[] values) {
+      super(input.width, input.height, values);
+      this.input = input;
+    }
+
+    @Override
+    public void forEachInput(Consumer<TapeNode<VarKey>> consumer) {
+      consumer.accept(input);
+    }
+
+    @Override
+    protected void backward(double[] adjoint, Tape<VarKey> tape) {
+      double[] accumulator = accumulator(tape, input);
+      for (int i = 0; i < input.height; ++i) {
+        for (int j = 0; j < input.width; ++j) {
+          accumulator[i * input.width + j] += adjoint[j * input.height + i];
+        }
+      }
+    }
+  }
+
+  private static class ColumnSelection<VarKey> extends Operation<VarKey> {
+
+    private final DenseMatrix<VarKey> input;
+    private final int[] columns;
+
+    ColumnSelection(DenseMatrix<VarKey> input, int[] columns, double[] values) {
+      super(input.height, columns.length, values);
+      this.input = input;
+      this.columns = columns;
+    }
+
+    @Override
+    public void forEachInput(Consumer<TapeNode<VarKey>> consumer) {
+      consumer.accept(input);
+    }
+
+    @Override
+    protected void backward(double[] adjoint, Tape<VarKey> tape) {
+      double[] accumulator = accumulator(tape, input);
+      for (int i = 0; i < input.height; ++i) {
+        int rowOffset = i * input.width;
+        int selectedOffset = i * columns.length;
+        for (int j = 0; j < columns.length; ++j) {
+          accumulator[rowOffset + columns[j]] += adjoint[selectedOffset + j];
+        }
+      }
+    }
+  }
+
+  private static class RowRange<VarKey> extends Operation<VarKey> {
+
+    private final DenseMatrix<VarKey> input;
+    private final int start;
+
+    RowRange(DenseMatrix<VarKey> input, int start, int end, double[] values) {
+      super(end - start, input.width, values);
+      this.input = input;
+      this.start = start;
+    }
+
+    @Override
+    public void forEachInput(Consumer<TapeNode<VarKey>> consumer) {
+      consumer.accept(input);
+    }
+
+    @Override
+    protected void backward(double[] adjoint, Tape<VarKey> tape) {
+      double[] accumulator = accumulator(tape, input);
+      int offset = start * input.width;
+      for (int i = 0; i < adjoint.length; ++i) {
+        accumulator[offset + i] += adjoint[i];
+      }
+    }
+  }
+
+  /**
+   * A variable holding some columns of a larger matrix, which emits derivatives for those columns
+   * alone.
+   */
+  private static class GatheredColumns<VarKey> extends DenseMatrix<VarKey> {
+
+    private final VarKey key;
+    private final int[] columns;
+    private final ParameterStore<VarKey> store;
+    private final ParameterStore.Slot<VarKey> slot;
+
+    GatheredColumns(VarKey key, int height, int[] columns, ParameterStore<VarKey> store,
+        ParameterStore.Slot<VarKey> slot, double[] values) {
+      super(height, columns.length, values, key);
+      this.key = key;
+      this.columns = columns;
+      this.store = store;
+      this.slot = slot;
+    }
+
+    @Override
+    public void backpropagate(Tape<VarKey> tape, int slotIndex) {
+      double[] adjoint = tape.getTensorAdjoint(slotIndex);
+      if (adjoint == null) {
+        return;
+      }
+      for (int i = 0; i < getHeight(); ++i) {
+        for (int j = 0; j < columns.length; ++j) {
+          double value = adjoint[i * columns.length + j];
+          if (value != 0) {
+            tape.emit(store != null ? store.getKey(slot, i, columns[j]) : IndexedKey.matrixKey(key,
+                i, columns[j]), value);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * A dense copy of a matrix of arbitrary scalars.
+   */
+  private static class Gathered<VarKey> extends Operation<VarKey> {
+
+    private final Scalar<VarKey>[] elements;
+
+    Gathered(int height, int width, double[] values, Scalar<VarKey>[] elements) {
+      super(height, width, values);
+      this.elements = elements;
+    }
+
+    @Override
+    public void forEachInput(Consumer<TapeNode<VarKey>> consumer) {
+      for (Scalar<VarKey> element : elements) {
+        if (element.getBranchComplexity() != 0) {
+          consumer.accept(element);
+        }
+      }
+    }
+
+    @Override
+    protected void backward(double[] adjoint, Tape<VarKey> tape) {
+      for (int i = 0; i < elements.length; ++i) {
+        if (adjoint[i] != 0 && elements[i].getBranchComplexity() != 0) {
+          tape.accumulate(elements[i], adjoint[i]);
+        }
+      }
+    }
+  }
+
+  /**
+   * A single element of a dense matrix.
+   */
+  private static class Element<VarKey> implements Scalar<VarKey> {
+
+    private final DenseMatrix<VarKey> source;
+    private final int index;
+
+    Element(DenseMatrix<VarKey> source, int index) {
+      this.source = source;
+      this.index = index;
+    }
+
+    @Override
+    public double value() {
+      return source.values[index];
+    }
+
+    @Override
+    public void actOnKeyedDerivatives(Consumer<KeyedDerivative<VarKey>> consumer) {
+      Tape.sweep(this, consumer);
+    }
+
+    @Override
+    public double d(IndexedKey<VarKey> key) {
+      double[] sum = new double[1];
+      actOnKeyedDerivatives(kd -> {
+        if (kd.getKey().equals(key)) {
+          sum[0] += kd.getValue();
+        }
+      });
+      return sum[0];
+    }
+
+    @Override
+    public int getBranchComplexity() {
+      return 1;
+    }
+
+    @Override
+    public void forEachInput(Consumer<TapeNode<VarKey>> consumer) {
+      consumer.accept(source);
+    }
+
+    @Override
+    public void backpropagate(Tape<VarKey> tape, int slot) {
+      tape.getTensorAccumulator(source, source.values.length)[index] += tape.getAdjoint(slot);
+    }
+
+  }
+
+}
@@ -0,0 +1,135 @@
+package angland.optimizer.var.matrix;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Blocked matrix multiplication over double arrays.
+ *
+ * Operands are addressed through a row stride and a column stride, so a transposed operand is
+ * read in place by swapping its strides. Products large enough to be worth it are split into row
+ * blocks that run on the common ForkJoinPool. Each element of the result is always summed in the
+ * same order, so the split does not change the result.
+ *
+ * @author John Angland
+ *
+ */
+final class Gemm {
+
+  private static final int ROW_BLOCK = 512;
+  private static final int INNER_BLOCK = 256;
+  private static final long PARALLEL_THRESHOLD = 1 << 18;
+
+  private Gemm() {}
+
+  /**
+   * c += a * b, where a is m by k, b is k by n and c is row-major m by n. Element (i, p) of a is
+   * a[i * aRowStride + p * aColStride], and likewise for b.
+   */
+  static void multiply(double[] a, int aRowStride, int aColStride, double[] b, int bRowStride,
+      int bColStride, double[] c, int m, int k, int n) {
+    if ((long) m * k * n < PARALLEL_THRESHOLD || m <= ROW_BLOCK) {
+      multiplyRows(a, aRowStride, aColStride, b, bRowStride, bColStride, c, m, k, n, 0, m);
+    } else {
+      ForkJoinPool.commonPool().invoke(
+          new RowTask(a, aRowStride, aColStride, b, bRowStride, bColStride, c, m, k, n, 0, m));
+    }
+  }
+
+  /**
+   * Computes rows [rowStart, rowEnd) of the product.
+   */
+  private static void multiplyRows(double[] a, int aRowStride, int aColStride, double[] b,
+      int bRowStride, int bColStride, double[] c, int m, int k, int n, int rowStart, int rowEnd) {
+    for (int pStart = 0; pStart < k; pStart += INNER_BLOCK) {
+      int pEnd = Math.min(k, pStart + INNER_BLOCK);
+      if (aRowStride == 1 && aColStride != 1) {
+        // a is stored column by column, so stream down its columns.
+        for (int p = pStart; p < pEnd; ++p) {
+          int aOffset = p * aColStride;
+          for (int j = 0; j < n; ++j) {
+            double bpj = b[p * bRowStride + j * bColStride];
+            if (bpj != 0) {
+              for (int i = rowStart; i < rowEnd; ++i) {
+                c[i * n + j] += a[aOffset + i] * bpj;
+              }
+            }
+          }
+        }
+      } else if (bColStride == 1) {
+        for (int i = rowStart; i < rowEnd; ++i) {
+          int aOffset = i * aRowStride;
+          int cOffset = i * n;
+          for (int p = pStart; p < pEnd; ++p) {
+            double aip = a[aOffset + p * aColStride];
+            if (aip != 0) {
+              int bOffset = p * bRowStride;
+              for (int j = 0; j < n; ++j) {
+                c[cOffset + j] += aip * b[bOffset + j];
+              }
+            }
+          }
+        }
+      } else {
+        for (int i = rowStart; i < rowEnd; ++i) {
+          int aOffset = i * aRowStride;
+          for (int j = 0; j < n; ++j) {
+            int bOffset = j * bColStride;
+            double sum = 0;
+            for (int p = pStart; p < pEnd; ++p) {
+              sum += a[aOffset + p * aColStride] * b[bOffset + p * bRowStride];
+            }
+            c[i * n + j] += sum;
+          }
+        }
+      }
+    }
+  }
+
+  @SuppressWarnings("serial")
+  private static class RowTask extends RecursiveAction {
+    private final double[] a;
+    private final int aRowStride;
+    private final int aColStride;
+    private final double[] b;
+    private final int bRowStride;
+    private final int bColStride;
+    private final double[] c;
+    private final int m;
+    private final int k;
+    private final int n;
+    private final int rowStart;
+    private final int rowEnd;
+
+    RowTask(double[] a, int aRowStride, int aColStride, double[] b, int bRowStride,
+        int bColStride, double[] c, int m, int k, int n, int rowStart, int rowEnd) {
+      this.a = a;
+      this.aRowStride = aRowStride;
+      this.aColStride = aColStride;
+      this.b = b;
+      this.bRowStride = bRowStride;
+      this.bColStride = bColStride;
+      this.c = c;
+      this.m = m;
+      this.k = k;
+      this.n = n;
+      this.rowStart = rowStart;
+      this.rowEnd = rowEnd;
+    }
+
+    @Override
+    protected void compute() {
+      int rows = rowEnd - rowStart;
+      if (rows <= ROW_BLOCK || (long) rows * k * n < PARALLEL_THRESHOLD) {
+        multiplyRows(a, aRowStride, aColStride, b, bRowStride, bColStride, c, m, k, n, rowStart,
+            rowEnd);
+        return;
+      }
+      int split = rowStart + (rows / 2 + ROW_BLOCK - 1) / ROW_BLOCK * ROW_BLOCK;
+      invokeAll(new RowTask(a, aRowStride, aColStride, b, bRowStride, bColStride, c, m, k, n,
+          rowStart, split), new RowTask(a, aRowStride, aColStride, b, bRowStride, bColStride, c, m,
+          k, n, split, rowEnd));
+    }
+  }
+
+}
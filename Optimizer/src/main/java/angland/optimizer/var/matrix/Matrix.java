@@ -1,13 +1,15 @@
 package angland.optimizer.var.matrix;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.function.BinaryOperator;
 import java.util.function.Function;
 
+import angland.optimizer.sample.Sampler;
+import angland.optimizer.var.DerivativeSink;
 import angland.optimizer.var.IndexedKey;
+import angland.optimizer.var.ParameterStore;
 import angland.optimizer.var.matrix.ArrayMatrixValue.Builder;
 import angland.optimizer.var.scalar.MappedDerivativeScalar;
 import angland.optimizer.var.scalar.Scalar;
@@ -30,6 +32,9 @@ public interface Matrix<VarKey> {
 
   public static <VarKey> Matrix<VarKey> var(VarKey key, int height, int width,
       Map<IndexedKey<VarKey>, Double> context) {
+    if (context instanceof ParameterStore) {
+      return var(key, height, width, (ParameterStore<VarKey>) context);
+    }
     ArrayMatrixValue.Builder<VarKey> builder = new ArrayMatrixValue.Builder<VarKey>(height, width);
     for (int i = 0; i < height; ++i) {
       for (int j = 0; j < width; ++j) {
@@ -43,8 +48,59 @@ public interface Matrix<VarKey> {
     return builder.build();
   }
 
+  /**
+   * Creates a matrix of variables whose values are read directly from the store's slot for key.
+   * 
+   * @param key
+   * @param height
+   * @param width
+   * @param store
+   * @return
+   */
+  public static <VarKey> Matrix<VarKey> var(VarKey key, int height, int width,
+      ParameterStore<VarKey> store) {
+    ParameterStore.Slot<VarKey> slot = store.getSlot(key);
+    if (slot == null || slot.getHeight() != height || slot.getWidth() != width) {
+      throw new RuntimeException("No " + height + "x" + width + " slot for key " + key);
+    }
+    double[] values = store.getValues();
+    ArrayMatrixValue.Builder<VarKey> builder = new ArrayMatrixValue.Builder<VarKey>(height, width);
+    for (int i = 0; i < height; ++i) {
+      for (int j = 0; j < width; ++j) {
+        builder.set(i, j,
+            Scalar.var(store.getKey(slot, i, j), values[slot.getOffset() + i * width + j]));
+      }
+    }
+    return builder.build();
+  }
+
+  /**
+   * Creates a view of the store's slot for key as a matrix of variables. Unlike var, nothing is
+   * allocated up front: each element is created when it is read, from the store's value at that
+   * time. This suits large matrices of which a computation reads a few columns, such as an
+   * embedding, and lets the view be kept while the store is updated in place. Elements read many
+   * times are cheaper from var.
+   * 
+   * @param key
+   * @param height
+   * @param width
+   * @param store
+   * @return
+   */
+  public static <VarKey> Matrix<VarKey> view(VarKey key, int height, int width,
+      ParameterStore<VarKey> store) {
+    ParameterStore.Slot<VarKey> slot = store.getSlot(key);
+    if (slot == null || slot.getHeight() != height || slot.getWidth() != width) {
+      throw new RuntimeException("No " + height + "x" + width + " slot for key " + key);
+    }
+    return new StoreSlotView<>(store, slot);
+  }
+
   public static <VarKey> Matrix<VarKey> varOrConst(VarKey key, int height, int width,
       Map<IndexedKey<VarKey>, Double> context, boolean constant) {
+    if (constant && context instanceof ParameterStore) {
+      return DenseMatrix.varOrConst(key, height, width, context, true);
+    }
     Matrix<VarKey> var = var(key, height, width, context);
     return constant ? var.toConstant() : var;
   }
@@ -153,19 +209,20 @@ public interface Matrix<VarKey> {
 
   public default Matrix<VarKey> sampledColumnProximity(Matrix<VarKey> other, int requiredIndex,
       int samples) {
+    return sampledColumnProximity(other, requiredIndex, samples, Sampler.uniform(getWidth()));
+  }
+
+  /**
+   * As sampledColumnProximity, drawing the sampled columns from the given sampler.
+   */
+  public default Matrix<VarKey> sampledColumnProximity(Matrix<VarKey> other, int requiredIndex,
+      int samples, Sampler sampler) {
     if (samples > getWidth()) {
       throw new IllegalArgumentException("Samples out of range: " + samples);
     }
-    List<Integer> available = new ArrayList<>();
-    for (int i = 0; i < getWidth(); ++i) {
-      if (i != requiredIndex) {
-        available.add(i);
-      }
-    }
-    Collections.shuffle(available);
     List<Integer> selected = new ArrayList<>(samples + 1);
-    for (int i = 0; i < samples; ++i) {
-      selected.add(available.get(i));
+    for (int i : sampler.sample(samples, requiredIndex)) {
+      selected.add(i);
     }
     selected.add(requiredIndex);
     Matrix<VarKey> m = columnProximity(other, selected);
@@ -177,26 +234,27 @@ public interface Matrix<VarKey> {
       throw new IllegalArgumentException("Width of left matrix (" + getWidth()
           + ") must equal height of right " + "matrix (" + other.getHeight() + ")");
     }
+    DenseMatrix<VarKey> constantProduct = DenseMatrix.constantProduct(this, other);
+    if (constantProduct != null) {
+      return constantProduct;
+    }
     Builder<VarKey> builder = new Builder<>(this.getHeight(), other.getWidth());
     for (int i = 0; i < this.getHeight(); ++i) {
       for (int j = 0; j < other.getWidth(); ++j) {
         MappedDerivativeScalar.Builder<VarKey> sumBuilder =
             new MappedDerivativeScalar.Builder<>(this.getWidth() * 3);
+        DerivativeSink<VarKey> gradient = sumBuilder.getGradient()::merge;
         for (int k = 0; k < this.getWidth(); ++k) {
           Scalar<VarKey> left = this.get(i, k);
           Scalar<VarKey> right = other.get(k, j);
-          sumBuilder.incrementValue(left.value() * right.value());
-
-          for (Map.Entry<IndexedKey<VarKey>, Double> entry : left.getGradient().entrySet()) {
-            if (entry.getValue() != 0) {
-              sumBuilder.getGradient().merge(entry.getKey(), entry.getValue() * right.value());
-
-            }
+          double leftValue = left.value();
+          double rightValue = right.value();
+          sumBuilder.incrementValue(leftValue * rightValue);
+          if (rightValue != 0) {
+            left.actOnDerivatives(rightValue, gradient);
           }
-          for (Map.Entry<IndexedKey<VarKey>, Double> entry : right.getGradient().entrySet()) {
-            if (entry.getValue() != 0) {
-              sumBuilder.getGradient().merge(entry.getKey(), entry.getValue() * left.value());
-            }
+          if (leftValue != 0) {
+            right.actOnDerivatives(leftValue, gradient);
           }
         }
         builder.set(i, j, sumBuilder.build());
@@ -262,15 +320,7 @@ public interface Matrix<VarKey> {
     for (int i = 0; i < getWidth(); ++i) {
       builder.set(forcedIndex, i, get(forcedIndex, i));
     }
-    List<Integer> availableIndices = new ArrayList<>(this.getHeight() - 1);
-    for (int i = 0; i < getHeight(); ++i) {
-      if (i != forcedIndex) {
-        availableIndices.add(i);
-      }
-    }
-    Collections.shuffle(availableIndices);
-    for (int i = 0; i < sampleCount; ++i) {
-      int row = availableIndices.get(i);
+    for (int row : Sampler.uniform(getHeight()).sample(sampleCount, forcedIndex)) {
       for (int j = 0; j < getWidth(); ++j) {
         builder.set(row, j, get(row, j));
       }
@@ -291,17 +341,22 @@ public interface Matrix<VarKey> {
     if (count >= max) {
       throw new IllegalArgumentException("Count " + count + " must be less than max: " + max);
     }
-    List<Integer> selected = new ArrayList<>();
+    return selectAndSample(Sampler.uniform(max), count, forced);
+  }
+
+  /**
+   * As selectAndSample, drawing the count values from the given sampler.
+   * 
+   * @param sampler
+   * @param count
+   * @param forced
+   * @return
+   */
+  public static List<Integer> selectAndSample(Sampler sampler, int count, int forced) {
+    List<Integer> selected = new ArrayList<>(count + 1);
     selected.add(forced);
-    List<Integer> availableIndices = new ArrayList<>(max - 1);
-    for (int i = 0; i < max; ++i) {
-      if (i != forced) {
-        availableIndices.add(i);
-      }
-    }
-    Collections.shuffle(availableIndices);
-    for (int i = 0; i < count; ++i) {
-      selected.add(availableIndices.get(i));
+    for (int i : sampler.sample(count, forced)) {
+      selected.add(i);
     }
     return selected;
   }
@@ -310,16 +365,9 @@ public interface Matrix<VarKey> {
     if (count >= max) {
       throw new IllegalArgumentException("Count " + max + " must be less than max: " + count);
     }
-    List<Integer> selected = new ArrayList<>();
-    List<Integer> availableIndices = new ArrayList<>(max - 1);
-    for (int i = 0; i < max; ++i) {
-      if (i != skip) {
-        availableIndices.add(i);
-      }
-    }
-    Collections.shuffle(availableIndices);
-    for (int i = 0; i < count; ++i) {
-      selected.add(availableIndices.get(i));
+    List<Integer> selected = new ArrayList<>(count);
+    for (int i : Sampler.uniform(max).sample(count, skip)) {
+      selected.add(i);
     }
     return selected;
   }
@@ -337,6 +385,14 @@ public interface Matrix<VarKey> {
     return getRows(selectAndSample(getHeight(), randomRows, firstRowIndex));
   }
 
+  /**
+   * As selectAndSampleRowsWithElimination, drawing the random rows from the given sampler.
+   */
+  public default ArrayMatrixValue<VarKey> selectAndSampleRowsWithElimination(int firstRowIndex,
+      int randomRows, Sampler sampler) {
+    return getRows(selectAndSample(sampler, randomRows, firstRowIndex));
+  }
+
   public default ArrayMatrixValue<VarKey> selectAndSampleColumnsWithElimination(int firstIndex,
       int randomRows) {
     if (getWidth() < randomRows + 1) {
@@ -368,7 +424,7 @@ public interface Matrix<VarKey> {
     return builder.build();
   }
 
-  public default ArrayMatrixValue<VarKey> softmax() {
+  public default Matrix<VarKey> softmax() {
     if (getWidth() != 1) {
       throw new RuntimeException("Softmax supported only on matrices of width 1.");
     }
@@ -424,16 +480,19 @@ public interface Matrix<VarKey> {
     return builder.build();
   }
 
+  /**
+   * Returns a dense matrix holding the values of this matrix, without derivatives.
+   * 
+   * @return
+   */
   public default Matrix<VarKey> toConstant() {
-    ArrayMatrixValue.Builder<VarKey> builder =
-        new ArrayMatrixValue.Builder<>(getHeight(), getWidth());
+    double[] values = new double[getHeight() * getWidth()];
     for (int i = 0; i < getHeight(); ++i) {
       for (int j = 0; j < getWidth(); ++j) {
-        Scalar<VarKey> c = Scalar.constant(this.get(i, j).value());
-        builder.set(i, j, c);
+        values[i * getWidth() + j] = this.get(i, j).value();
       }
     }
-    return builder.build();
+    return DenseMatrix.constant(getHeight(), getWidth(), values);
   }
 
   public default Matrix<VarKey> getColumn(Scalar<VarKey> column) {
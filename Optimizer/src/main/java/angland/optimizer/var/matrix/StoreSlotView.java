@@ -0,0 +1,53 @@
+package angland.optimizer.var.matrix;
+
+import angland.optimizer.var.ParameterStore;
+import angland.optimizer.var.scalar.Scalar;
+
+/**
+ * A matrix of variables backed by a slot of a ParameterStore, created by Matrix.view. Each element
+ * is created on demand from the store's current value, so building the view costs nothing, a
+ * computation allocates only for the elements it reads, and values updated in place are seen by
+ * the next read.
+ * 
+ * @author John Angland
+ *
+ * @param <VarKey>
+ */
+class StoreSlotView<VarKey> implements Matrix<VarKey> {
+
+  private final ParameterStore<VarKey> store;
+  private final ParameterStore.Slot<VarKey> slot;
+
+  StoreSlotView(ParameterStore<VarKey> store, ParameterStore.Slot<VarKey> slot) {
+    this.store = store;
+    this.slot = slot;
+  }
+
+  @Override
+  public int getHeight() {
+    return slot.getHeight();
+  }
+
+  @Override
+  public int getWidth() {
+    return slot.getWidth();
+  }
+
+  @Override
+  public Scalar<VarKey> get(int row, int column) {
+    if (row < 0 || row >= slot.getHeight() || column < 0 || column >= slot.getWidth()) {
+      throw new IndexOutOfBoundsException("(" + row + ", " + column + ") is outside a "
+          + slot.getHeight() + "x" + slot.getWidth() + " matrix.");
+    }
+    return Scalar.var(store.getKey(slot, row, column),
+        store.getValues()[slot.getOffset() + row * slot.getWidth() + column]);
+  }
+
+  @Override
+  public Matrix<VarKey> toConstant() {
+    double[] values = new double[slot.getLength()];
+    System.arraycopy(store.getValues(), slot.getOffset(), values, 0, values.length);
+    return DenseMatrix.constant(slot.getHeight(), slot.getWidth(), values);
+  }
+
+}
@@ -28,6 +28,10 @@ public class TransposeView<VarKey> implements Matrix<VarKey> {
   }
 
 
+  Matrix<VarKey> getSource() {
+    return source;
+  }
+
   @Override
   public Matrix<VarKey> transpose() {
     return source;
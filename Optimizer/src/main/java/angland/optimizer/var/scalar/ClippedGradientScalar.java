@@ -2,8 +2,11 @@ package angland.optimizer.var.scalar;
 
 import java.util.function.Consumer;
 
+import angland.optimizer.var.DerivativeMap;
+import angland.optimizer.var.DerivativeSink;
 import angland.optimizer.var.IndexedKey;
 import angland.optimizer.var.KeyedDerivative;
+import angland.optimizer.var.Tape;
 
 public class ClippedGradientScalar<VarKey> implements Scalar<VarKey> {
 
@@ -28,15 +31,32 @@ public class ClippedGradientScalar<VarKey> implements Scalar<VarKey> {
     return value;
   }
 
+  /**
+   * Clipping applies to the summed derivative of each key, so the source's gradient is merged
+   * before it is filtered. This makes the scalar a leaf of any sweep that reaches it.
+   */
   @Override
-  public void actOnKeyedDerivatives(Consumer<KeyedDerivative<VarKey>> consumer) {
-    source.actOnKeyedDerivatives(kd -> {
-      if (Math.abs(kd.getValue()) >= clipBelow) {
-        consumer.accept(kd);
+  public void actOnDerivatives(double multiplier, DerivativeSink<VarKey> sink) {
+    DerivativeMap<VarKey> gradient = new DerivativeMap<>(10);
+    source.actOnDerivatives(1, gradient::merge);
+    gradient.actOnEntries((key, derivative) -> {
+      if (Math.abs(derivative) >= clipBelow) {
+        sink.accept(key, multiplier * derivative);
       }
     });
   }
 
+  @Override
+  public void actOnKeyedDerivatives(Consumer<KeyedDerivative<VarKey>> consumer) {
+    actOnDerivatives(1, (key, derivative) -> consumer.accept(new KeyedDerivative<>(key,
+        derivative)));
+  }
+
+  @Override
+  public void backpropagate(Tape<VarKey> tape, int slot) {
+    actOnDerivatives(tape.getAdjoint(slot), tape.getSink());
+  }
+
   @Override
   public double d(IndexedKey<VarKey> key) {
     double deriv = source.d(key);
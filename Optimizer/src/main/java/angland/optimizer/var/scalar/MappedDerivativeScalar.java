@@ -3,8 +3,10 @@ package angland.optimizer.var.scalar;
 import java.util.function.Consumer;
 
 import angland.optimizer.var.DerivativeMap;
+import angland.optimizer.var.DerivativeSink;
 import angland.optimizer.var.IndexedKey;
 import angland.optimizer.var.KeyedDerivative;
+import angland.optimizer.var.Tape;
 
 /**
  * @author John Angland
@@ -23,8 +25,8 @@ public class MappedDerivativeScalar<VarKey> implements Scalar<VarKey> {
     if (Double.isNaN(this.value)) {
       throw new RuntimeException("NaN value");
     }
-    gradient.actOnEntries(entry -> {
-      if (Double.isNaN(entry.getValue())) {
+    gradient.actOnEntries((key, derivative) -> {
+      if (Double.isNaN(derivative)) {
         throw new RuntimeException("NaN derivative.");
       }
     });
@@ -52,7 +54,7 @@ public class MappedDerivativeScalar<VarKey> implements Scalar<VarKey> {
     private final DerivativeMap<VarKey> gradient;
 
     public Builder(int gradientVars) {
-      gradient = new DerivativeMap<VarKey>(10);
+      gradient = new DerivativeMap<VarKey>(gradientVars);
     }
 
     public double getValue() {
@@ -69,7 +71,7 @@ public class MappedDerivativeScalar<VarKey> implements Scalar<VarKey> {
 
     public void increment(Scalar<VarKey> other) {
       this.value += other.value();
-      other.actOnKeyedDerivatives((kd) -> gradient.merge(kd.getKey(), kd.getValue()));
+      other.actOnDerivatives(1, gradient::merge);
     }
 
     public DerivativeMap<VarKey> getGradient() {
@@ -89,7 +91,18 @@ public class MappedDerivativeScalar<VarKey> implements Scalar<VarKey> {
 
   @Override
   public void actOnKeyedDerivatives(Consumer<KeyedDerivative<VarKey>> consumer) {
-    gradient.actOnEntries(consumer);
+    gradient.actOnEntries((key, derivative) -> consumer.accept(new KeyedDerivative<>(key,
+        derivative)));
+  }
+
+  @Override
+  public void actOnDerivatives(double multiplier, DerivativeSink<VarKey> sink) {
+    gradient.actOnEntries(multiplier, sink);
+  }
+
+  @Override
+  public void backpropagate(Tape<VarKey> tape, int slot) {
+    gradient.actOnEntries(tape.getAdjoint(slot), tape.getSink());
   }
 
   @Override
@@ -5,8 +5,12 @@ import java.util.Map;
 import java.util.function.Consumer;
 
 import angland.optimizer.var.DerivativeMap;
+import angland.optimizer.var.DerivativeSink;
 import angland.optimizer.var.IndexedKey;
 import angland.optimizer.var.KeyedDerivative;
+import angland.optimizer.var.ParameterStore;
+import angland.optimizer.var.Tape;
+import angland.optimizer.var.TapeNode;
 import angland.optimizer.var.matrix.Matrix;
 import angland.optimizer.vec.MathUtils;
 
@@ -17,12 +21,53 @@ import angland.optimizer.vec.MathUtils;
  *
  * @param <VarKey>
  */
-public interface Scalar<VarKey> {
+public interface Scalar<VarKey> extends TapeNode<VarKey> {
 
   public double value();
 
+  /**
+   * Invokes the consumer on the derivative of this scalar with respect to each variable it depends
+   * on. A key may be passed to the consumer more than once, in which case its derivatives should be
+   * summed.
+   * 
+   * Scalars computed from other scalars implement this with a single reverse-mode sweep over a
+   * {@link Tape}.
+   * 
+   * @param consumer
+   */
   public void actOnKeyedDerivatives(Consumer<KeyedDerivative<VarKey>> consumer);
 
+  /**
+   * Invokes the sink on multiplier times the derivative of this scalar with respect to each
+   * variable it depends on, without allocating per derivative. A key may be passed to the sink more
+   * than once, in which case its derivatives should be summed.
+   * 
+   * Leaves that hold their own derivatives should override this method and
+   * {@link #backpropagate}.
+   * 
+   * @param multiplier
+   * @param sink
+   */
+  public default void actOnDerivatives(double multiplier, DerivativeSink<VarKey> sink) {
+    Tape.sweep(this, multiplier, sink);
+  }
+
+  /**
+   * Scalars are leaves of a sweep unless they override this method.
+   */
+  @Override
+  public default void forEachInput(Consumer<TapeNode<VarKey>> consumer) {}
+
+  /**
+   * Leaves emit their own derivatives, scaled by the adjoint accumulated for them. Scalars that
+   * report inputs through {@link #forEachInput} must override this method.
+   */
+  @Override
+  public default void backpropagate(Tape<VarKey> tape, int slot) {
+    double adjoint = tape.getAdjoint(slot);
+    actOnKeyedDerivatives(kd -> tape.emit(kd.getKey(), adjoint * kd.getValue()));
+  }
+
   public double d(IndexedKey<VarKey> key);
 
   /**
@@ -38,7 +83,7 @@ public interface Scalar<VarKey> {
 
   public default Map<IndexedKey<VarKey>, Double> getGradient() {
     Map<IndexedKey<VarKey>, Double> gradient = new HashMap<>();
-    actOnKeyedDerivatives(kd -> gradient.merge(kd.getKey(), kd.getValue(), Double::sum));
+    actOnDerivatives(1, (key, derivative) -> gradient.merge(key, derivative, Double::sum));
     return gradient;
   }
 
@@ -70,6 +115,14 @@ public interface Scalar<VarKey> {
 
   public static <VarKey> Scalar<VarKey> var(IndexedKey<VarKey> key,
       Map<IndexedKey<VarKey>, Double> context) {
+    if (context instanceof ParameterStore) {
+      ParameterStore<VarKey> store = (ParameterStore<VarKey>) context;
+      int offset = store.getOffset(key);
+      if (offset < 0) {
+        throw new RuntimeException("No context value for key " + key);
+      }
+      return new ScalarVariable<>(store.resolve(key), store.getValues()[offset]);
+    }
     Double val = context.get(key);
     if (val == null) {
       throw new RuntimeException("No context value for key " + key);
@@ -130,7 +183,7 @@ public interface Scalar<VarKey> {
 
   public default Scalar<VarKey> cache(int cacheSize) {
     DerivativeMap<VarKey> gradient = new DerivativeMap<>(cacheSize);
-    actOnKeyedDerivatives(kd -> gradient.merge(kd.getKey(), kd.getValue()));
+    actOnDerivatives(1, gradient::merge);
     return new MappedDerivativeScalar<>(value(), gradient);
   }
 
@@ -142,7 +195,7 @@ public interface Scalar<VarKey> {
    */
   public default Scalar<VarKey> discardBeyond(int n) {
     DerivativeMap<VarKey> gradient = new DerivativeMap<>(n);
-    actOnKeyedDerivatives(kd -> gradient.merge(kd.getKey(), kd.getValue()));
+    actOnDerivatives(1, gradient::merge);
     return new MappedDerivativeScalar<>(value(), gradient.getHighestAbs(n));
   }
 
@@ -2,8 +2,10 @@ package angland.optimizer.var.scalar;
 
 import java.util.function.Consumer;
 
+import angland.optimizer.var.DerivativeSink;
 import angland.optimizer.var.IndexedKey;
 import angland.optimizer.var.KeyedDerivative;
+import angland.optimizer.var.Tape;
 
 class ScalarConstant<VarKey> implements Scalar<VarKey> {
 
@@ -24,6 +26,12 @@ class ScalarConstant<VarKey> implements Scalar<VarKey> {
   @Override
   public void actOnKeyedDerivatives(Consumer<KeyedDerivative<VarKey>> consumer) {}
 
+  @Override
+  public void actOnDerivatives(double multiplier, DerivativeSink<VarKey> sink) {}
+
+  @Override
+  public void backpropagate(Tape<VarKey> tape, int slot) {}
+
   @Override
   public double d(IndexedKey<VarKey> key) {
     return 0;
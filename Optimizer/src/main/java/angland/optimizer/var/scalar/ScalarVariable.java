@@ -2,8 +2,10 @@ package angland.optimizer.var.scalar;
 
 import java.util.function.Consumer;
 
+import angland.optimizer.var.DerivativeSink;
 import angland.optimizer.var.IndexedKey;
 import angland.optimizer.var.KeyedDerivative;
+import angland.optimizer.var.Tape;
 
 public class ScalarVariable<VarKey> implements Scalar<VarKey> {
 
@@ -31,6 +33,16 @@ public class ScalarVariable<VarKey> implements Scalar<VarKey> {
     consumer.accept(keyedDerivative);
   }
 
+  @Override
+  public void actOnDerivatives(double multiplier, DerivativeSink<VarKey> sink) {
+    sink.accept(key, multiplier);
+  }
+
+  @Override
+  public void backpropagate(Tape<VarKey> tape, int slot) {
+    tape.emit(key, tape.getAdjoint(slot));
+  }
+
   @Override
   public double d(IndexedKey<VarKey> key) {
     return key.equals(this.key) ? 1 : 0;
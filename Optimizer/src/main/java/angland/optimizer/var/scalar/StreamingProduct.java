@@ -4,6 +4,8 @@ import java.util.function.Consumer;
 
 import angland.optimizer.var.IndexedKey;
 import angland.optimizer.var.KeyedDerivative;
+import angland.optimizer.var.Tape;
+import angland.optimizer.var.TapeNode;
 
 public class StreamingProduct<VarKey> implements Scalar<VarKey> {
 
@@ -30,13 +32,23 @@ public class StreamingProduct<VarKey> implements Scalar<VarKey> {
 
   @Override
   public void actOnKeyedDerivatives(Consumer<KeyedDerivative<VarKey>> consumer) {
+    Tape.sweep(this, consumer);
+  }
+
+  @Override
+  public void forEachInput(Consumer<TapeNode<VarKey>> consumer) {
+    consumer.accept(left);
+    consumer.accept(right);
+  }
+
+  @Override
+  public void backpropagate(Tape<VarKey> tape, int slot) {
+    double adjoint = tape.getAdjoint(slot);
     if (right.value() != 0) {
-      left.actOnKeyedDerivatives(kd -> consumer.accept(new KeyedDerivative<>(kd.getKey(), kd
-          .getValue() * right.value())));
+      tape.accumulate(left, adjoint * right.value());
     }
     if (left.value() != 0) {
-      right.actOnKeyedDerivatives(kd -> consumer.accept(new KeyedDerivative<>(kd.getKey(), kd
-          .getValue() * left.value())));
+      tape.accumulate(right, adjoint * left.value());
     }
   }
 
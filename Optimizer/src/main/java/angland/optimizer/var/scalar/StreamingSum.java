@@ -6,6 +6,8 @@ import java.util.function.Consumer;
 
 import angland.optimizer.var.IndexedKey;
 import angland.optimizer.var.KeyedDerivative;
+import angland.optimizer.var.Tape;
+import angland.optimizer.var.TapeNode;
 
 public class StreamingSum<VarKey> implements Scalar<VarKey> {
 
@@ -63,8 +65,21 @@ public class StreamingSum<VarKey> implements Scalar<VarKey> {
 
   @Override
   public void actOnKeyedDerivatives(Consumer<KeyedDerivative<VarKey>> consumer) {
+    Tape.sweep(this, consumer);
+  }
+
+  @Override
+  public void forEachInput(Consumer<TapeNode<VarKey>> consumer) {
+    for (Scalar<VarKey> scalar : components) {
+      consumer.accept(scalar);
+    }
+  }
+
+  @Override
+  public void backpropagate(Tape<VarKey> tape, int slot) {
+    double adjoint = tape.getAdjoint(slot);
     for (Scalar<VarKey> scalar : components) {
-      scalar.actOnKeyedDerivatives(consumer);
+      tape.accumulate(scalar, adjoint);
     }
   }
 
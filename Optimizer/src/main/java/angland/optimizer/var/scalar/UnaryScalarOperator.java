@@ -4,6 +4,8 @@ import java.util.function.Consumer;
 
 import angland.optimizer.var.IndexedKey;
 import angland.optimizer.var.KeyedDerivative;
+import angland.optimizer.var.Tape;
+import angland.optimizer.var.TapeNode;
 
 public class UnaryScalarOperator<VarKey> implements Scalar<VarKey> {
 
@@ -39,9 +41,18 @@ public class UnaryScalarOperator<VarKey> implements Scalar<VarKey> {
 
   @Override
   public void actOnKeyedDerivatives(Consumer<KeyedDerivative<VarKey>> consumer) {
+    Tape.sweep(this, consumer);
+  }
+
+  @Override
+  public void forEachInput(Consumer<TapeNode<VarKey>> consumer) {
+    consumer.accept(arg);
+  }
+
+  @Override
+  public void backpropagate(Tape<VarKey> tape, int slot) {
     if (fPrimeOfX != 0) {
-      arg.actOnKeyedDerivatives(kd -> consumer.accept(new KeyedDerivative<>(kd.getKey(), kd
-          .getValue() * fPrimeOfX)));
+      tape.accumulate(arg, tape.getAdjoint(slot) * fPrimeOfX);
     }
   }
 
@@ -10,6 +10,8 @@ import java.util.Set;
 import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 
+import angland.optimizer.utils.ObjectToDoubleMap;
+
 /**
  * 
  * @author John Angland
@@ -85,6 +87,60 @@ public class MathUtils {
     return multiply(newNorm / currentMagnitude, vec);
   }
 
+  /**
+   * Computes the sum of two sparse vectors.
+   * 
+   * @return
+   */
+  public static <Key> ObjectToDoubleMap<Key> add(ObjectToDoubleMap<Key> a,
+      ObjectToDoubleMap<Key> b) {
+    ObjectToDoubleMap<Key> result = a.cloneWithMultiplier(1);
+    result.addAll(b, 1);
+    return result;
+  }
+
+  /**
+   * Returns the result of a-b, where a and b are sparse vectors.
+   * 
+   * @param a
+   * @param b
+   * @return
+   */
+  public static <Key> ObjectToDoubleMap<Key> subtract(ObjectToDoubleMap<Key> a,
+      ObjectToDoubleMap<Key> b) {
+    ObjectToDoubleMap<Key> result = a.cloneWithMultiplier(1);
+    result.addAll(b, -1);
+    return result;
+  }
+
+  public static <Key> ObjectToDoubleMap<Key> multiply(double scalar, ObjectToDoubleMap<Key> vec) {
+    return vec.cloneWithMultiplier(scalar);
+  }
+
+  /**
+   * Computes the dot product of two sparse vectors, iterating over the smaller.
+   * 
+   * @return
+   */
+  public static <Key> double dot(ObjectToDoubleMap<Key> left, ObjectToDoubleMap<Key> right) {
+    ObjectToDoubleMap<Key> smaller = left.size() <= right.size() ? left : right;
+    ObjectToDoubleMap<Key> larger = smaller == left ? right : left;
+    return smaller.entries().mapToDouble(e -> e.getValue() * larger.get(e.getKey())).sum();
+  }
+
+  public static <Key> double dot(ObjectToDoubleMap<Key> left, Map<Key, Double> right) {
+    return left.entries().mapToDouble(e -> e.getValue() * right.getOrDefault(e.getKey(), 0.0))
+        .sum();
+  }
+
+  public static double l2Norm(ObjectToDoubleMap<?> m) {
+    return Math.sqrt(m.sumOfSquares());
+  }
+
+  public static <Key> ObjectToDoubleMap<Key> adjustToMagnitude(ObjectToDoubleMap<Key> vec,
+      double newNorm) {
+    return vec.cloneWithMultiplier(newNorm / l2Norm(vec));
+  }
 
   public static double sigmoid(double x) {
     return 1.0 / (1 + Math.exp(-x));
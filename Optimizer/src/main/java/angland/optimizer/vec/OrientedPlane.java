@@ -1,9 +1,9 @@
 package angland.optimizer.vec;
 
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
 
+import angland.optimizer.utils.ObjectToDoubleMap;
+
 /**
  * 
  * @author John Angland
@@ -12,23 +12,32 @@ import java.util.Map;
  */
 public class OrientedPlane<VarType> {
 
-  private final Map<VarType, Double> vec;
+  private final ObjectToDoubleMap<VarType> vec;
   private final double offset;
 
   public OrientedPlane(Map<VarType, Double> vec, double offset) {
+    this(ObjectToDoubleMap.fromMap(vec), offset);
+  }
+
+  public OrientedPlane(ObjectToDoubleMap<VarType> vec, double offset) {
     super();
-    this.vec = Collections.unmodifiableMap(new HashMap<>(vec));
+    this.vec = vec.cloneWithMultiplier(1);
     this.offset = offset;
   }
 
   public static <VarType> OrientedPlane<VarType> minimum(VarType var, double min) {
-    Map<VarType, Double> vec = new HashMap<>();
+    ObjectToDoubleMap<VarType> vec = new ObjectToDoubleMap<>(1);
     vec.put(var, 1.0);
     return new OrientedPlane<>(vec, -min);
   }
 
-  public Map<VarType, Double> getVec() {
-    return vec;
+  /**
+   * Returns a copy of the plane's normal vector.
+   * 
+   * @return
+   */
+  public ObjectToDoubleMap<VarType> getVec() {
+    return vec.cloneWithMultiplier(1);
   }
 
   public double getOffset() {
@@ -42,7 +51,7 @@ public class OrientedPlane<VarType> {
    */
   public OrientedPlane<VarType> normalize() {
     double l2Norm = MathUtils.l2Norm(vec);
-    Map<VarType, Double> adjusted = MathUtils.adjustToMagnitude(vec, 1.0);
+    ObjectToDoubleMap<VarType> adjusted = MathUtils.adjustToMagnitude(vec, 1.0);
     return new OrientedPlane<>(adjusted, offset / l2Norm);
   }
 
@@ -50,6 +59,10 @@ public class OrientedPlane<VarType> {
     return MathUtils.dot(vec, context) + offset;
   }
 
+  public double evaluate(ObjectToDoubleMap<VarType> context) {
+    return MathUtils.dot(vec, context) + offset;
+  }
+
   public String toString() {
     return "OrientedPlane(" + vec + " " + offset + ")";
   }
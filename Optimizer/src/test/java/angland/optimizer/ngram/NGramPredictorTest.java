@@ -1,9 +1,16 @@
 package angland.optimizer.ngram;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import org.junit.Test;
 
@@ -12,11 +19,15 @@ import angland.optimizer.Range;
 import angland.optimizer.nn.LstmCellTemplate;
 import angland.optimizer.nn.PeepholeLstmCellTemplate;
 import angland.optimizer.nn.RnnCellTemplate;
+import angland.optimizer.nn.RnnStateValues;
+import angland.optimizer.var.GradientAccumulator;
 import angland.optimizer.var.IndexedKey;
+import angland.optimizer.var.ParameterStore;
 import angland.optimizer.var.scalar.Scalar;
 
 public class NGramPredictorTest {
 
+  private static final double TOLERANCE = 10e-9;
 
   @Test
   public void testOutputHasNoException() {
@@ -69,5 +80,218 @@ public class NGramPredictorTest {
     }
   }
 
+  @Test
+  public void testAccumulateBatchGradientMatchesBatchLoss() throws InterruptedException {
+    ParameterStore<String> store =
+        NGramPredictor.randomizedStore(10, new LstmCellTemplate("cell", 6, .005, false));
+    NGramPredictor predictor = variablePredictor(store, .005);
+    List<List<Integer>> batch = batch(12, 3, 4);
+    withExecutor(es -> {
+      Scalar<String> expected = predictor.getBatchLoss(batch, es, 9);
+      GradientAccumulator<String> accumulator = new GradientAccumulator<>(store);
+      for (int round = 0; round < 2; ++round) {
+        assertEquals(expected.value(),
+            predictor.accumulateBatchGradient(batch, es, 9, accumulator), TOLERANCE);
+        assertStoreGradientMatches(expected, store);
+        store.clearGradient();
+      }
+    });
+  }
+
+  @Test
+  public void testMiniBatchGradientMatchesBatchLoss() throws InterruptedException {
+    // Without clipping, the batched cell's gradient is the same as LstmCell's.
+    ParameterStore<String> store =
+        NGramPredictor.randomizedStore(10, new LstmCellTemplate("cell", 6, 0, false));
+    NGramPredictor predictor = variablePredictor(store, 0);
+    List<List<Integer>> batch = batch(11, 2, 5);
+    withExecutor(es -> {
+      Scalar<String> expected = predictor.getBatchLoss(batch, es, 9);
+      assertEquals(expected.value(), predictor.getMiniBatchLoss(batch, 9).value(), TOLERANCE);
+      GradientAccumulator<String> accumulator = new GradientAccumulator<>(store);
+      assertEquals(expected.value(),
+          predictor.accumulateBatchGradient(batch, es, 9, 4, accumulator), TOLERANCE);
+      assertStoreGradientMatches(expected, store);
+    });
+  }
+
+  @Test
+  public void testSharedNegativeGradientMatchesBatchLoss() throws InterruptedException {
+    // Nine negatives cover the rest of a ten token vocabulary, so sharing them changes nothing.
+    ParameterStore<String> store =
+        NGramPredictor.randomizedStore(10, new LstmCellTemplate("cell", 6, 0, false));
+    NGramPredictor predictor = variablePredictor(store, 0);
+    List<List<Integer>> batch = batch(7, 2, 4);
+    withExecutor(es -> {
+      Scalar<String> expected = predictor.getBatchLoss(batch, es, 9);
+      GradientAccumulator<String> accumulator = new GradientAccumulator<>(store);
+      assertEquals(expected.value(),
+          predictor.accumulateSharedNegativeBatchGradient(batch, es, 9, accumulator), TOLERANCE);
+      assertStoreGradientMatches(expected, store);
+    });
+  }
+
+  @Test
+  public void testTruncatedGradient() throws InterruptedException {
+    ParameterStore<String> store =
+        NGramPredictor.randomizedStore(10, new LstmCellTemplate("cell", 6, .005, false));
+    NGramPredictor predictor = variablePredictor(store, .005);
+    List<Integer> input = batch(1, 13, 1).get(0);
+    Scalar<String> expected = predictor.getLoss(input, 9);
+    GradientAccumulator<String> accumulator = new GradientAccumulator<>(store);
+
+    // A window covering the whole sequence gives the full gradient.
+    double loss = predictor.accumulateTruncatedGradient(input, 9, input.size(), 0.5, accumulator);
+    withExecutor(accumulator::reduce);
+    assertEquals(expected.value(), loss, TOLERANCE);
+    assertStoreGradientMatches(expected.times(Scalar.constant(0.5)), store);
+    store.clearGradient();
+
+    // Shorter windows give the same loss, split across windows.
+    assertEquals(expected.value(),
+        predictor.accumulateTruncatedGradient(input, 9, 5, 1, accumulator), TOLERANCE);
+  }
+
+  /**
+   * Returns a variable predictor over a vocabulary of ten, for a store made from an
+   * LstmCellTemplate of size six with the given clip threshold.
+   */
+  private static NGramPredictor variablePredictor(ParameterStore<String> store,
+      double gradientClipThreshold) {
+    return new NGramPredictor(10, new LstmCellTemplate("cell", 6, gradientClipThreshold, false),
+        store, false);
+  }
+
+  /**
+   * Returns count sequences over a vocabulary of ten, of lengths minLength up to
+   * minLength + lengths - 1.
+   */
+  private static List<List<Integer>> batch(int count, int minLength, int lengths) {
+    List<List<Integer>> batch = new ArrayList<>();
+    for (int i = 0; i < count; ++i) {
+      List<Integer> input = new ArrayList<>();
+      for (int j = 0; j < minLength + i % lengths; ++j) {
+        input.add((i * 7 + j * 3) % 10);
+      }
+      batch.add(input);
+    }
+    return batch;
+  }
+
+  private static void withExecutor(Consumer<ExecutorService> body) throws InterruptedException {
+    ExecutorService es = Executors.newFixedThreadPool(4);
+    try {
+      body.accept(es);
+    } finally {
+      es.shutdown();
+      es.awaitTermination(1, TimeUnit.MINUTES);
+    }
+  }
+
+  /**
+   * Asserts that the store's accumulated gradient equals the gradient of loss, key by key.
+   */
+  private static void assertStoreGradientMatches(Scalar<String> loss,
+      ParameterStore<String> store) {
+    Map<IndexedKey<String>, Double> gradient = loss.getGradient();
+    for (int i = 0; i < store.size(); ++i) {
+      IndexedKey<String> key = store.getKey(i);
+      assertEquals(key.toString(), gradient.getOrDefault(key, 0.0), store.getGradient()[i],
+          TOLERANCE);
+    }
+  }
+
+  @Test
+  public void testTopK() {
+    RnnCellTemplate template = new LstmCellTemplate("cell", 6, .005, true);
+    NGramPredictor predictor =
+        new NGramPredictor(10, template, NGramPredictor.randomizedStore(10, template), true);
+    RnnStateValues state = predictor.advance(predictor.initialState(), 3);
+    List<TokenProbability> all = predictor.topK(state, 10, 0);
+    assertEquals(9, all.size());
+    double total = 0;
+    for (int i = 0; i < all.size(); ++i) {
+      assertTrue(all.get(i).getToken() != 0);
+      if (i > 0) {
+        assertTrue(all.get(i - 1).getProbability() >= all.get(i).getProbability());
+      }
+      total += all.get(i).getProbability();
+    }
+    assertEquals(1, total, TOLERANCE);
+    List<TokenProbability> top = predictor.topK(state, 3, 0);
+    for (int i = 0; i < 3; ++i) {
+      assertEquals(all.get(i).getToken(), top.get(i).getToken());
+      assertEquals(all.get(i).getProbability(), top.get(i).getProbability(), TOLERANCE);
+    }
+  }
+
+  @Test
+  public void testBeamSearch() {
+    RnnCellTemplate template = new LstmCellTemplate("cell", 6, .005, true);
+    NGramPredictor predictor =
+        new NGramPredictor(10, template, NGramPredictor.randomizedStore(10, template), true);
+    RnnStateValues state = predictor.advance(predictor.initialState(), 3);
+
+    // A beam as wide as every two-token sequence finds the most probable one exactly.
+    double best = Double.NEGATIVE_INFINITY;
+    for (TokenProbability first : predictor.topK(state, 10, -1)) {
+      RnnStateValues next = predictor.advance(state, first.getToken());
+      double second = predictor.topK(next, 1, -1).get(0).getProbability();
+      best = Math.max(best, Math.log(first.getProbability()) + Math.log(second));
+    }
+    List<ScoredSequence> exhaustive = predictor.beamSearch(state, 2, 100, -1);
+    assertEquals(100, exhaustive.size());
+    assertEquals(best, exhaustive.get(0).getLogProbability(), TOLERANCE);
+
+    // A beam of width one is greedy.
+    List<ScoredSequence> greedy = predictor.beamSearch(state, 3, 1, -1);
+    assertEquals(1, greedy.size());
+    RnnStateValues current = state;
+    for (int token : greedy.get(0).getTokens()) {
+      assertEquals(predictor.topK(current, 1, -1).get(0).getToken(), token);
+      current = predictor.advance(current, token);
+    }
+  }
+
+  @Test
+  public void testSharedNegativesCoveringVocabularyMatchFullLoss() {
+    RnnCellTemplate template = new LstmCellTemplate("cell", 6, .005, false);
+    NGramPredictor predictor =
+        new NGramPredictor(10, template, NGramPredictor.randomizedContext(10, template), false);
+    List<Integer> input = new ArrayList<>();
+    input.add(1);
+    input.add(4);
+    input.add(7);
+    input.add(4);
+    int[] negatives = predictor.sampleNegatives(9);
+    assertEquals(10, negatives.length);
+    assertEquals(predictor.getLoss(input, 9).value(), predictor.getLoss(input, negatives).value(),
+        TOLERANCE);
+  }
+
+  @Test
+  public void testRefreshMatchesNewPredictor() {
+    RnnCellTemplate template = new LstmCellTemplate("cell", 6, .005, false);
+    ParameterStore<String> store = NGramPredictor.randomizedStore(10, template);
+    NGramPredictor predictor = new NGramPredictor(10, template, store, false);
+    List<Integer> input = new ArrayList<>();
+    input.add(2);
+    input.add(5);
+    input.add(8);
+    List<List<Integer>> batch = new ArrayList<>();
+    batch.add(input);
+    int[] negatives = predictor.sampleNegatives(9);
+    predictor.getMiniBatchLoss(batch, 9).value();
+    double[] values = store.getValues();
+    for (int i = 0; i < store.size(); ++i) {
+      values[i] *= 0.5;
+    }
+    predictor.refresh();
+    NGramPredictor rebuilt = new NGramPredictor(10, template, store, false);
+    assertEquals(rebuilt.getLoss(input, negatives).value(), predictor.getLoss(input, negatives)
+        .value(), TOLERANCE);
+    assertEquals(rebuilt.getMiniBatchLoss(batch, 9).value(), predictor.getMiniBatchLoss(batch, 9)
+        .value(), TOLERANCE);
+  }
 
 }
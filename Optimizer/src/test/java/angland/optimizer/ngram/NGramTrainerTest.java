@@ -0,0 +1,61 @@
+package angland.optimizer.ngram;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import angland.optimizer.Range;
+import angland.optimizer.nn.LstmCellTemplate;
+import angland.optimizer.nn.RnnCellTemplate;
+import angland.optimizer.saver.Checkpointer;
+import angland.optimizer.var.ParameterStore;
+
+public class NGramTrainerTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static double meanLoss(NGramPredictor predictor, List<List<Integer>> sentences) {
+    double total = 0;
+    for (List<Integer> sentence : sentences) {
+      // Nine samples cover the vocabulary, so the loss is deterministic.
+      total += predictor.getLoss(sentence, 9).value();
+    }
+    return total / sentences.size();
+  }
+
+  @Test
+  public void testTrainAsyncReducesLoss() throws Exception {
+    RnnCellTemplate template = new LstmCellTemplate("cell", 6, .005, false);
+    ParameterStore<String> store = NGramPredictor.randomizedStore(10, template);
+    store.setRange(new Range(-1, 1));
+    List<List<Integer>> sentences = new ArrayList<>();
+    for (int i = 0; i < 200; ++i) {
+      sentences.add(Arrays.asList(1, 2, 3, 4, 5));
+      sentences.add(Arrays.asList(6, 7, 8, 9));
+    }
+    double before = meanLoss(new NGramPredictor(10, template, store, true), sentences);
+    File file = new File(folder.getRoot(), "model.bin");
+    ExecutorService es = Executors.newFixedThreadPool(4);
+    try (Checkpointer checkpointer = new Checkpointer(file)) {
+      NGramTrainer.trainAsync(es, 4, sentences, store, checkpointer, 10, template, 100, 0.2, 3);
+    } finally {
+      es.shutdown();
+      es.awaitTermination(1, TimeUnit.MINUTES);
+    }
+    double after = meanLoss(new NGramPredictor(10, template, store, true), sentences);
+    assertTrue(before + " -> " + after, after < before);
+    assertTrue(file.exists());
+  }
+
+}
@@ -0,0 +1,52 @@
+package angland.optimizer.ngram;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import angland.optimizer.nn.LstmCellTemplate;
+import angland.optimizer.nn.RnnCellTemplate;
+
+public class PredictionSessionTest {
+
+  private NGramPredictor predictor;
+
+  @Before
+  public void preparePredictor() {
+    RnnCellTemplate template = new LstmCellTemplate("cell", 6, .005, true);
+    predictor = new NGramPredictor(10, template, NGramPredictor.randomizedStore(10, template), true);
+  }
+
+  @Test
+  public void testMatchesPredictNext() {
+    List<Integer> input = Arrays.asList(3, 1, 4, 1, 5, 9, 2);
+    PredictionSession session = new PredictionSession(predictor);
+    assertEquals(predictor.predictNext(input.subList(0, 0), 4, 0), session.predictNext(4, 0));
+    for (int i = 0; i < input.size(); ++i) {
+      session.advance(input.get(i));
+      assertEquals(predictor.predictNext(input.subList(0, i + 1), 4, 0),
+          session.predictNext(4, 0));
+    }
+  }
+
+  @Test
+  public void testRollback() {
+    PredictionSession session = new PredictionSession(predictor);
+    session.advance(Arrays.asList(3, 1, 4));
+    int snapshot = session.snapshot();
+    List<Integer> expected = session.predictNext(4, -1);
+    session.advance(Arrays.asList(1, 5));
+    session.backspace();
+    assertEquals(Arrays.asList(3, 1, 4, 1), session.getTokens());
+    session.rollback(snapshot);
+    assertEquals(Arrays.asList(3, 1, 4), session.getTokens());
+    assertEquals(expected, session.predictNext(4, -1));
+    session.setInput(Arrays.asList(3, 1, 5));
+    assertEquals(predictor.predictNext(Arrays.asList(3, 1, 5), 4, -1), session.predictNext(4, -1));
+  }
+
+}
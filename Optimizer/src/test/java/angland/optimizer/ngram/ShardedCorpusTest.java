@@ -0,0 +1,66 @@
+package angland.optimizer.ngram;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ShardedCorpusTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static List<List<Integer>> randomSequences(int count) {
+    Random random = new Random(7);
+    List<List<Integer>> sequences = new ArrayList<>();
+    for (int i = 0; i < count; ++i) {
+      List<Integer> sequence = new ArrayList<>();
+      for (int j = 0; j < 1 + random.nextInt(30); ++j) {
+        sequence.add(random.nextInt(10000));
+      }
+      sequences.add(sequence);
+    }
+    return sequences;
+  }
+
+  @Test
+  public void testRoundTripAcrossShards() throws IOException {
+    File directory = folder.newFolder("shards");
+    assertFalse(ShardedCorpus.isShardDirectory(directory));
+    List<List<Integer>> sequences = randomSequences(500);
+    long tokenCount = 0;
+    try (CorpusShardWriter writer = new CorpusShardWriter(directory, "corpus", 1000)) {
+      for (List<Integer> sequence : sequences) {
+        writer.add(sequence);
+        tokenCount += sequence.size();
+      }
+    }
+    assertTrue(ShardedCorpus.isShardDirectory(directory));
+    ShardedCorpus corpus = ShardedCorpus.open(directory);
+    assertTrue(corpus.getShards().size() > 1);
+    assertEquals(tokenCount, corpus.getTokenCount());
+    assertEquals(sequences, corpus);
+    CorpusShard first = corpus.getShards().get(0);
+    assertEquals(sequences.get(0).size(), first.length(0));
+    assertEquals((int) sequences.get(0).get(0), first.get(0, 0));
+  }
+
+  @Test
+  public void testEmptyCorpusWritesNoShards() throws IOException {
+    File directory = folder.newFolder("shards");
+    try (CorpusShardWriter writer = new CorpusShardWriter(directory, "corpus")) {
+      assertEquals(0, writer.getShards().size());
+    }
+    assertFalse(ShardedCorpus.isShardDirectory(directory));
+  }
+
+}
@@ -2,12 +2,48 @@ package angland.optimizer.nn;
 
 import static org.junit.Assert.assertEquals;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
 import org.junit.Test;
 
+import angland.optimizer.var.IndexedKey;
+import angland.optimizer.var.matrix.Activation;
+import angland.optimizer.var.matrix.Matrix;
+import angland.optimizer.var.scalar.Scalar;
+
 public class FeedForwardLayerTest {
 
   @Test
   public void testStreamKeys() {
     assertEquals(30, (int) FeedForwardLayer.getVarKeys("w", "b", 5, 5).count());
   }
+
+  @Test
+  public void testDenseLayerMatchesScalarLayer() {
+    Map<IndexedKey<String>, Double> context = new HashMap<>();
+    Stream.concat(FeedForwardLayer.getVarKeys("w", "b", 4, 3),
+        IndexedKey.getAllMatrixKeys("in", 4, 1).stream()).forEach(
+        k -> context.put(k, Math.random() * 2 - 1));
+    Matrix<String> input = Matrix.var("in", 4, 1, context);
+    FeedForwardLayer<String> denseLayer =
+        new FeedForwardLayer<>(4, 3, Activation.SIGMOID, 0, "w", "b", context, false);
+    Scalar<String> expected =
+        Matrix.var("w", 3, 4, context).times(input).plus(Matrix.var("b", 3, 1, context))
+            .transform(Scalar::sigmoid).elementSumStream();
+    Scalar<String> actual = denseLayer.apply(input).elementSumStream();
+    assertEquals(expected.value(), actual.value(), 10e-9);
+    double[] inputValues = new double[4];
+    for (int i = 0; i < 4; ++i) {
+      inputValues[i] = input.get(i, 0).value();
+    }
+    double[] values = denseLayer.applyValues(inputValues);
+    for (int i = 0; i < 3; ++i) {
+      assertEquals(denseLayer.apply(input).get(i, 0).value(), values[i], 10e-9);
+    }
+    Map<IndexedKey<String>, Double> actualGradient = actual.getGradient();
+    expected.getGradient().forEach(
+        (k, v) -> assertEquals(k.toString(), v, actualGradient.get(k), 10e-9));
+  }
 }
@@ -1,18 +1,31 @@
 package angland.optimizer.nn;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.stream.Stream;
 
 import org.junit.Test;
 
+import angland.optimizer.ngram.NGramPredictor;
 import angland.optimizer.var.IndexedKey;
+import angland.optimizer.var.ParameterStore;
+import angland.optimizer.var.matrix.DenseMatrix;
 import angland.optimizer.var.matrix.Matrix;
+import angland.optimizer.var.scalar.Scalar;
+import angland.optimizer.var.scalar.StreamingSum;
 
 public class LstmCellTest {
 
+  private static final double TOLERANCE = 10e-9;
+
 
   @Test
   public void testHiddenValueRetained() {
@@ -34,4 +47,97 @@ public class LstmCellTest {
     assertNotNull(out.getHiddenState());
   }
 
+  @Test
+  public void testBatchedMatchesLstmCell() {
+    int batch = 3;
+    LstmCellTemplate template = new LstmCellTemplate("cell", 5, 0, false);
+    Map<IndexedKey<String>, Double> context = new HashMap<>();
+    Stream.concat(
+        template.getKeys(),
+        Stream.concat(IndexedKey.getAllMatrixKeys("hidden", 5, batch).stream(), IndexedKey
+            .getAllMatrixKeys("exposed", 5, batch).stream())).forEach(k -> {
+      context.put(k, Math.random() * 2 - 1);
+    });
+    RnnCell<String> lstmCell = template.create(context);
+    Matrix<String> inHidden = Matrix.var("hidden", 5, batch, context);
+    Matrix<String> inExposed = Matrix.var("exposed", 5, batch, context);
+    RnnStateTuple<String> batched =
+        template.createBatched(context).apply(
+            new RnnStateTuple<>(DenseMatrix.var("hidden", 5, batch, context), DenseMatrix.var(
+                "exposed", 5, batch, context)));
+
+    List<Scalar<String>> expectedComponents = new ArrayList<>();
+    for (int j = 0; j < batch; ++j) {
+      RnnStateTuple<String> out =
+          lstmCell.apply(new RnnStateTuple<>(inHidden.getColumn(Scalar.constant(j)), inExposed
+              .getColumn(Scalar.constant(j))));
+      for (int i = 0; i < 5; ++i) {
+        assertEquals(out.getHiddenState().get(i, 0).value(), batched.getHiddenState().get(i, j)
+            .value(), TOLERANCE);
+        assertEquals(out.getExposedState().get(i, 0).value(), batched.getExposedState().get(i, j)
+            .value(), TOLERANCE);
+      }
+      expectedComponents.add(out.getHiddenState().elementSumStream());
+      expectedComponents.add(out.getExposedState().elementSumStream());
+    }
+    Map<IndexedKey<String>, Double> expected =
+        new StreamingSum<>(expectedComponents).getGradient();
+    Map<IndexedKey<String>, Double> actual =
+        batched.getHiddenState().elementSumStream()
+            .plus(batched.getExposedState().elementSumStream()).getGradient();
+    expected.forEach((k, v) -> assertEquals(k.toString(), v, actual.getOrDefault(k, 0.0),
+        TOLERANCE));
+    actual.forEach((k, v) -> assertEquals(k.toString(), expected.getOrDefault(k, 0.0), v,
+        TOLERANCE));
+  }
+
+  private static void assertValuesMatchApply(RnnCellTemplate template) {
+    Map<IndexedKey<String>, Double> context = new HashMap<>();
+    template.getKeys().forEach(k -> context.put(k, Math.random() * 2 - 1));
+    RnnCell<String> cell = template.create(context);
+    RnnStateValues values =
+        new RnnStateValues(randomValues(template.getSize()), randomValues(template.getSize()));
+    for (int step = 0; step < 3; ++step) {
+      RnnStateValues expected = RnnStateValues.of(cell.apply(values.toTuple()));
+      values = cell.applyValues(values);
+      assertArrayEquals(expected.getHiddenState(), values.getHiddenState(), TOLERANCE);
+      assertArrayEquals(expected.getExposedState(), values.getExposedState(), TOLERANCE);
+    }
+  }
+
+  private static double[] randomValues(int length) {
+    double[] values = new double[length];
+    for (int i = 0; i < length; ++i) {
+      values[i] = Math.random() * 2 - 1;
+    }
+    return values;
+  }
+
+  @Test
+  public void testApplyValuesMatchesApply() {
+    assertValuesMatchApply(new LstmCellTemplate("cell", 5, .005, true));
+    assertValuesMatchApply(new PeepholeLstmCellTemplate("cell", 5, .005, true));
+    assertValuesMatchApply(new StoredPotentialRnnCellTemplate("cell", 5, .005, true));
+    assertValuesMatchApply(FeatureGroupRnnCellTemplate.simple("cell", 6, 2, .005, true, false));
+    assertValuesMatchApply(FeatureGroupRnnCellTemplate.simple("cell", 6, 3, .005, true, true));
+  }
+
+  @Test
+  public void testReloadMatchesNewCell() {
+    for (RnnCellTemplate template : Arrays.asList(new LstmCellTemplate("cell", 5, .005, false),
+        new PeepholeLstmCellTemplate("cell", 5, .005, false))) {
+      ParameterStore<String> store = NGramPredictor.randomizedStore(3, template);
+      RnnCell<String> cell = template.create(store);
+      for (int i = 0; i < store.size(); ++i) {
+        store.getValues()[i] = Math.random() * 2 - 1;
+      }
+      assertTrue(cell.reload(store));
+      RnnStateValues input = new RnnStateValues(randomValues(5), randomValues(5));
+      RnnStateValues expected = template.create(store).applyValues(input);
+      RnnStateValues actual = cell.applyValues(input);
+      assertArrayEquals(expected.getHiddenState(), actual.getHiddenState(), TOLERANCE);
+      assertArrayEquals(expected.getExposedState(), actual.getExposedState(), TOLERANCE);
+    }
+  }
+
 }
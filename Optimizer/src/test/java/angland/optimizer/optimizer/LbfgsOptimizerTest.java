@@ -0,0 +1,74 @@
+package angland.optimizer.optimizer;
+
+import static angland.optimizer.optimizer.OptimizerFixtures.ellipse;
+import static angland.optimizer.optimizer.OptimizerFixtures.start;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.junit.Test;
+
+import angland.optimizer.LbfgsOptimizer;
+import angland.optimizer.Optimizer;
+import angland.optimizer.Range;
+import angland.optimizer.Solution;
+import angland.optimizer.var.IndexedKey;
+import angland.optimizer.var.scalar.Scalar;
+
+public class LbfgsOptimizerTest {
+
+  private static final double TOLERANCE = 10e-5;
+  // Badly conditioned, so that curvature information pays off over gradient descent.
+  private static final double STRETCH = 1000;
+
+  private static Scalar<String> rosenbrock(Map<IndexedKey<String>, Double> m) {
+    Scalar<String> a = Scalar.var("a", m);
+    Scalar<String> b = Scalar.var("b", m);
+    Scalar<String> first = Scalar.<String>constant(1).minus(a).power(2);
+    Scalar<String> second = b.minus(a.power(2)).power(2).times(Scalar.constant(100));
+    return first.plus(second);
+  }
+
+  @Test
+  public void testRosenbrock() {
+    LbfgsOptimizer optimizer = new LbfgsOptimizer();
+    Solution<Scalar<String>, String> solution =
+        optimizer.minimize(LbfgsOptimizerTest::rosenbrock, x -> x, new HashMap<>(),
+            start(-1.2, 1));
+    assertEquals(1.0, solution.getContext().get(IndexedKey.scalarKey("a")), TOLERANCE);
+    assertEquals(1.0, solution.getContext().get(IndexedKey.scalarKey("b")), TOLERANCE);
+    assertTrue(optimizer.getEvaluations() < 200);
+  }
+
+  @Test
+  public void testIllConditionedQuadraticNeedsFewEvaluations() {
+    int[] serialEvaluations = new int[1];
+    Function<Map<IndexedKey<String>, Double>, Scalar<String>> counted = m -> {
+      ++serialEvaluations[0];
+      return ellipse(m, STRETCH);
+    };
+    Optimizer.stepToMinimum(counted, x -> x, new HashMap<>(), start(3, -2), 1, 10e-8);
+    LbfgsOptimizer optimizer = new LbfgsOptimizer();
+    Solution<Scalar<String>, String> solution =
+        optimizer.minimize(m -> ellipse(m, STRETCH), x -> x, new HashMap<>(), start(3, -2));
+    assertEquals(0.0, solution.getResult().value(), TOLERANCE);
+    assertTrue(optimizer.getEvaluations() * 10 < serialEvaluations[0]);
+  }
+
+  @Test
+  public void testRanges() {
+    Map<IndexedKey<String>, Range> ranges = new HashMap<>();
+    ranges.put(IndexedKey.scalarKey("a"), new Range(1, 10));
+    ranges.put(IndexedKey.scalarKey("b"), new Range(-5, -1));
+    Solution<Scalar<String>, String> solution =
+        new LbfgsOptimizer().minimize(LbfgsOptimizerTest::rosenbrock, x -> x, ranges,
+            start(20, 3));
+    // Held at b = -1, the minimum over a is at 1.
+    assertEquals(1.0, solution.getContext().get(IndexedKey.scalarKey("a")), TOLERANCE);
+    assertEquals(-1.0, solution.getContext().get(IndexedKey.scalarKey("b")), TOLERANCE);
+  }
+
+}
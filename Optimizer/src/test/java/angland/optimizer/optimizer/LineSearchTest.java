@@ -0,0 +1,116 @@
+package angland.optimizer.optimizer;
+
+import static angland.optimizer.optimizer.OptimizerFixtures.start;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import angland.optimizer.LineSearch;
+import angland.optimizer.Optimizer;
+import angland.optimizer.Range;
+import angland.optimizer.Solution;
+import angland.optimizer.var.IndexedKey;
+import angland.optimizer.var.scalar.Scalar;
+
+public class LineSearchTest {
+
+  private static final double TOLERANCE = 10e-3;
+  private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+  @AfterClass
+  public static void shutdown() {
+    POOL.shutdown();
+  }
+
+  private static void assertEvaluationsReported(LineSearch search, int ladderSize) {
+    List<Integer> evaluations = search.getEvaluationsPerIteration();
+    assertFalse(evaluations.isEmpty());
+    for (int count : evaluations) {
+      assertTrue(count >= 1 && count <= ladderSize);
+    }
+  }
+
+  @Test
+  public void testDecreaseMatchesSerialSearch() {
+    Function<Map<IndexedKey<String>, Double>, Scalar<String>> f = m -> {
+      Scalar<String> aSquared = Scalar.var("a", m).power(2);
+      Scalar<String> bSquared = Scalar.var("b", m).power(2);
+      return aSquared.plus(bSquared);
+    };
+    LineSearch search = LineSearch.decrease(POOL, 4);
+    Solution<Scalar<String>, String> solution =
+        search.stepToMinimum(f, x -> x, new HashMap<>(), start(200, 200), 10000, 10e-6);
+    Solution<Scalar<String>, String> serial =
+        Optimizer.stepToMinimum(f, x -> x, new HashMap<>(), start(200, 200), 10000, 10e-6);
+    assertEquals(serial.getResult().value(), solution.getResult().value(), TOLERANCE);
+    assertEquals(0.0, solution.getContext().get(IndexedKey.scalarKey("a")), TOLERANCE);
+    assertEquals(0.0, solution.getContext().get(IndexedKey.scalarKey("b")), TOLERANCE);
+    assertEvaluationsReported(search, 4);
+  }
+
+  @Test
+  public void testArmijoRespectsRanges() {
+    Map<IndexedKey<String>, Range> ranges = new HashMap<>();
+    ranges.put(IndexedKey.scalarKey("a"), new Range(1, 10));
+    LineSearch search = LineSearch.armijo(POOL, 6, 1e-4);
+    Solution<Scalar<String>, String> solution =
+        search.stepToMinimum(OptimizerFixtures::ellipse, x -> x, ranges, start(3, -2), 1, 10e-8);
+    assertEquals(1.0, solution.getContext().get(IndexedKey.scalarKey("a")), TOLERANCE);
+    assertEquals(0.0, solution.getContext().get(IndexedKey.scalarKey("b")), TOLERANCE);
+    assertEvaluationsReported(search, 6);
+  }
+
+  @Test
+  public void testWolfeNormalizedSearch() {
+    LineSearch search = LineSearch.wolfe(POOL, 4, 1e-4, 0.9);
+    Solution<Scalar<String>, String> solution =
+        search.normalizedStepToMinimum(OptimizerFixtures::ellipse, x -> x, start(3, -2), 2, 10e-8);
+    assertEquals(0.0, solution.getResult().value(), TOLERANCE);
+    assertEvaluationsReported(search, 4);
+  }
+
+  /**
+   * The nonlinear program of OptimizerTest, solved with a parallel line search.
+   */
+  @Test
+  public void testConstraintsWithLineSearch() {
+    Function<Map<IndexedKey<String>, Double>, Scalar<String>> getResult = m -> {
+      Scalar<String> x = Scalar.var("x", m);
+      Scalar<String> y = Scalar.var("y", m);
+      return x.power(2.0).times(y.power(3.0)).times(Scalar.constant(-1));
+    };
+    List<Function<Map<IndexedKey<String>, Double>, Scalar<String>>> zeroMinimumConstraints =
+        new ArrayList<>();
+    zeroMinimumConstraints.add(m -> Scalar.var("x", m));
+    zeroMinimumConstraints.add(m -> Scalar.var("y", m));
+    zeroMinimumConstraints.add(m -> {
+      Scalar<String> x = Scalar.var("x", m);
+      Scalar<String> y = Scalar.var("y", m);
+      return x.plus(y).minus(Scalar.constant(10)).times(Scalar.constant(-1));
+    });
+    Map<IndexedKey<String>, Double> startingPoint = new HashMap<>();
+    startingPoint.put(IndexedKey.scalarKey("x"), 0.0);
+    startingPoint.put(IndexedKey.scalarKey("y"), 0.0);
+    Solution<Scalar<String>, String> result =
+        Optimizer.optimizeWithConstraints(getResult, x -> x, zeroMinimumConstraints, Scalar::exp,
+            startingPoint, 1.0, .00001, .00001, LineSearch.armijo(POOL, 4, 1e-4));
+    assertEquals(4.0, result.getContext().get(IndexedKey.scalarKey("x")), TOLERANCE);
+    assertEquals(6.0, result.getContext().get(IndexedKey.scalarKey("y")), TOLERANCE);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testWolfeRequiresOrderedConstants() {
+    LineSearch.wolfe(POOL, 4, 0.5, 0.1);
+  }
+
+}
@@ -0,0 +1,45 @@
+package angland.optimizer.optimizer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import angland.optimizer.var.IndexedKey;
+import angland.optimizer.var.scalar.Scalar;
+
+/**
+ * Objectives and starting points shared by the optimizer tests.
+ *
+ * @author John Angland
+ *
+ */
+class OptimizerFixtures {
+
+  private OptimizerFixtures() {}
+
+  /**
+   * Returns a context holding the scalars a and b.
+   */
+  static Map<IndexedKey<String>, Double> start(double a, double b) {
+    Map<IndexedKey<String>, Double> context = new HashMap<>();
+    context.put(IndexedKey.scalarKey("a"), a);
+    context.put(IndexedKey.scalarKey("b"), b);
+    return context;
+  }
+
+  /**
+   * a^2 + 10 b^2, minimized at the origin.
+   */
+  static Scalar<String> ellipse(Map<IndexedKey<String>, Double> m) {
+    return ellipse(m, 10);
+  }
+
+  /**
+   * a^2 + stretch * b^2. The larger the stretch, the worse conditioned the problem.
+   */
+  static Scalar<String> ellipse(Map<IndexedKey<String>, Double> m, double stretch) {
+    Scalar<String> a = Scalar.var("a", m);
+    Scalar<String> b = Scalar.var("b", m);
+    return a.power(2).plus(b.power(2).times(Scalar.constant(stretch)));
+  }
+
+}
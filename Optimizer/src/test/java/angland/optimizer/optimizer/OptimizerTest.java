@@ -1,12 +1,19 @@
 package angland.optimizer.optimizer;
 
+import static angland.optimizer.optimizer.OptimizerFixtures.ellipse;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import org.junit.Ignore;
 import org.junit.Test;
@@ -14,7 +21,11 @@ import org.junit.Test;
 import angland.optimizer.Optimizer;
 import angland.optimizer.Range;
 import angland.optimizer.Solution;
+import angland.optimizer.update.UpdateRule;
+import angland.optimizer.var.GradientAccumulator;
 import angland.optimizer.var.IndexedKey;
+import angland.optimizer.var.ParameterStore;
+import angland.optimizer.var.matrix.Matrix;
 import angland.optimizer.var.scalar.Scalar;
 
 public class OptimizerTest {
@@ -135,4 +146,198 @@ public class OptimizerTest {
     assertEquals(2.0, result.getContext().get(IndexedKey.scalarKey("x")), TOLERANCE);
     assertEquals(2.0, result.getContext().get(IndexedKey.scalarKey("y")), TOLERANCE);
   }
+
+  private static ParameterStore<String> ellipseStart() {
+    ParameterStore<String> store = new ParameterStore<>();
+    store.registerScalar("a");
+    store.registerScalar("b");
+    store.put(IndexedKey.scalarKey("a"), 3.0);
+    store.put(IndexedKey.scalarKey("b"), -2.0);
+    return store;
+  }
+
+  @Test
+  public void testUpdateRulesMinimize() {
+    List<UpdateRule> rules = new ArrayList<>();
+    rules.add(UpdateRule.sgd(0.02));
+    rules.add(UpdateRule.momentum(0.02, 0.5));
+    rules.add(UpdateRule.nesterov(0.02, 0.5));
+    rules.add(UpdateRule.rmsProp(0.01));
+    rules.add(UpdateRule.adaGrad(0.5));
+    rules.add(UpdateRule.adam(0.05));
+    for (UpdateRule rule : rules) {
+      ParameterStore<String> store = ellipseStart();
+      for (int i = 0; i < 1000; ++i) {
+        Optimizer.step(ellipse(store), store, rule);
+      }
+      String name = rule.getClass().getSimpleName();
+      assertEquals(name, 0.0, store.get(IndexedKey.scalarKey("a")), TOLERANCE);
+      assertEquals(name, 0.0, store.get(IndexedKey.scalarKey("b")), TOLERANCE);
+      assertEquals(name, 0.0, store.getGradient()[0], 0.0);
+    }
+  }
+
+  @Test
+  public void testAdamStepsByLearningRate() {
+    ParameterStore<String> store = ellipseStart();
+    Optimizer.step(ellipse(store), store, UpdateRule.adam(0.1));
+    assertEquals(2.9, store.get(IndexedKey.scalarKey("a")), 10e-6);
+    assertEquals(-1.9, store.get(IndexedKey.scalarKey("b")), 10e-6);
+  }
+
+  @Test
+  public void testUpdateRuleHonorsRange() {
+    ParameterStore<String> store = ellipseStart();
+    store.setRange(new Range(2.5, 4));
+    for (int i = 0; i < 50; ++i) {
+      Optimizer.step(ellipse(store), store, UpdateRule.momentum(0.1, 0.9));
+    }
+    assertEquals(2.5, store.get(IndexedKey.scalarKey("a")), 0.0);
+    assertEquals(2.5, store.get(IndexedKey.scalarKey("b")), 0.0);
+  }
+
+  @Test
+  public void testStepAsyncMatchesStep() {
+    ParameterStore<String> expected = ellipseStart();
+    ParameterStore<String> store = ellipseStart();
+    expected.setRange(new Range(-1, 2.5));
+    store.setRange(new Range(-1, 2.5));
+    for (int i = 0; i < 5; ++i) {
+      Optimizer.step(ellipse(expected), expected, 0.02);
+      Optimizer.stepAsync(ellipse(store), store, 0.02);
+    }
+    expected.forEach((k, v) -> assertEquals(k.toString(), v, store.get(k), 10e-9));
+  }
+
+  @Test
+  public void testStepAsyncFromManyThreads() throws InterruptedException {
+    ParameterStore<String> store = ellipseStart();
+    ExecutorService es = Executors.newFixedThreadPool(4);
+    for (int t = 0; t < 4; ++t) {
+      es.submit(() -> {
+        for (int i = 0; i < 500; ++i) {
+          Optimizer.stepAsync(ellipse(store), store, 0.005);
+        }
+      });
+    }
+    es.shutdown();
+    es.awaitTermination(1, TimeUnit.MINUTES);
+    assertEquals(0.0, store.get(IndexedKey.scalarKey("a")), TOLERANCE);
+    assertEquals(0.0, store.get(IndexedKey.scalarKey("b")), TOLERANCE);
+  }
+
+  private static ParameterStore<String> embeddingStart() {
+    ParameterStore<String> store = new ParameterStore<>();
+    store.register("e", 2, 5);
+    store.registerScalar("s");
+    for (int i = 0; i < store.size(); ++i) {
+      store.getValues()[i] = (i % 3) - 0.7 * i / store.size();
+    }
+    return store;
+  }
+
+  /**
+   * A loss linear in the given columns of e, plus a term in s. Its gradient with respect to e does
+   * not depend on e, so an entry that catches up on missed steps sees the same gradient as one
+   * updated at every step.
+   */
+  private static Scalar<String> columnLoss(ParameterStore<String> store, int... columns) {
+    Matrix<String> e = Matrix.var("e", 2, 5, store);
+    Scalar<String> loss = Scalar.var("s", store).power(2);
+    for (int column : columns) {
+      for (int row = 0; row < 2; ++row) {
+        loss = loss.plus(e.get(row, column).times(Scalar.constant(row - column + 0.5)));
+      }
+    }
+    return loss;
+  }
+
+  @Test
+  public void testSparseColumnsMatchDenseUpdates() throws InterruptedException {
+    List<Supplier<UpdateRule>> rules = new ArrayList<>();
+    rules.add(() -> UpdateRule.sgd(0.02));
+    rules.add(() -> UpdateRule.momentum(0.02, 0.5));
+    rules.add(() -> UpdateRule.nesterov(0.02, 0.5));
+    rules.add(() -> UpdateRule.rmsProp(0.01));
+    rules.add(() -> UpdateRule.adaGrad(0.5));
+    assertSparseMatchesDense(rules, new double[] {1, 1, 1, 1}, null);
+  }
+
+  @Test
+  public void testSparseMomentumMatchesDenseUpdatesInRange() throws InterruptedException {
+    // Momentum moves entries while catching up, which must stop at the range as dense steps do.
+    // The last step reverses the gradient, so an entry that overshot would come back too far.
+    List<Supplier<UpdateRule>> rules = new ArrayList<>();
+    rules.add(() -> UpdateRule.momentum(0.5, 0.9));
+    rules.add(() -> UpdateRule.nesterov(0.5, 0.9));
+    ParameterStore<String> sparse =
+        assertSparseMatchesDense(rules, new double[] {1, 1, 1, -1}, new Range(-0.5, 0.5));
+    int clipped = 0;
+    for (double value : sparse.getValues()) {
+      clipped += Math.abs(value) == 0.5 ? 1 : 0;
+    }
+    assertTrue(clipped > 0);
+  }
+
+  /**
+   * Trains an embedding densely and sparsely by column with each rule, scaling the loss of each
+   * step by its sign, and returns the last sparsely trained store.
+   */
+  private static ParameterStore<String> assertSparseMatchesDense(
+      List<Supplier<UpdateRule>> rules, double[] signs, Range range) throws InterruptedException {
+    int[][] columns = {{0, 1}, {1, 3}, {1}, {0, 1, 3}};
+    ExecutorService es = Executors.newFixedThreadPool(2);
+    ParameterStore<String> sparse = null;
+    for (Supplier<UpdateRule> ruleSupplier : rules) {
+      ParameterStore<String> dense = embeddingStart();
+      sparse = embeddingStart();
+      if (range != null) {
+        for (ParameterStore<String> store : Arrays.asList(dense, sparse)) {
+          store.getSlot("e").setRange(range);
+          for (int i = 0; i < store.size(); ++i) {
+            store.getValues()[i] =
+                Math.max(range.getMin(), Math.min(range.getMax(), store.getValues()[i]));
+          }
+        }
+      }
+      sparse.getSlot("e").setSparseColumns(true);
+      GradientAccumulator<String> accumulator = new GradientAccumulator<>(sparse);
+      UpdateRule denseRule = ruleSupplier.get();
+      UpdateRule sparseRule = ruleSupplier.get();
+      for (int i = 0; i < 4; ++i) {
+        for (int j = 0; j < columns.length; ++j) {
+          Scalar<String> sign = Scalar.constant(signs[j]);
+          Optimizer.step(columnLoss(dense, columns[j]).times(sign), dense, denseRule);
+          accumulator.accumulate(columnLoss(sparse, columns[j]).times(sign), 1);
+          accumulator.reduce(es);
+          Optimizer.applyGradient(sparse, sparseRule);
+        }
+      }
+      String name = denseRule.getClass().getSimpleName();
+      for (int i = 0; i < dense.size(); ++i) {
+        assertEquals(name, dense.getValues()[i], sparse.getValues()[i], 10e-12);
+        assertEquals(name, 0.0, sparse.getGradient()[i], 0.0);
+      }
+      assertEquals(0, sparse.getSlot("e").getTouchedColumns().length);
+    }
+    es.shutdown();
+    es.awaitTermination(1, TimeUnit.MINUTES);
+    return sparse;
+  }
+
+  @Test
+  public void testSparseAdamLeavesUntouchedColumns() {
+    ParameterStore<String> store = embeddingStart();
+    store.getSlot("e").setSparseColumns(true);
+    double[] initial = store.getValues().clone();
+    UpdateRule rule = UpdateRule.adam(0.05);
+    Optimizer.step(columnLoss(store, 0, 1), store, rule);
+    Optimizer.step(columnLoss(store, 1), store, rule);
+    for (int row = 0; row < 2; ++row) {
+      for (int column : new int[] {2, 3, 4}) {
+        assertEquals(initial[row * 5 + column], store.getValues()[row * 5 + column], 0.0);
+      }
+    }
+    assertTrue(initial[0] != store.getValues()[0]);
+  }
 }
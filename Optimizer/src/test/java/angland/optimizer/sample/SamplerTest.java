@@ -0,0 +1,78 @@
+package angland.optimizer.sample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class SamplerTest {
+
+  private static void assertDistinct(int[] drawn, int size, int exclude) {
+    Set<Integer> seen = new HashSet<>();
+    for (int index : drawn) {
+      assertTrue(index >= 0 && index < size);
+      assertTrue(index != exclude);
+      assertTrue(seen.add(index));
+    }
+  }
+
+  @Test
+  public void testUniformDrawsAreDistinct() {
+    Sampler sampler = Sampler.uniform(20);
+    for (int count : new int[] {0, 3, 10, 15, 19}) {
+      int[] drawn = sampler.sample(count, 7);
+      assertEquals(count, drawn.length);
+      assertDistinct(drawn, 20, 7);
+    }
+    assertEquals(20, sampler.sample(20, -1).length);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUniformRejectsTooManyDraws() {
+    Sampler.uniform(5).sample(5, 2);
+  }
+
+  @Test
+  public void testAliasFrequencies() {
+    double[] weights = {1, 0, 2, 5, 0, 2};
+    AliasSampler sampler = new AliasSampler(weights);
+    assertEquals(4, sampler.getSupportSize());
+    int[] counts = new int[weights.length];
+    int draws = 200000;
+    for (int i = 0; i < draws; ++i) {
+      counts[sampler.next()]++;
+    }
+    for (int i = 0; i < weights.length; ++i) {
+      assertEquals(weights[i] / 10, (double) counts[i] / draws, .01);
+    }
+    int[] drawn = sampler.sample(3, 3);
+    assertDistinct(drawn, weights.length, 3);
+    for (int index : drawn) {
+      assertTrue(weights[index] > 0);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testAliasRejectsDrawsBeyondSupport() {
+    new AliasSampler(new double[] {1, 0, 1}).sample(2, 0);
+  }
+
+  @Test
+  public void testUnigram() {
+    Sampler sampler = Sampler.unigram(new long[] {16, 0, 1}, .5);
+    int four = 0;
+    int draws = 100000;
+    for (int i = 0; i < draws; ++i) {
+      int index = sampler.next();
+      assertTrue(index != 1);
+      if (index == 0) {
+        ++four;
+      }
+    }
+    assertEquals(.8, (double) four / draws, .01);
+  }
+
+}
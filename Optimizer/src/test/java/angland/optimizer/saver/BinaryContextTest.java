@@ -0,0 +1,79 @@
+package angland.optimizer.saver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import angland.optimizer.var.IndexedKey;
+import angland.optimizer.var.ParameterStore;
+
+public class BinaryContextTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private ParameterStore<String> store;
+
+  @Before
+  public void prepareStore() {
+    Map<IndexedKey<String>, Double> context = new HashMap<>();
+    IndexedKey.getAllMatrixKeys("w", 7, 3).forEach(k -> context.put(k, Math.random() * 2 - 1));
+    IndexedKey.getAllMatrixKeys("b", 1, 5).forEach(k -> context.put(k, Math.random() * 2 - 1));
+    context.put(IndexedKey.scalarKey("s"), -0.25);
+    store = ParameterStore.fromContext(context);
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    File file = folder.newFile("model.bin");
+    BinaryContext.save(store, file);
+    assertTrue(BinaryContext.isBinary(file));
+    ParameterStore<String> loaded = BinaryContext.load(file);
+    assertEquals(store, loaded);
+    assertEquals(7, loaded.getSlot("w").getHeight());
+    assertEquals(3, loaded.getSlot("w").getWidth());
+    assertTrue(loaded.getSlot("s").isScalar());
+    assertFalse(new File(file.getAbsolutePath() + ".tmp").exists());
+  }
+
+  @Test
+  public void testSinglePrecision() throws IOException {
+    File file = folder.newFile("model.bin");
+    BinaryContext.save(store, file, true);
+    ParameterStore<String> loaded = BinaryContext.load(file);
+    store.forEach((k, v) -> assertEquals(k.toString(), (float) (double) v, loaded.get(k), 0.0));
+  }
+
+  @Test
+  public void testLoadDetectsFormat() throws IOException {
+    File text = folder.newFile("model.txt");
+    File binary = folder.newFile("model.bin");
+    StringContext.saveStore(store, text);
+    StringContext.saveStore(store, binary);
+    assertFalse(BinaryContext.isBinary(text));
+    assertTrue(BinaryContext.isBinary(binary));
+    assertEquals(store, StringContext.loadStore(text));
+    assertEquals(store, StringContext.loadStore(binary));
+    assertEquals(store, StringContext.loadContext(binary));
+  }
+
+  @Test
+  public void testSaveReplacesExistingCheckpoint() throws IOException {
+    File file = folder.newFile("model.bin");
+    BinaryContext.save(store, file);
+    store.put(IndexedKey.scalarKey("s"), 0.75);
+    BinaryContext.save(store, file);
+    assertEquals(0.75, BinaryContext.load(file).get(IndexedKey.scalarKey("s")), 0.0);
+  }
+
+}
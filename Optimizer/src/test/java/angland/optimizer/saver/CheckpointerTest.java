@@ -0,0 +1,101 @@
+package angland.optimizer.saver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import angland.optimizer.var.IndexedKey;
+import angland.optimizer.var.ParameterStore;
+
+public class CheckpointerTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static final IndexedKey<String> S = IndexedKey.scalarKey("s");
+
+  private static ParameterStore<String> store(double s) {
+    ParameterStore<String> store = new ParameterStore<>();
+    store.register("w", 3, 2);
+    store.registerScalar("s");
+    store.put(S, s);
+    return store;
+  }
+
+  @Test
+  public void testSavesSnapshot() throws Exception {
+    File file = new File(folder.getRoot(), "model.bin");
+    ParameterStore<String> store = store(0.5);
+    try (Checkpointer checkpointer = new Checkpointer(file)) {
+      CompletableFuture<File> saved = checkpointer.save(store);
+      // Changes made after save returns are not part of the checkpoint.
+      store.put(S, 0.75);
+      assertEquals(file, saved.get());
+    }
+    assertTrue(BinaryContext.isBinary(file));
+    assertEquals(0.5, StringContext.loadStore(file).get(S), 0.0);
+  }
+
+  @Test
+  public void testRotation() throws Exception {
+    File file = new File(folder.getRoot(), "model.txt");
+    try (Checkpointer checkpointer = new Checkpointer(file, 3)) {
+      for (int i = 0; i < 5; ++i) {
+        checkpointer.save(store(i)).get();
+      }
+      assertEquals(4.0, StringContext.loadStore(checkpointer.getRotated(0)).get(S), 0.0);
+      assertEquals(3.0, StringContext.loadStore(checkpointer.getRotated(1)).get(S), 0.0);
+      assertEquals(2.0, StringContext.loadStore(checkpointer.getRotated(2)).get(S), 0.0);
+      assertFalse(checkpointer.getRotated(3).exists());
+    }
+    assertEquals(3, folder.getRoot().list().length);
+  }
+
+  @Test
+  public void testQueuedSavesWriteLatestValues() throws Exception {
+    File file = new File(folder.getRoot(), "model.bin");
+    try (Checkpointer checkpointer = new Checkpointer(file)) {
+      CompletableFuture<File> last = null;
+      for (int i = 0; i < 50; ++i) {
+        last = checkpointer.save(store(i));
+      }
+      last.get();
+    }
+    assertEquals(49.0, StringContext.loadStore(file).get(S), 0.0);
+  }
+
+  @Test
+  public void testFailureIsReported() throws InterruptedException {
+    File file = new File(folder.getRoot(), "model.bin");
+    Checkpointer checkpointer = new Checkpointer(file);
+    try {
+      checkpointer.save(store(Double.NaN)).get();
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof RuntimeException);
+    }
+    try {
+      checkpointer.save(store(0));
+      fail();
+    } catch (RuntimeException e) {
+      // An earlier failure is rethrown.
+    }
+    try {
+      checkpointer.close();
+      fail();
+    } catch (RuntimeException e) {
+      // As is any failure on close.
+    }
+    assertFalse(file.exists());
+  }
+
+}
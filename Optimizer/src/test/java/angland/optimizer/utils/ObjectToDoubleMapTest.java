@@ -1,6 +1,8 @@
 package angland.optimizer.utils;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -46,6 +48,75 @@ public class ObjectToDoubleMapTest {
     assertEquals(100.0, m.get("a"), 0.0);
   }
 
+  private static class Colliding {
+    private final int id;
+
+    Colliding(int id) {
+      this.id = id;
+    }
+
+    @Override
+    public int hashCode() {
+      return -(id % 3);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Colliding && ((Colliding) o).id == id;
+    }
+  }
+
+  @Test
+  public void testCollidingKeysSurviveResize() {
+    ObjectToDoubleMap<Colliding> m = new ObjectToDoubleMap<>(1);
+    for (int i = 0; i < 200; ++i) {
+      m.put(new Colliding(i), i);
+    }
+    assertEquals(200, m.size());
+    for (int i = 0; i < 200; ++i) {
+      assertEquals(i, m.get(new Colliding(i)), 0.0);
+    }
+    assertEquals(0, m.get(new Colliding(200)), 0.0);
+    assertFalse(m.containsKey(new Colliding(200)));
+  }
+
+  @Test
+  public void testAddAllAndScale() {
+    ObjectToDoubleMap<String> a = new ObjectToDoubleMap<>(1);
+    a.put("x", 1);
+    a.put("y", 2);
+    ObjectToDoubleMap<String> b = new ObjectToDoubleMap<>(1);
+    b.put("y", 3);
+    b.put("z", 4);
+    a.addAll(b, 2);
+    assertEquals(3, a.size());
+    assertEquals(1, a.get("x"), 0.0);
+    assertEquals(8, a.get("y"), 0.0);
+    assertEquals(8, a.get("z"), 0.0);
+    a.scale(.5);
+    assertEquals(.5, a.get("x"), 0.0);
+    assertEquals(4, a.get("y"), 0.0);
+    assertEquals(4, a.get("z"), 0.0);
+    assertEquals(3, b.get("y"), 0.0);
+  }
+
+  @Test
+  public void testForEachAndEntriesVisitEveryKey() {
+    ObjectToDoubleMap<Integer> m = new ObjectToDoubleMap<>(1);
+    double expected = 0;
+    for (int i = 0; i < 10000; ++i) {
+      m.put(i, i);
+      expected += i;
+    }
+    Map<Integer, Double> visited = new HashMap<>();
+    m.forEach((k, v) -> visited.put(k, v));
+    assertEquals(10000, visited.size());
+    assertEquals(10000, m.entries().count());
+    assertEquals(expected, m.entries().mapToDouble(e -> e.getValue()).sum(), 0.0);
+    assertEquals(expected, m.parallelEntries().mapToDouble(e -> e.getValue()).sum(), 0.0);
+    assertTrue(m.parallelEntries().spliterator().trySplit() != null);
+  }
+
   @Ignore
   @Test
   public void performanceTestRepeatedInsert() {
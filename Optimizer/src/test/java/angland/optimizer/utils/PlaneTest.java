@@ -23,4 +23,14 @@ public class PlaneTest {
     assertEquals(.8, normalPlane.getVec().get("y"), TOLERANCE);
     assertEquals(-2, normalPlane.getOffset(), TOLERANCE);
   }
+
+  @Test
+  public void testEvaluate() {
+    OrientedPlane<String> plane = OrientedPlane.minimum("x", 2);
+    Map<String, Double> context = new HashMap<>();
+    context.put("x", 5.0);
+    context.put("y", 1.0);
+    assertEquals(3, plane.evaluate(context), TOLERANCE);
+    assertEquals(3, plane.evaluate(ObjectToDoubleMap.fromMap(context)), TOLERANCE);
+  }
 }
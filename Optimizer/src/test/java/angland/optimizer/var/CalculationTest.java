@@ -146,4 +146,52 @@ public class CalculationTest {
     aTimesZero.actOnKeyedDerivatives(x -> i.incrementAndGet());
     assertEquals(0, i.get());
   }
+
+  @Test
+  public void testSharedSubexpressionDerivative() {
+    Scalar<String> a = Scalar.var("a", 2.0);
+    Scalar<String> b = Scalar.var("b", 3.0);
+    Scalar<String> ab = a.times(b);
+    // (ab)^2 + ab*a
+    Scalar<String> result = ab.power(2).plus(ab.times(a));
+    assertEquals(48.0, result.value(), TOLERANCE);
+    testDerivative(2 * 6 * 3 + 2 * 2 * 3, result, "a");
+    testDerivative(2 * 6 * 2 + 2 * 2, result, "b");
+  }
+
+  @Test
+  public void testDeepChainDerivative() {
+    Scalar<String> x = Scalar.var("x", 1.0);
+    Scalar<String> sum = x;
+    for (int i = 0; i < 100000; ++i) {
+      sum = sum.plus(x);
+    }
+    assertEquals(100001.0, sum.getGradient().get(IndexedKey.scalarKey("x")), TOLERANCE);
+  }
+
+  @Test
+  public void testClipGradientAppliesToSummedDerivative() {
+    Scalar<String> x = Scalar.var("x", 1.0);
+    Scalar<String> y = Scalar.var("y", 1.0);
+    Scalar<String> small = Scalar.constant(.3);
+    Scalar<String> clipped =
+        x.times(small).plus(x.times(small)).plus(y.times(small)).clipGradient(.5);
+    testDerivative(.6, clipped, "x");
+    testDerivative(0, clipped, "y");
+  }
+
+  @Test
+  public void testActOnDerivativesAppliesMultiplier() {
+    Scalar<String> x = Scalar.var("x", 0.5);
+    Scalar<String> y = Scalar.var("y", 2.0);
+    Scalar<String> cached = x.times(y).cache();
+    Scalar<String> result = cached.divide(y.plus(x)).plus(Scalar.constant(1)).ln()
+        .plus(x.tanh().clipGradient(0.1));
+    Map<IndexedKey<String>, Double> expected = result.getGradient();
+    Map<IndexedKey<String>, Double> actual = new HashMap<>();
+    result.actOnDerivatives(-3, (key, value) -> actual.merge(key, value, Double::sum));
+    assertEquals(expected.keySet(), actual.keySet());
+    expected.forEach((k, v) -> assertEquals(-3 * v, actual.get(k), TOLERANCE));
+    testDerivative(expected.get(IndexedKey.scalarKey("x")), result, "x");
+  }
 }
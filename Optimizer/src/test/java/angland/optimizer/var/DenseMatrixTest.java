@@ -0,0 +1,200 @@
+package angland.optimizer.var;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import angland.optimizer.var.matrix.Activation;
+import angland.optimizer.var.matrix.DenseMatrix;
+import angland.optimizer.var.matrix.Matrix;
+import angland.optimizer.var.scalar.Scalar;
+
+public class DenseMatrixTest {
+
+  private static final double TOLERANCE = 10e-9;
+
+  private Map<IndexedKey<String>, Double> context;
+
+  @Before
+  public void prepareContext() {
+    context = new HashMap<>();
+    IndexedKey.getAllMatrixKeys("w", 4, 3).forEach(k -> context.put(k, Math.random() * 2 - 1));
+    IndexedKey.getAllMatrixKeys("x", 3, 2).forEach(k -> context.put(k, Math.random() * 2 - 1));
+    IndexedKey.getAllMatrixKeys("b", 4, 2).forEach(k -> context.put(k, Math.random() * 2 - 1));
+    IndexedKey.getAllMatrixKeys("c", 4, 2).forEach(k -> context.put(k, Math.random() * 2 - 1));
+  }
+
+  private void assertGradientsEqual(Map<IndexedKey<String>, Double> expected,
+      Map<IndexedKey<String>, Double> actual) {
+    expected.forEach((k, v) -> assertEquals(k.toString(), v, actual.getOrDefault(k, 0.0),
+        TOLERANCE));
+    actual.forEach((k, v) -> assertEquals(k.toString(), expected.getOrDefault(k, 0.0), v,
+        TOLERANCE));
+  }
+
+  @Test
+  public void testMatchesElementwiseMatrix() {
+    Matrix<String> w = Matrix.var("w", 4, 3, context);
+    Matrix<String> x = Matrix.var("x", 3, 2, context);
+    Matrix<String> b = Matrix.var("b", 4, 2, context);
+    Matrix<String> c = Matrix.var("c", 4, 2, context);
+    Matrix<String> expectedTanh = w.times(x).plus(b).transform(Scalar::tanh);
+    Matrix<String> expectedSoftmax =
+        expectedTanh.getColumn(Scalar.constant(0)).softmax()
+            .vCat(expectedTanh.getColumn(Scalar.constant(1)).softmax());
+    Scalar<String> expected = expectedSoftmax.pointwiseMultiply(c.getColumn(Scalar.constant(0))
+        .vCat(c.getColumn(Scalar.constant(1)))).elementSumStream();
+
+    DenseMatrix<String> dw = DenseMatrix.var("w", 4, 3, context);
+    DenseMatrix<String> dx = DenseMatrix.var("x", 3, 2, context);
+    DenseMatrix<String> db = DenseMatrix.var("b", 4, 2, context);
+    DenseMatrix<String> dc = DenseMatrix.var("c", 4, 2, context);
+    Scalar<String> actual =
+        dw.times(dx).plus(db).transform(Activation.TANH).softmax().pointwiseMultiply(dc)
+            .elementSumStream();
+
+    assertEquals(expected.value(), actual.value(), TOLERANCE);
+    assertGradientsEqual(expected.getGradient(), actual.getGradient());
+  }
+
+  @Test
+  public void testSigmoidAndExp() {
+    Matrix<String> x = Matrix.var("x", 3, 2, context);
+    Scalar<String> expected =
+        x.transform(Scalar::sigmoid).transform(Scalar::exp).elementSumStream();
+    Scalar<String> actual =
+        DenseMatrix.var("x", 3, 2, context).transform(Activation.SIGMOID)
+            .transform(Activation.EXP).elementSumStream();
+    assertEquals(expected.value(), actual.value(), TOLERANCE);
+    assertGradientsEqual(expected.getGradient(), actual.getGradient());
+  }
+
+  @Test
+  public void testClippedTransform() {
+    // sigmoid'(0) = .25 passes a threshold of .2, while sigmoid'(4) is about .018 and does not.
+    Map<IndexedKey<String>, Double> values = new HashMap<>();
+    values.put(IndexedKey.matrixKey("x", 0, 0), 0.0);
+    values.put(IndexedKey.matrixKey("x", 1, 0), 4.0);
+    Map<IndexedKey<String>, Double> gradient =
+        DenseMatrix.var("x", 2, 1, values).transform(Activation.SIGMOID, .2).elementSumStream()
+            .getGradient();
+    assertEquals(.25, gradient.get(IndexedKey.matrixKey("x", 0, 0)), TOLERANCE);
+    assertEquals(0.0, gradient.getOrDefault(IndexedKey.matrixKey("x", 1, 0), 0.0), 0.0);
+  }
+
+  @Test
+  public void testMixedWithElementwiseMatrix() {
+    Matrix<String> w = Matrix.var("w", 4, 3, context);
+    Matrix<String> x = Matrix.var("x", 3, 2, context);
+    Scalar<String> expected = w.times(x.transform(Scalar::tanh)).elementSumStream();
+    Scalar<String> actual =
+        DenseMatrix.var("w", 4, 3, context).times(x.transform(Scalar::tanh)).elementSumStream();
+    assertEquals(expected.value(), actual.value(), TOLERANCE);
+    assertGradientsEqual(expected.getGradient(), actual.getGradient());
+  }
+
+  @Test
+  public void testDenseGradient() {
+    DenseMatrix<String> w = DenseMatrix.var("w", 4, 3, context);
+    DenseMatrix<String> x = DenseMatrix.constant(3, 1, new double[] {1, 2, 3});
+    Scalar<String> sum = w.times(x).elementSumStream();
+    Map<String, double[]> dense = new HashMap<>();
+    Tape.sweep(sum, 1, (key, value) -> {
+      throw new AssertionError("Unexpected keyed derivative " + key);
+    }, (k, g) -> dense.put(k, g.clone()));
+    assertEquals(1, dense.size());
+    assertArrayEquals(new double[] {1, 2, 3, 1, 2, 3, 1, 2, 3, 1, 2, 3}, dense.get("w"),
+        TOLERANCE);
+  }
+
+  @Test
+  public void testConcatSelectionAndTranspose() {
+    List<Integer> rows = Arrays.asList(2, 3, 4, 5, 6);
+    Matrix<String> b = Matrix.var("b", 4, 2, context);
+    Matrix<String> c = Matrix.var("c", 4, 2, context);
+    Scalar<String> expected =
+        b.vCat(c).getRows(rows).transpose().getColumns(Arrays.asList(4, 0, 0))
+            .transform(Scalar::tanh).elementSumStream();
+    Scalar<String> actual =
+        DenseMatrix.var("b", 4, 2, context).vCat(DenseMatrix.var("c", 4, 2, context))
+            .selectRows(2, 7).transpose().selectColumns(new int[] {4, 0, 0})
+            .transform(Activation.TANH).elementSumStream();
+    assertEquals(expected.value(), actual.value(), TOLERANCE);
+    assertGradientsEqual(expected.getGradient(), actual.getGradient());
+  }
+
+  @Test
+  public void testConstantHasNoGradient() {
+    DenseMatrix<String> w = DenseMatrix.var("w", 4, 3, context).toConstant();
+    Scalar<String> sum = w.transform(Activation.TANH).softmax().elementSumStream();
+    assertEquals(3.0, sum.value(), TOLERANCE);
+    assertEquals(0, sum.getGradient().size());
+  }
+
+  private static double[] randomValues(int length) {
+    double[] values = new double[length];
+    for (int i = 0; i < length; ++i) {
+      values[i] = Math.random() * 2 - 1;
+    }
+    return values;
+  }
+
+  private static void assertProductEquals(Matrix<String> left, Matrix<String> right,
+      Matrix<String> product) {
+    assertEquals(left.getHeight(), product.getHeight());
+    assertEquals(right.getWidth(), product.getWidth());
+    for (int i = 0; i < left.getHeight(); ++i) {
+      for (int j = 0; j < right.getWidth(); ++j) {
+        double expected = 0;
+        for (int k = 0; k < left.getWidth(); ++k) {
+          expected += left.get(i, k).value() * right.get(k, j).value();
+        }
+        assertEquals(expected, product.get(i, j).value(), TOLERANCE);
+      }
+    }
+  }
+
+  @Test
+  public void testConstantProductsWithTransposes() {
+    DenseMatrix<String> a = DenseMatrix.constant(7, 5, randomValues(35));
+    DenseMatrix<String> b = DenseMatrix.constant(5, 3, randomValues(15));
+    DenseMatrix<String> bt = DenseMatrix.constant(3, 5, randomValues(15));
+    DenseMatrix<String> at = DenseMatrix.constant(5, 7, randomValues(35));
+    assertProductEquals(a, b, a.times(b));
+    assertProductEquals(a, bt.transpose(), a.times(bt.transpose()));
+    assertProductEquals(at.transpose(), b, at.transpose().times(b));
+    assertProductEquals(at.transpose(), bt.transpose(), at.transpose().times(bt.transpose()));
+    Matrix<String> boxed = Matrix.var("x", 3, 2, context).toConstant();
+    assertProductEquals(bt.transpose(), boxed, bt.transpose().times(boxed));
+  }
+
+  @Test
+  public void testLargeTransposedProduct() {
+    DenseMatrix<String> embedding = DenseMatrix.constant(300, 1500, randomValues(300 * 1500));
+    DenseMatrix<String> state = DenseMatrix.constant(300, 2, randomValues(600));
+    Matrix<String> product = embedding.transpose().times(state);
+    assertTrue(product instanceof DenseMatrix);
+    assertProductEquals(embedding.transpose(), state, product);
+  }
+
+  @Test
+  public void testLargeVariableProduct() {
+    Map<IndexedKey<String>, Double> large = new HashMap<>();
+    IndexedKey.getAllMatrixKeys("w", 700, 40).forEach(k -> large.put(k, Math.random() * 2 - 1));
+    DenseMatrix<String> w = DenseMatrix.var("w", 700, 40, large);
+    DenseMatrix<String> x = DenseMatrix.constant(40, 12, randomValues(480));
+    Scalar<String> sum = w.times(x).transform(Activation.TANH).elementSumStream();
+    Scalar<String> boxedSum =
+        Matrix.var("w", 700, 40, large).times(x).transform(Scalar::tanh).elementSumStream();
+    assertEquals(boxedSum.value(), sum.value(), TOLERANCE);
+    assertGradientsEqual(boxedSum.getGradient(), sum.getGradient());
+  }
+}
@@ -0,0 +1,87 @@
+package angland.optimizer.var;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class DerivativeMapTest {
+
+  private static final double TOLERANCE = 10e-9;
+
+  /**
+   * A key whose hash code is fixed, to force collisions and negative hashes.
+   */
+  private static class FixedHashKey {
+    private final String name;
+    private final int hashCode;
+
+    FixedHashKey(String name, int hashCode) {
+      this.name = name;
+      this.hashCode = hashCode;
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof FixedHashKey && ((FixedHashKey) other).name.equals(name);
+    }
+  }
+
+  @Test
+  public void testMergeAndGrow() {
+    DerivativeMap<String> map = new DerivativeMap<>(1);
+    Map<IndexedKey<String>, Double> expected = new HashMap<>();
+    for (int i = 0; i < 5000; ++i) {
+      IndexedKey<String> key = IndexedKey.matrixKey("m", i % 37, i % 101);
+      double value = Math.random() * 2 - 1;
+      map.merge(key, value);
+      expected.merge(key, value, Double::sum);
+    }
+    assertEquals(expected.size(), map.size());
+    expected.forEach((k, v) -> assertEquals(v, map.get(k), TOLERANCE));
+    Map<IndexedKey<String>, Double> visited = new HashMap<>();
+    map.actOnEntries((k, v) -> visited.merge(k, v, Double::sum));
+    assertEquals(expected.keySet(), visited.keySet());
+    assertEquals(0.0, map.get(IndexedKey.scalarKey("absent")), 0.0);
+  }
+
+  @Test
+  public void testCollidingAndNegativeHashes() {
+    DerivativeMap<FixedHashKey> map = new DerivativeMap<>(2);
+    for (int i = 0; i < 100; ++i) {
+      FixedHashKey varKey =
+          new FixedHashKey("k" + i, i % 2 == 0 ? Integer.MIN_VALUE : Integer.MIN_VALUE + 1);
+      map.merge(IndexedKey.scalarKey(varKey), i);
+      map.merge(IndexedKey.scalarKey(varKey), i);
+    }
+    assertEquals(100, map.size());
+    for (int i = 0; i < 100; ++i) {
+      FixedHashKey varKey =
+          new FixedHashKey("k" + i, i % 2 == 0 ? Integer.MIN_VALUE : Integer.MIN_VALUE + 1);
+      assertEquals(2.0 * i, map.get(IndexedKey.scalarKey(varKey)), TOLERANCE);
+    }
+  }
+
+  @Test
+  public void testHighestAbs() {
+    DerivativeMap<String> map = new DerivativeMap<>(10);
+    for (int i = 0; i < 20; ++i) {
+      map.merge(IndexedKey.scalarKey("k" + i), i % 2 == 0 ? i : -i);
+    }
+    DerivativeMap<String> highest = map.getHighestAbs(5);
+    assertEquals(5, highest.size());
+    for (int i = 15; i < 20; ++i) {
+      assertEquals(i % 2 == 0 ? i : -i, highest.get(IndexedKey.scalarKey("k" + i)), TOLERANCE);
+    }
+    assertEquals(0.0, highest.get(IndexedKey.scalarKey("k14")), 0.0);
+    assertEquals(0, map.getHighestAbs(0).size());
+  }
+
+}
@@ -0,0 +1,120 @@
+package angland.optimizer.var;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import angland.optimizer.Optimizer;
+import angland.optimizer.Range;
+import angland.optimizer.var.matrix.Activation;
+import angland.optimizer.var.matrix.DenseMatrix;
+import angland.optimizer.var.matrix.Matrix;
+import angland.optimizer.var.scalar.Scalar;
+
+public class ParameterStoreTest {
+
+  private static final double TOLERANCE = 10e-9;
+
+  private Map<IndexedKey<String>, Double> context;
+
+  @Before
+  public void prepareContext() {
+    context = new HashMap<>();
+    IndexedKey.getAllMatrixKeys("w", 4, 3).forEach(k -> context.put(k, Math.random() * 2 - 1));
+    IndexedKey.getAllMatrixKeys("x", 3, 2).forEach(k -> context.put(k, Math.random() * 2 - 1));
+    context.put(IndexedKey.scalarKey("s"), 0.5);
+  }
+
+  private Scalar<String> loss(Map<IndexedKey<String>, Double> ctx) {
+    Matrix<String> w = Matrix.var("w", 4, 3, ctx);
+    Matrix<String> x = Matrix.var("x", 3, 2, ctx);
+    return w.times(x).elementSumStream().times(Scalar.var("s", ctx));
+  }
+
+  @Test
+  public void testFromContextRoundTrip() {
+    ParameterStore<String> store = ParameterStore.fromContext(context);
+    assertEquals(context.size(), store.size());
+    assertEquals(context, store);
+    assertEquals(store, context);
+    assertEquals(4, store.getSlot("w").getHeight());
+    assertEquals(3, store.getSlot("w").getWidth());
+    assertTrue(store.getSlot("s").isScalar());
+    context.forEach((k, v) -> assertEquals(k, store.getKey(store.getOffset(k))));
+  }
+
+  @Test
+  public void testPutWritesThrough() {
+    ParameterStore<String> store = ParameterStore.fromContext(context);
+    IndexedKey<String> key = IndexedKey.matrixKey("w", 2, 1);
+    store.put(key, 7.0);
+    assertEquals(7.0, store.getValues()[store.getOffset(key)], TOLERANCE);
+    assertEquals(7.0, Matrix.var("w", 4, 3, store).get(2, 1).value(), TOLERANCE);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testPutUnregisteredKey() {
+    ParameterStore.fromContext(context).put(IndexedKey.scalarKey("missing"), 1.0);
+  }
+
+  @Test
+  public void testStepMatchesContextStep() {
+    Map<IndexedKey<String>, Range> ranges = new HashMap<>();
+    context.keySet().forEach(k -> ranges.put(k, new Range(-0.75, 0.75)));
+    Map<IndexedKey<String>, Double> expected =
+        Optimizer.step(loss(context), context, ranges, 0.1);
+
+    ParameterStore<String> store = ParameterStore.fromContext(context);
+    store.setRange(new Range(-0.75, 0.75));
+    Optimizer.step(loss(store), store, 0.1);
+
+    expected.forEach((k, v) -> assertEquals(k.toString(), v, store.get(k), TOLERANCE));
+    for (int i = 0; i < store.size(); ++i) {
+      assertEquals(0.0, store.getGradient()[i], 0.0);
+    }
+  }
+
+  @Test
+  public void testDenseGradientAccumulation() {
+    ParameterStore<String> store = ParameterStore.fromContext(context);
+    Scalar<String> loss =
+        DenseMatrix.var("w", 4, 3, store).times(DenseMatrix.var("x", 3, 2, store))
+            .transform(Activation.TANH).elementSumStream();
+    Map<IndexedKey<String>, Double> expected = loss.getGradient();
+    store.accumulateGradient(loss, 2.0);
+    expected.forEach((k, v) -> assertEquals(k.toString(), 2 * v,
+        store.getGradient()[store.getOffset(k)], TOLERANCE));
+  }
+
+  @Test
+  public void testKeysAreInterned() {
+    ParameterStore<String> store = ParameterStore.fromContext(context);
+    ParameterStore.Slot<String> w = store.getSlot("w");
+    IndexedKey<String> key = store.getKey(w, 2, 1);
+    assertTrue(key == store.getKey(w, 2, 1));
+    assertTrue(key == store.resolve(IndexedKey.matrixKey("w", 2, 1)));
+    assertTrue(key == store.getKey(store.getOffset(key)));
+    assertTrue(key == Matrix.view("w", 4, 3, store).get(2, 1).getGradient().keySet().iterator()
+        .next());
+    IndexedKey<String> s = store.resolve(IndexedKey.scalarKey("s"));
+    assertTrue(s == store.resolve(IndexedKey.scalarKey("s")));
+    assertFalse(key.equals(store.getKey(w, 2, 2)));
+    assertEquals(IndexedKey.matrixKey("w", 2, 1), key);
+  }
+
+  @Test
+  public void testEqualsComparesColumn() {
+    IndexedKey<String> key = IndexedKey.matrixKey("w", 1, 2);
+    assertEquals(IndexedKey.matrixKey("w", 1, 2), key);
+    assertFalse(key.equals(IndexedKey.matrixKey("w", 1, 3)));
+    assertFalse(key.equals(IndexedKey.matrixKey("w", 2, 2)));
+    assertFalse(key.equals(IndexedKey.matrixKey("v", 1, 2)));
+  }
+
+}